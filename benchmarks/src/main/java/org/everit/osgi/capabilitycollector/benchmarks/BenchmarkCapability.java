@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A capability with mutable attributes. Capabilities are compared by identity like service
+ * references and bundle capabilities, so a capability keeps its identity when it is modified.
+ */
+public class BenchmarkCapability {
+
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  public Map<String, Object> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public String toString() {
+    return "BenchmarkCapability " + attributes;
+  }
+}
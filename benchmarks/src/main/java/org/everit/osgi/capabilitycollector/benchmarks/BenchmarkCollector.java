@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.benchmarks;
+
+import java.util.Map;
+
+import org.everit.osgi.capabilitycollector.AbstractCapabilityCollector;
+import org.everit.osgi.capabilitycollector.CapabilityConsumer;
+import org.everit.osgi.capabilitycollector.RequirementDefinition;
+import org.osgi.framework.Filter;
+
+/**
+ * A collector without a tracker. The capabilities are passed to the collector by the benchmarks
+ * directly.
+ */
+public class BenchmarkCollector extends AbstractCapabilityCollector<BenchmarkCapability> {
+
+  /**
+   * Constructor.
+   *
+   * @param requirements
+   *          The definition of requirements.
+   * @param capabilityConsumer
+   *          The consumer that is notified about the changes of the wiring.
+   */
+  public BenchmarkCollector(final RequirementDefinition<BenchmarkCapability>[] requirements,
+      final CapabilityConsumer<BenchmarkCapability> capabilityConsumer) {
+    super(requirements, capabilityConsumer);
+  }
+
+  public void add(final BenchmarkCapability capability) {
+    addingCapablility(capability);
+  }
+
+  @Override
+  protected void closeTracker() {
+    // Capabilities are passed by the benchmarks
+  }
+
+  @Override
+  protected Map<String, ?> getAttributes(final BenchmarkCapability capability) {
+    return capability.getAttributes();
+  }
+
+  @Override
+  protected boolean matches(final BenchmarkCapability capability, final Filter filter) {
+    return filter == null || filter.matches(capability.getAttributes());
+  }
+
+  public void modify(final BenchmarkCapability capability) {
+    modifiedCapablility(capability);
+  }
+
+  @Override
+  protected void openTracker() {
+    // Capabilities are passed by the benchmarks
+  }
+
+  public void remove(final BenchmarkCapability capability) {
+    removedCapability(capability);
+  }
+}
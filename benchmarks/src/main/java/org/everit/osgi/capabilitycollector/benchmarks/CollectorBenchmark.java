@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.benchmarks;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.capabilitycollector.CapabilityConsumer;
+import org.everit.osgi.capabilitycollector.CollectorState;
+import org.everit.osgi.capabilitycollector.RequirementDefinition;
+import org.everit.osgi.capabilitycollector.Suiting;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hot paths of
+ * {@link org.everit.osgi.capabilitycollector.AbstractCapabilityCollector}.
+ *
+ * <p>
+ * Every capability has a <code>bucket</code> attribute and every requirement matches one bucket,
+ * so the selectivity is the ratio of the capabilities that a requirement matches. Every benchmark
+ * leaves the collector in the same state as it found it or switches between two states, so the
+ * number of capabilities and requirements does not drift during an iteration. Therefore adding and
+ * removing a capability is measured as one operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectorBenchmark {
+
+  private static final String BUCKET = "bucket";
+
+  private static final String TYPE = "type";
+
+  private static final String TYPE_VALUE = "benchmark";
+
+  @Param({ "100", "10000" })
+  public int capabilityCount;
+
+  @Param({ "1", "10", "100" })
+  public int requirementCount;
+
+  @Param({ "0.01", "0.1", "1" })
+  public double selectivity;
+
+  private BenchmarkCollector collector;
+
+  private RequirementDefinition<BenchmarkCapability>[] equalRequirements;
+
+  private boolean modified;
+
+  private BenchmarkCapability modifiedCapability;
+
+  private RequirementDefinition<BenchmarkCapability>[] replacedRequirements;
+
+  private RequirementDefinition<BenchmarkCapability>[] requirements;
+
+  private boolean requirementsReplaced;
+
+  private BenchmarkCapability spareCapability;
+
+  /**
+   * Adds a capability that matches the first requirement and removes it.
+   */
+  @Benchmark
+  public CollectorState<BenchmarkCapability> addAndRemoveCapability() {
+    collector.add(spareCapability);
+    collector.remove(spareCapability);
+    return collector.getState();
+  }
+
+  private BenchmarkCapability createCapability(final int bucket) {
+    BenchmarkCapability capability = new BenchmarkCapability();
+    capability.getAttributes().put(TYPE, TYPE_VALUE);
+    capability.getAttributes().put(BUCKET, String.valueOf(bucket));
+    return capability;
+  }
+
+  @SuppressWarnings("unchecked")
+  private RequirementDefinition<BenchmarkCapability>[] createRequirements(final int bucketCount,
+      final String lastRequirementId) {
+    RequirementDefinition<BenchmarkCapability>[] result =
+        new RequirementDefinition[requirementCount];
+    for (int i = 0; i < requirementCount; i++) {
+      Map<String, String> filterAttributes = new LinkedHashMap<String, String>();
+      filterAttributes.put(TYPE, TYPE_VALUE);
+      filterAttributes.put(BUCKET, String.valueOf(i % bucketCount));
+
+      String requirementId = (i == requirementCount - 1) ? lastRequirementId : "req" + i;
+      result[i] = new RequirementDefinition<BenchmarkCapability>(requirementId,
+          new EqualityFilter(filterAttributes), Collections.<String, Object> emptyMap());
+    }
+    return result;
+  }
+
+  /**
+   * Makes the first capability, that is wired to the first requirement, unmatching and matching
+   * again by turns.
+   */
+  @Benchmark
+  public CollectorState<BenchmarkCapability> modifiedCapability() {
+    modified = !modified;
+    modifiedCapability.getAttributes().put(TYPE, modified ? "modified" : TYPE_VALUE);
+    collector.modify(modifiedCapability);
+    return collector.getState();
+  }
+
+  /**
+   * Opens a collector with the parameterized requirements and capabilities.
+   */
+  @Setup
+  public void setUp() {
+    int bucketCount = Math.max(1, (int) Math.round(1 / selectivity));
+    requirements = createRequirements(bucketCount, "last");
+    equalRequirements = createRequirements(bucketCount, "last");
+    replacedRequirements = createRequirements(bucketCount, "replaced");
+
+    collector = new BenchmarkCollector(requirements, new CapabilityConsumer<BenchmarkCapability>() {
+
+      @Override
+      public void accept(final Suiting<BenchmarkCapability>[] suitings, final boolean satisfied) {
+        // Only the collector is measured
+      }
+    });
+    collector.open();
+
+    for (int i = 0; i < capabilityCount; i++) {
+      BenchmarkCapability capability = createCapability(i % bucketCount);
+      if (i == 0) {
+        modifiedCapability = capability;
+      }
+      collector.add(capability);
+    }
+    spareCapability = createCapability(0);
+  }
+
+  @TearDown
+  public void tearDown() {
+    collector.close();
+  }
+
+  /**
+   * Updates the requirements with equal definitions, so the candidates of every requirement are
+   * reused.
+   */
+  @Benchmark
+  public CollectorState<BenchmarkCapability> updateRequirements() {
+    requirementsReplaced = !requirementsReplaced;
+    collector.updateRequirements(requirementsReplaced ? equalRequirements : requirements);
+    return collector.getState();
+  }
+
+  /**
+   * Updates the requirements, replacing the last requirement with one that has a different id by
+   * turns. The collector searches the matching capabilities of the new requirement among all
+   * tracked capabilities, so the benchmark measures that search in addition to the update.
+   */
+  @Benchmark
+  public CollectorState<BenchmarkCapability> updateRequirementsWithNewRequirement() {
+    requirementsReplaced = !requirementsReplaced;
+    collector.updateRequirements(requirementsReplaced ? replacedRequirements : requirements);
+    return collector.getState();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.benchmarks;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * An in-memory {@link Filter} that matches if all of its attributes are equal to the attributes of
+ * the matched map, dictionary or service reference. It makes it possible to run the benchmarks
+ * without an OSGi framework. Like the filters of the framework, {@link #match(Dictionary)} and
+ * {@link #match(ServiceReference)} look up the attributes case insensitively, while
+ * {@link #matchCase(Dictionary)} and {@link #matches(Map)} look them up by their exact keys.
+ */
+public class EqualityFilter implements Filter {
+
+  private static Map<String, Object> copy(final Dictionary<String, ?> dictionary,
+      final Map<String, Object> map) {
+    Enumeration<String> keys = dictionary.keys();
+    while (keys.hasMoreElements()) {
+      String key = keys.nextElement();
+      map.put(key, dictionary.get(key));
+    }
+    return map;
+  }
+
+  private final Map<String, String> attributes;
+
+  private final String filterString;
+
+  /**
+   * Constructor.
+   *
+   * @param attributes
+   *          The attributes that must be equal to the string representation of the values of the
+   *          matched map.
+   */
+  public EqualityFilter(final Map<String, String> attributes) {
+    this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, String>(attributes));
+    StringBuilder sb = new StringBuilder();
+    if (attributes.size() != 1) {
+      sb.append("(&");
+    }
+    for (Entry<String, String> entry : attributes.entrySet()) {
+      sb.append('(').append(entry.getKey()).append('=').append(entry.getValue()).append(')');
+    }
+    if (attributes.size() != 1) {
+      sb.append(')');
+    }
+    filterString = sb.toString();
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (!(obj instanceof EqualityFilter)) {
+      return false;
+    }
+    return filterString.equals(((EqualityFilter) obj).filterString);
+  }
+
+  @Override
+  public int hashCode() {
+    return filterString.hashCode();
+  }
+
+  @Override
+  public boolean match(final Dictionary<String, ?> dictionary) {
+    if (dictionary == null) {
+      return false;
+    }
+    return matches(copy(dictionary, new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER)));
+  }
+
+  @Override
+  public boolean match(final ServiceReference<?> reference) {
+    if (reference == null) {
+      return false;
+    }
+    // The properties of a service reference are looked up case insensitively
+    for (Entry<String, String> entry : attributes.entrySet()) {
+      if (!matchesValue(entry.getValue(), reference.getProperty(entry.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean matchCase(final Dictionary<String, ?> dictionary) {
+    if (dictionary == null) {
+      return false;
+    }
+    return matches(copy(dictionary, new LinkedHashMap<String, Object>()));
+  }
+
+  @Override
+  public boolean matches(final Map<String, ?> map) {
+    if (map == null) {
+      return false;
+    }
+    for (Entry<String, String> entry : attributes.entrySet()) {
+      if (!matchesValue(entry.getValue(), map.get(entry.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean matchesValue(final String expectedValue, final Object value) {
+    return value != null && expectedValue.equals(String.valueOf(value));
+  }
+
+  @Override
+  public String toString() {
+    return filterString;
+  }
+}
@@ -18,11 +18,18 @@ package org.everit.osgi.capabilitycollector;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Generated;
 
@@ -36,60 +43,370 @@ import org.osgi.framework.Filter;
  */
 public abstract class AbstractCapabilityCollector<C> {
 
-  private final CapabilityConsumer<C> capabilityConsumer;
+  /**
+   * Delivers the notifications on the executor of the collector. Only the latest notification is
+   * kept, so the notifications that are made while a delivery is in progress or is scheduled are
+   * coalesced into one. If the executor rejects the delivery, the pending notification is
+   * delivered on the thread that submitted it.
+   */
+  private final class AsynchronousNotifier implements Runnable {
+
+    private final Executor executor;
+
+    private CapabilityDelta<C> latestDelta;
+
+    private boolean latestSatisfied;
+
+    private long latestSequence;
+
+    private Suiting<C>[] latestSuitings;
+
+    private boolean scheduled = false;
+
+    AsynchronousNotifier(final Executor executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        CapabilityDelta<C> lDelta;
+        Suiting<C>[] lSuitings;
+        boolean lSatisfied;
+        long lSequence;
+        synchronized (this) {
+          if (latestSuitings == null && latestDelta == null) {
+            scheduled = false;
+            return;
+          }
+          lDelta = latestDelta;
+          lSuitings = latestSuitings;
+          lSatisfied = latestSatisfied;
+          lSequence = latestSequence;
+          latestDelta = null;
+          latestSuitings = null;
+        }
+        if (lDelta != null) {
+          deliverDelta(lDelta);
+        } else {
+          deliver(lSuitings, lSatisfied, lSequence);
+        }
+      }
+    }
+
+    /**
+     * Schedules the delivery of the pending notification if it is not scheduled yet.
+     *
+     * @return <code>true</code> if the executor rejected the delivery, so the caller has to
+     *         deliver the pending notification. The delivery stays marked as scheduled until that,
+     *         so no other thread delivers a notification in the meantime.
+     */
+    private boolean schedule() {
+      if (scheduled) {
+        return false;
+      }
+      // Set before the execution as the executor might run the delivery in the same thread
+      scheduled = true;
+      try {
+        executor.execute(this);
+        return false;
+      } catch (RejectedExecutionException e) {
+        return true;
+      }
+    }
+
+    void submit(final Suiting<C>[] pSuitings, final boolean pSatisfied, final long sequence) {
+      boolean rejected;
+      synchronized (this) {
+        latestSuitings = pSuitings;
+        latestSatisfied = pSatisfied;
+        latestSequence = sequence;
+        rejected = schedule();
+      }
+      if (rejected) {
+        run();
+      }
+    }
+
+    void submitDelta(final CapabilityDelta<C> delta) {
+      boolean rejected;
+      synchronized (this) {
+        latestDelta = (latestDelta != null) ? latestDelta.merge(delta) : delta;
+        rejected = schedule();
+      }
+      if (rejected) {
+        run();
+      }
+    }
+  }
+
+  private AsynchronousNotifier asynchronousNotifier;
+
+  /**
+   * The indexes of the requirements that each available capability is a candidate of.
+   */
+  private final Map<C, BitSet> candidacies = new HashMap<C, BitSet>();
+
+  private final CapabilityIndex<C> capabilityIndex = new CapabilityIndex<C>();
+
+  /**
+   * The indexes of the suitings that changed since the last notification of a
+   * {@link CapabilityDeltaConsumer}.
+   */
+  private final BitSet changedSuitings = new BitSet();
+
+  private CollectorRegistry collectorRegistry;
+
+  private boolean deltaNotifiedSatisfied = false;
+
+  /**
+   * The suitings that the {@link CapabilityDeltaConsumer} was notified about.
+   */
+  private Suiting<C>[] deltaNotifiedSuitings;
+
+  /**
+   * The filters of the requirements with the equal subexpressions shared, so they are evaluated
+   * once per capability.
+   */
+  private FilterPool filterPool;
+
+  private final ReentrantLock lock;
+
+  /**
+   * The time when the collector acquired the lock if {@link #lockHoldMeasured} is set.
+   */
+  private long lockAcquiredNanos;
+
+  /**
+   * The number of nested lock acquisitions of this collector. The lock can be held by the
+   * dispatcher or other collectors of the dispatcher as well, so the hold count of the lock cannot
+   * be used.
+   */
+  private int lockDepth = 0;
+
+  /**
+   * The Flight Recorder event of the current lock hold or <code>null</code> if it is not recorded.
+   */
+  private Object lockHoldEvent;
+
+  private boolean lockHoldMeasured = false;
+
+  private int notificationDeferrals = 0;
+
+  private boolean notificationPending = false;
+
+  /**
+   * The consumer of the collector.
+   */
+  private final NotificationSink<C> notificationSink;
 
   private volatile boolean opened = false;
 
-  private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock(false);
+  /**
+   * Set while the tracker is opened. The capabilities that are replayed by the tracker are only
+   * added to the index and they are wired to the requirements in one pass afterwards.
+   */
+  private boolean populating = false;
+
+  private RequirementCandidates<C>[] requirementCandidates;
+
+  private RequirementIndex requirementIndex;
+
+  private SelectionPolicy<? super C> selectionPolicy = SelectionPolicy.sticky();
 
   private volatile boolean satisfied = false;
 
+  private final AtomicReference<CollectorState<C>> state;
+
+  /**
+   * Collects the statistics of the collector if they are enabled, otherwise <code>null</code>.
+   */
+  private volatile StatisticsRecorder statisticsRecorder;
+
   private Suiting<C>[] suitings;
 
+  /**
+   * Whether the suiting array was replaced since the last notification of a
+   * {@link CapabilityDeltaConsumer}.
+   */
+  private boolean suitingsReplaced = false;
+
+  /**
+   * The indexes of the requirements that do not have a capability.
+   */
+  private final BitSet unsatisfiedRequirements = new BitSet();
+
   /**
    * Constructor.
    *
    * @param requirements
    *          The definition of requirements that should be collected. The collector will be
-   *          satisfied if there is one available capability for each requirement.
+   *          satisfied if there is one available capability for each requirement that is not
+   *          optional (see {@link RequirementDefinition#getCardinality()}).
    * @param capabilityConsumer
    *          The consumer who is interested in the collected capabilities. This is a functional
    *          interface that has to be implemented by the user.
    */
   public AbstractCapabilityCollector(final RequirementDefinition<C>[] requirements,
       final CapabilityConsumer<C> capabilityConsumer) {
+    this(requirements, NotificationSink.of(capabilityConsumer), new ReentrantLock(false));
+  }
+
+  /**
+   * Constructor of a collector that notifies its consumer only about the changes of the suitings.
+   *
+   * @param requirements
+   *          The definition of requirements that should be collected. The collector will be
+   *          satisfied if there is one available capability for each requirement that is not
+   *          optional (see {@link RequirementDefinition#getCardinality()}).
+   * @param capabilityConsumer
+   *          The consumer that gets the changes of the suitings.
+   */
+  public AbstractCapabilityCollector(final RequirementDefinition<C>[] requirements,
+      final CapabilityDeltaConsumer<C> capabilityConsumer) {
+    this(requirements, NotificationSink.of(capabilityConsumer), new ReentrantLock(false));
+  }
+
+  /**
+   * Constructor of a collector that passes the sequence number of each notification to its
+   * consumer.
+   *
+   * @param requirements
+   *          The definition of requirements that should be collected. The collector will be
+   *          satisfied if there is one available capability for each requirement that is not
+   *          optional (see {@link RequirementDefinition#getCardinality()}).
+   * @param capabilityConsumer
+   *          The consumer that gets the sequence numbers of the notifications.
+   */
+  public AbstractCapabilityCollector(final RequirementDefinition<C>[] requirements,
+      final SequencedCapabilityConsumer<C> capabilityConsumer) {
+    this(requirements, NotificationSink.of(capabilityConsumer), new ReentrantLock(false));
+  }
+
+  /**
+   * Constructor of collectors that get their capabilities from an
+   * {@link AbstractCapabilityDispatcher}. The collectors of the same dispatcher share the lock of
+   * the dispatcher, so the dispatcher can call them while it holds its own lock.
+   */
+  AbstractCapabilityCollector(final RequirementDefinition<C>[] requirements,
+      final NotificationSink<C> notificationSink, final ReentrantLock lock) {
 
-    Objects.requireNonNull(capabilityConsumer, "Capability consumer must not be null");
     Objects.requireNonNull(requirements, "Requirement item array must not be null");
 
-    this.capabilityConsumer = capabilityConsumer;
+    this.notificationSink = notificationSink;
+    this.lock = lock;
 
     validateRequirements(requirements);
+    updateIndexedKeys(requirements);
 
     Suiting<C>[] lSuitings = createSuitingsWithoutCapability(requirements);
     this.suitings = lSuitings;
+    this.deltaNotifiedSuitings = lSuitings.clone();
+    for (int i = 0; i < lSuitings.length; i++) {
+      unsatisfiedRequirements.set(i, isUnsatisfied(lSuitings[i]));
+    }
+    setRequirementCandidates(createRequirementCandidates(requirements));
+    this.state = new AtomicReference<CollectorState<C>>(
+        new CollectorState<C>(lSuitings.clone(), false, 0));
   }
 
   /**
-   * Should be called by the subclass when a new capability is available for the tracker.
+   * Should be called by the subclass when a new capability is available for the tracker. In case
+   * the capability is already available, it is handled as if it was modified.
    *
    * @param capability
    *          The capability that will be tried to satisfy each unsatisfied requirements.
    */
   protected void addingCapablility(final C capability) {
-    WriteLock writeLock = readWriteLock.writeLock();
-    writeLock.lock();
+    acquireLock();
 
     try {
-      boolean changed = tryCapabilityOnUnsatisfiedRequirements(capability);
+      StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+      if (lStatisticsRecorder != null) {
+        lStatisticsRecorder.addedCapabilities.incrementAndGet();
+      }
+      Map<String, ?> attributes = getAttributes(capability);
+      if (populating) {
+        capabilityIndex.add(capability, getRoute(capability), attributes);
+        return;
+      }
+      boolean changed;
+      if (capabilityIndex.contains(capability)) {
+        capabilityIndex.update(capability, getRoute(capability), attributes);
+        changed = retryCapabilityOnRequirements(capability, attributes);
+      } else {
+        capabilityIndex.add(capability, getRoute(capability), attributes);
+        changed = tryCapabilityOnRequirements(capability, attributes);
+      }
       if (changed) {
         notifyConsumer();
       }
     } finally {
-      writeLock.unlock();
+      releaseLock();
+    }
+  }
+
+  /**
+   * Should be called by the subclass when several new capabilities are available at the same time
+   * (e.g. the capabilities of a bundle). The capabilities are handled under one lock acquisition
+   * as if {@link #addingCapablility(Object)} was called for each of them, but the consumer is
+   * notified at most once.
+   *
+   * @param capabilities
+   *          The new capabilities.
+   */
+  protected void addingCapabilities(final Collection<? extends C> capabilities) {
+    acquireLock();
+
+    try {
+      notificationDeferrals++;
+      try {
+        for (C capability : capabilities) {
+          addingCapablility(capability);
+        }
+      } finally {
+        notificationDeferrals--;
+      }
+      notifyDeferredConsumer();
+    } finally {
+      releaseLock();
+    }
+  }
+
+  /**
+   * Acquires the lock of the collector and measures the wait time if statistics are enabled. The
+   * hold of the lock is recorded as a Flight Recorder event if it is enabled. The lock is
+   * reentrant, so the trackers of the subclasses can hold it around a call of the collector.
+   */
+  void acquireLock() {
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    if (lStatisticsRecorder == null) {
+      lock.lock();
+      if (lockDepth++ == 0) {
+        lockHoldMeasured = false;
+        lockHoldEvent = FlightRecorderEvents.beginLockHold();
+      }
+      return;
+    }
+    long requestNanos = System.nanoTime();
+    lock.lock();
+    if (lockDepth++ == 0) {
+      lockAcquiredNanos = System.nanoTime();
+      lockHoldMeasured = true;
+      lStatisticsRecorder.lockAcquired(lockAcquiredNanos - requestNanos);
+      lockHoldEvent = FlightRecorderEvents.beginLockHold();
     }
   }
 
+  private void addCandidacy(final C capability, final int requirementIndex) {
+    BitSet candidacy = candidacies.get(capability);
+    if (candidacy == null) {
+      candidacy = new BitSet();
+      candidacies.put(capability, candidacy);
+    }
+    candidacy.set(requirementIndex);
+  }
+
   private boolean areNewRequirementsSame(final RequirementDefinition<C>[] newRequirements) {
     if (newRequirements.length != suitings.length) {
       return false;
@@ -117,8 +434,7 @@ public abstract class AbstractCapabilityCollector<C> {
    * unsatisfied flag even if there are no requirements).
    */
   public void close() {
-    WriteLock writeLock = readWriteLock.writeLock();
-    writeLock.lock();
+    acquireLock();
 
     try {
       if (!opened) {
@@ -126,19 +442,99 @@ public abstract class AbstractCapabilityCollector<C> {
             "Close was called on a Capability Collector that was already closed.");
       }
       opened = false;
+      if (collectorRegistry != null) {
+        collectorRegistry.unregister(this);
+      }
 
       closeTracker();
+      capabilityIndex.clear();
+      candidacies.clear();
+      for (RequirementCandidates<C> candidates : requirementCandidates) {
+        candidates.clear();
+      }
       if (noItems()) {
+        if (satisfied) {
+          FlightRecorderEvents.satisfactionChanged(this, false);
+        }
         satisfied = false;
         notifyConsumer();
       }
+      recordSatisfaction();
     } finally {
-      writeLock.unlock();
+      releaseLock();
     }
   }
 
   protected abstract void closeTracker();
 
+  private RequirementCandidates<C>[] createRequirementCandidates(
+      final RequirementDefinition<C>[] requirements) {
+
+    @SuppressWarnings("unchecked")
+    RequirementCandidates<C>[] result = new RequirementCandidates[requirements.length];
+    for (int i = 0; i < requirements.length; i++) {
+      result[i] = new RequirementCandidates<C>(requirements[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Creates the delta of the suitings since the last notification of the
+   * {@link CapabilityDeltaConsumer}. If the suiting array was not replaced, only the changed
+   * indexes are checked, otherwise the suitings are compared by requirement ids.
+   */
+  private CapabilityDelta<C> createDelta(final long sequence) {
+    Map<String, Suiting<C>> previousSuitings = new LinkedHashMap<String, Suiting<C>>();
+    Map<String, Suiting<C>> currentSuitings = new LinkedHashMap<String, Suiting<C>>();
+
+    if (suitingsReplaced) {
+      for (Suiting<C> suiting : deltaNotifiedSuitings) {
+        previousSuitings.put(suiting.getRequirement().getRequirementId(), suiting);
+      }
+      for (Suiting<C> suiting : suitings) {
+        String requirementId = suiting.getRequirement().getRequirementId();
+        currentSuitings.put(requirementId, suiting);
+        if (!previousSuitings.containsKey(requirementId)) {
+          previousSuitings.put(requirementId, new Suiting<C>(suiting.getRequirement(), null));
+        }
+      }
+      for (Suiting<C> suiting : deltaNotifiedSuitings) {
+        String requirementId = suiting.getRequirement().getRequirementId();
+        if (!currentSuitings.containsKey(requirementId)) {
+          currentSuitings.put(requirementId, new Suiting<C>(suiting.getRequirement(), null));
+        }
+      }
+      deltaNotifiedSuitings = suitings.clone();
+      suitingsReplaced = false;
+    } else {
+      for (int i = changedSuitings.nextSetBit(0); i >= 0; i = changedSuitings.nextSetBit(i + 1)) {
+        String requirementId = suitings[i].getRequirement().getRequirementId();
+        previousSuitings.put(requirementId, deltaNotifiedSuitings[i]);
+        currentSuitings.put(requirementId, suitings[i]);
+        deltaNotifiedSuitings[i] = suitings[i];
+      }
+    }
+    changedSuitings.clear();
+
+    CapabilityDelta<C> delta = new CapabilityDelta<C>(previousSuitings, currentSuitings,
+        deltaNotifiedSatisfied, satisfied, sequence);
+    deltaNotifiedSatisfied = satisfied;
+    return delta;
+  }
+
+  /**
+   * Creates the suiting of a requirement that wires it to its preferred candidate or, in case of
+   * multiple cardinality, to all of its candidates.
+   */
+  private Suiting<C> createSuiting(final RequirementCandidates<C> candidates) {
+    RequirementDefinition<C> requirement = candidates.getRequirement();
+    if (requirement.getCardinality().isMultiple()) {
+      CandidateList<C> candidateList = candidates.getCandidateList();
+      return new Suiting<C>(requirement, candidateList.first(), candidateList);
+    }
+    return new Suiting<C>(requirement, candidates.first());
+  }
+
   private Suiting<C>[] createSuitingsWithoutCapability(
       final RequirementDefinition<C>[] requirements) {
 
@@ -150,15 +546,152 @@ public abstract class AbstractCapabilityCollector<C> {
     return lSuitings;
   }
 
-  protected abstract C[] getAvailableCapabilities();
+  /**
+   * Calls the consumer with a notification.
+   */
+  private void deliver(final Suiting<C>[] pSuitings, final boolean pSatisfied,
+      final long sequence) {
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    long startNanos = (lStatisticsRecorder != null) ? System.nanoTime() : 0;
+    Object callbackEvent = FlightRecorderEvents.beginConsumerCallback();
+    RuntimeException error = null;
+    try {
+      notificationSink.accept(pSuitings, pSatisfied, sequence);
+    } catch (RuntimeException e) {
+      error = e;
+      handleConsumerError(e, describeParameters(pSuitings, pSatisfied));
+    } finally {
+      if (lStatisticsRecorder != null) {
+        lStatisticsRecorder.notificationDelivered(System.nanoTime() - startNanos);
+      }
+      FlightRecorderEvents.endConsumerCallback(callbackEvent, this, error);
+    }
+  }
+
+  /**
+   * Calls the {@link CapabilityDeltaConsumer} with a notification.
+   */
+  private void deliverDelta(final CapabilityDelta<C> delta) {
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    long startNanos = (lStatisticsRecorder != null) ? System.nanoTime() : 0;
+    Object callbackEvent = FlightRecorderEvents.beginConsumerCallback();
+    RuntimeException error = null;
+    try {
+      notificationSink.acceptDelta(delta);
+    } catch (RuntimeException e) {
+      error = e;
+      handleConsumerError(e, String.valueOf(delta));
+    } finally {
+      if (lStatisticsRecorder != null) {
+        lStatisticsRecorder.notificationDelivered(System.nanoTime() - startNanos);
+      }
+      FlightRecorderEvents.endConsumerCallback(callbackEvent, this, error);
+    }
+  }
+
+  private String describeParameters(final Suiting<C>[] pSuitings, final boolean pSatisfied) {
+    return "[satisfied: " + String.valueOf(pSatisfied) + "; suitings: "
+        + Arrays.toString(pSuitings) + "]";
+  }
+
+  /**
+   * Returns the attributes of a capability that are used to look up the capabilities in the index
+   * of the collector by the equality terms of the requirement filters (e.g.
+   * <code>(objectClass=...)</code>). The default implementation returns <code>null</code>, that
+   * means that the collector does not know the attributes and the filter of the requirement is
+   * evaluated on all available capabilities. The returned map is not modified by the collector.
+   *
+   * <p>
+   * If the attributes are known, the filters of the requirements are evaluated on them in a
+   * compiled form and {@link #matches(Object, Filter)} is called only for those filters that
+   * cannot be compiled. The attributes must therefore be the same that the filter would be
+   * evaluated on by {@link #matches(Object, Filter)}.
+   *
+   * @param capability
+   *          The capability.
+   * @return The attributes of the capability or <code>null</code> if the capability should not be
+   *         indexed.
+   */
+  protected Map<String, ?> getAttributes(final C capability) {
+    return null;
+  }
+
+  /**
+   * The previous versions of the collector called this function to get the available
+   * capabilities when they searched for a capability that matches a requirement. The collector
+   * keeps the available capabilities itself now, so the function is not called anymore. It is kept
+   * so that the subclasses that override it still compile.
+   *
+   * @return <code>null</code>.
+   * @deprecated The collector does not call this function anymore. It will be removed in the next
+   *             major version.
+   */
+  @Deprecated
+  protected C[] getAvailableCapabilities() {
+    return null;
+  }
+
+  /**
+   * Returns the attributes that were recorded by the collector when the capability was added or
+   * modified the last time. Must be called under the lock of the collector.
+   *
+   * @param capability
+   *          The capability.
+   * @return The attributes or <code>null</code> if the capability is not available or its
+   *         attributes are not known.
+   */
+  Map<String, ?> getIndexedAttributes(final C capability) {
+    return capabilityIndex.getAttributes(capability);
+  }
+
+  /**
+   * Returns the routing key of a capability. A capability with a routing key is only tested
+   * against the requirements that have the same routing key or no routing key at all (see
+   * {@link RequirementDefinition#getRoute()}). The default implementation returns
+   * <code>null</code>, that means that the routing key is not known and the capability is tested
+   * against every requirement.
+   *
+   * @param capability
+   *          The capability.
+   * @return The routing key or <code>null</code>.
+   */
+  String getRoute(final C capability) {
+    return null;
+  }
+
+  /**
+   * Returns the latest published state of the collector. The function never blocks, so it can be
+   * called by monitoring threads without contending with the threads that process the events of
+   * the framework. The state is published each time the consumer is notified, even if the
+   * notifications are delivered asynchronously.
+   *
+   * @return The latest snapshot of the state.
+   */
+  public CollectorState<C> getState() {
+    return state.get();
+  }
+
+  /**
+   * Returns a snapshot of the statistics of the collector. Like {@link #getState()}, the function
+   * never blocks, so it can be polled by monitoring threads.
+   *
+   * @return The statistics since they were enabled or <code>null</code> if statistics are not
+   *         enabled. See {@link #setStatisticsEnabled(boolean)}.
+   */
+  public CollectorStatistics getStatistics() {
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    if (lStatisticsRecorder == null) {
+      return null;
+    }
+    return new CollectorStatistics(lStatisticsRecorder, System.nanoTime());
+  }
 
   @Generated("avoid_checkstyle_error_on_printStacktrace")
-  private void handleConsumerError(final RuntimeException e) {
+  private void handleConsumerError(final RuntimeException e, final String parameters) {
     StringWriter stringWriter = new StringWriter();
     PrintWriter pw = new PrintWriter(stringWriter);
     pw.write("Uncaughed exception during calling CapabilityConsumer.accept()"
-        + " with the following parameters: [satisfied: " + String.valueOf(satisfied)
-        + "; suitings: " + Arrays.toString(suitings) + "]\n");
+        + " with the following parameters: " + parameters + "\n");
     e.printStackTrace(pw);
     System.err.println(stringWriter.toString());
   }
@@ -171,45 +704,83 @@ public abstract class AbstractCapabilityCollector<C> {
     return satisfied;
   }
 
+  private boolean isUnsatisfied(final Suiting<C> suiting) {
+    return suiting.getCapability() == null
+        && !suiting.getRequirement().getCardinality().isOptional();
+  }
+
   protected abstract boolean matches(C capability, Filter filter);
 
+  /**
+   * Checks whether a capability matches a requirement.
+   *
+   * @param requirementIndex
+   *          The index of the requirement if the filter should be evaluated with the
+   *          {@link FilterPool} of the collector or -1 if the requirement is not (yet) part of the
+   *          pool.
+   */
+  private boolean matchesRequirement(final C capability, final Map<String, ?> attributes,
+      final RequirementDefinition<C> requirement, final int requirementIndex) {
+
+    if (attributes != null) {
+      for (EqualityTerm term : requirement.getEqualityTerms()) {
+        if (term.isViolatedBy(attributes)) {
+          return false;
+        }
+      }
+    }
+
+    CapabilityPredicate<? super C> predicate = requirement.getPredicate();
+    if (predicate != null && !predicate.test(capability)) {
+      return false;
+    }
+
+    Filter filter = requirement.getFilter();
+    if (filter == null) {
+      return true;
+    }
+    if (attributes != null) {
+      if (requirementIndex >= 0 && filterPool.isCompiled(requirementIndex)) {
+        return filterPool.matches(requirementIndex, attributes);
+      }
+      CompiledFilter compiledFilter = requirement.getCompiledFilter();
+      if (compiledFilter != null) {
+        return compiledFilter.matches(attributes);
+      }
+    }
+    return matches(capability, filter);
+  }
+
   /**
    * Should be called by the subclass if the already added capability is modified. In this case the
-   * capability is re-tested agains all unsatisfied and wired requirements.
+   * capability is re-tested agains all requirements. If the capability does not match anymore the
+   * requirement that it is wired to, the requirement is wired to another candidate.
    *
    * @param capability
    *          The capability that is modified.
    */
   protected void modifiedCapablility(final C capability) {
-    WriteLock writeLock = readWriteLock.writeLock();
-    writeLock.lock();
+    acquireLock();
 
     try {
-
-      boolean changed = false;
-      for (int i = 0; i < suitings.length; i++) {
-        Suiting<C> suiting = suitings[i];
-        C suitedCapability = suiting.getCapability();
-        if (capability.equals(suitedCapability)
-            && !matches(capability, suiting.getRequirement().getFilter())) {
-          changed = true;
-          C newCapability = searchMatchingCapabilityForRequirement(suiting.getRequirement());
-          suitings[i] = new Suiting<C>(suitings[i].getRequirement(), newCapability);
-          if (newCapability == null) {
-            satisfied = false;
-          }
-        }
+      StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+      if (lStatisticsRecorder != null) {
+        lStatisticsRecorder.modifiedCapabilities.incrementAndGet();
+      }
+      Map<String, ?> attributes = getAttributes(capability);
+      capabilityIndex.update(capability, getRoute(capability), attributes);
+      if (populating) {
+        return;
       }
 
-      changed = changed || tryCapabilityOnUnsatisfiedRequirements(capability);
-
+      boolean changed = retryCapabilityOnRequirements(capability, attributes);
       if (changed) {
         notifyConsumer();
       }
     } catch (RuntimeException e) {
-      handleConsumerError(e);
+      handleConsumerError(e, describeParameters(suitings, satisfied));
     } finally {
-      writeLock.unlock();
+      releaseLock();
     }
   }
 
@@ -218,19 +789,45 @@ public abstract class AbstractCapabilityCollector<C> {
   }
 
   private void notifyConsumer() {
-    try {
-      capabilityConsumer.accept(suitings.clone(), satisfied);
-    } catch (RuntimeException e) {
-      handleConsumerError(e);
+    if (notificationDeferrals > 0) {
+      notificationPending = true;
+      return;
+    }
+    long sequence = publishState();
+    if (notificationSink.isDelta()) {
+      CapabilityDelta<C> delta = createDelta(sequence);
+      if (asynchronousNotifier != null) {
+        asynchronousNotifier.submitDelta(delta);
+      } else {
+        deliverDelta(delta);
+      }
+      return;
+    }
+    if (asynchronousNotifier != null) {
+      asynchronousNotifier.submit(suitings.clone(), satisfied, sequence);
+    } else {
+      deliver(suitings.clone(), satisfied, sequence);
+    }
+  }
+
+  /**
+   * Notifies the consumer if a notification was deferred and there is no deferral in progress
+   * anymore.
+   */
+  private void notifyDeferredConsumer() {
+    if (notificationDeferrals == 0 && notificationPending) {
+      notificationPending = false;
+      notifyConsumer();
     }
   }
 
   /**
    * Opens the capability collector. The tracker that is implemented by the subclass is also opened.
+   * The capabilities that are already available when the tracker is opened are wired to the
+   * requirements in one pass and the consumer is notified only once with the result.
    */
   public void open() {
-    WriteLock writeLock = readWriteLock.writeLock();
-    writeLock.lock();
+    acquireLock();
 
     try {
       if (opened) {
@@ -238,113 +835,484 @@ public abstract class AbstractCapabilityCollector<C> {
             "Open was called on a CapabilityCollector that was already opened.");
       }
       opened = true;
+      if (collectorRegistry != null) {
+        collectorRegistry.register(this);
+      }
 
-      if (noItems()) {
-        this.satisfied = true;
+      populating = true;
+      notificationDeferrals++;
+      try {
+        openTracker();
+      } finally {
+        notificationDeferrals--;
+        populating = false;
       }
+
+      replaceSuitings(wireRequirements(requirementCandidates));
+      setRequirementCandidates(requirementCandidates);
+      refreshSatisfied();
+      notificationPending = false;
       notifyConsumer();
-      openTracker();
     } finally {
-      writeLock.unlock();
+      releaseLock();
     }
   }
 
   protected abstract void openTracker();
 
+  /**
+   * Publishes the current state of the collector as a new snapshot.
+   *
+   * @return The generation of the published snapshot.
+   */
+  private long publishState() {
+    CollectorState<C> lState = state.get();
+    long generation = lState.getGeneration() + 1;
+    state.set(new CollectorState<C>(suitings.clone(), satisfied, generation));
+    return generation;
+  }
+
+  /**
+   * Called by {@link #updateRequirements(RequirementDefinition[])} after the new requirements are
+   * set, while the lock of the collector is held. Subclasses can override this function to adjust
+   * their tracker to the new requirements (e.g. by narrowing the filter of the tracker). The
+   * capabilities that are added or removed during this call are applied to the new requirements
+   * and the consumer is notified only once, after this function returns. The default
+   * implementation does nothing.
+   *
+   * @param newRequirements
+   *          The requirements of the collector from now on.
+   */
+  protected void requirementsUpdated(final RequirementDefinition<C>[] newRequirements) {
+    // Do nothing by default
+  }
+
+  /**
+   * Records whether the collector is opened and unsatisfied if statistics are enabled.
+   */
+  private void recordSatisfaction() {
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    if (lStatisticsRecorder != null) {
+      lStatisticsRecorder.setUnsatisfied(opened && !satisfied, System.nanoTime());
+    }
+  }
+
+  private void recordFilterEvaluations(final int evaluations) {
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    if (lStatisticsRecorder != null) {
+      lStatisticsRecorder.filterEvaluations.addAndGet(evaluations);
+    }
+  }
+
+  private void refreshSatisfied() {
+    boolean newSatisfied = unsatisfiedRequirements.isEmpty();
+    if (newSatisfied != satisfied) {
+      FlightRecorderEvents.satisfactionChanged(this, newSatisfied);
+    }
+    this.satisfied = newSatisfied;
+    recordSatisfaction();
+  }
+
+  /**
+   * Releases the lock of the collector and measures the hold time if statistics are enabled. The
+   * Flight Recorder event of the hold is committed if it is longer than its threshold.
+   */
+  void releaseLock() {
+    if (--lockDepth == 0) {
+      if (lockHoldMeasured) {
+        StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+        if (lStatisticsRecorder != null) {
+          lStatisticsRecorder.lockHoldNanos.addAndGet(System.nanoTime() - lockAcquiredNanos);
+        }
+      }
+      if (lockHoldEvent != null) {
+        FlightRecorderEvents.endLockHold(lockHoldEvent, this);
+        lockHoldEvent = null;
+      }
+    }
+    lock.unlock();
+  }
+
   /**
    * This method should be called by the subclass if a capability that was previously added, is not
-   * available anymore.
+   * available anymore. The requirements that were wired to the capability are wired to the next
+   * candidate that matches them.
    *
    * @param capability
    *          The capability that is removed.
    */
   protected void removedCapability(final C capability) {
-    WriteLock writeLock = readWriteLock.writeLock();
-    writeLock.lock();
+    acquireLock();
 
     try {
+      StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+      if (lStatisticsRecorder != null) {
+        lStatisticsRecorder.removedCapabilities.incrementAndGet();
+      }
+      capabilityIndex.remove(capability);
+
+      BitSet candidacy = candidacies.remove(capability);
+      if (candidacy == null) {
+        return;
+      }
 
-      boolean lSatisfied = satisfied;
       boolean changed = false;
 
-      for (int i = 0; i < suitings.length; i++) {
-        Suiting<C> suiting = suitings[i];
-        C suitedCapability = suiting.getCapability();
-        if (capability.equals(suitedCapability)) {
-          changed = true;
-          RequirementDefinition<C> requirement = suiting.getRequirement();
-          C newCapability = searchMatchingCapabilityForRequirement(requirement);
-          suitings[i] = new Suiting<C>(requirement, newCapability);
-          if (newCapability == null) {
-            lSatisfied = false;
-          }
-        }
+      for (int i = candidacy.nextSetBit(0); i >= 0; i = candidacy.nextSetBit(i + 1)) {
+        RequirementCandidates<C> candidates = requirementCandidates[i];
+        candidates.remove(capability);
+        changed = unwireRemovedCandidate(i, candidates, capability) || changed;
       }
 
-      this.satisfied = lSatisfied;
-
       if (changed) {
+        refreshSatisfied();
         notifyConsumer();
       }
     } finally {
-      writeLock.unlock();
+      releaseLock();
     }
   }
 
-  private C searchMatchingCapabilityForRequirement(final RequirementDefinition<C> requirement) {
-    if (!opened) {
-      return null;
+  private void removeCandidacy(final C capability, final int requirementIndex) {
+    BitSet candidacy = candidacies.get(capability);
+    if (candidacy != null) {
+      candidacy.clear(requirementIndex);
+      if (candidacy.isEmpty()) {
+        candidacies.remove(capability);
+      }
+    }
+  }
+
+  /**
+   * Replaces the suiting array of the collector.
+   */
+  private void replaceSuitings(final Suiting<C>[] newSuitings) {
+    this.suitings = newSuitings;
+    suitingsReplaced = true;
+    changedSuitings.clear();
+    unsatisfiedRequirements.clear();
+    for (int i = 0; i < newSuitings.length; i++) {
+      FlightRecorderEvents.requirementWired(this, newSuitings[i]);
+      if (isUnsatisfied(newSuitings[i])) {
+        unsatisfiedRequirements.set(i);
+      }
     }
+  }
 
-    C[] availableCapabilities = getAvailableCapabilities();
+  /**
+   * Should be called by the subclass if several capabilities are not available anymore at the same
+   * time (e.g. the capabilities of a bundle). The capabilities are handled under one lock
+   * acquisition as if {@link #removedCapability(Object)} was called for each of them, but the
+   * consumer is notified at most once.
+   *
+   * @param capabilities
+   *          The removed capabilities.
+   */
+  protected void removedCapabilities(final Collection<? extends C> capabilities) {
+    acquireLock();
 
-    if (availableCapabilities == null) {
-      return null;
+    try {
+      notificationDeferrals++;
+      try {
+        for (C capability : capabilities) {
+          removedCapability(capability);
+        }
+      } finally {
+        notificationDeferrals--;
+      }
+      notifyDeferredConsumer();
+    } finally {
+      releaseLock();
     }
+  }
+
+  /**
+   * Should be called by the subclass if some capabilities are replaced by others at the same time
+   * (e.g. the capabilities of a bundle that got a new wiring). The new capabilities are added
+   * before the old ones are removed, so the requirements can be rewired to the new capabilities
+   * directly. The consumer is notified at most once.
+   *
+   * @param removedCapabilities
+   *          The capabilities that are not available anymore.
+   * @param addedCapabilities
+   *          The new capabilities.
+   */
+  protected void replacedCapabilities(final Collection<? extends C> removedCapabilities,
+      final Collection<? extends C> addedCapabilities) {
+    acquireLock();
 
-    C matchingCapability = null;
-    for (int i = 0, n = availableCapabilities.length; (i < n)
-        && (matchingCapability == null); i++) {
-      Filter filter = requirement.getFilter();
-      if (matches(availableCapabilities[i], filter)) {
-        matchingCapability = availableCapabilities[i];
+    try {
+      notificationDeferrals++;
+      try {
+        for (C capability : addedCapabilities) {
+          addingCapablility(capability);
+        }
+        for (C capability : removedCapabilities) {
+          removedCapability(capability);
+        }
+      } finally {
+        notificationDeferrals--;
       }
+      notifyDeferredConsumer();
+    } finally {
+      releaseLock();
     }
-    return matchingCapability;
   }
 
-  private boolean tryCapabilityOnUnsatisfiedRequirements(final C capability) {
-    if (satisfied) {
-      return false;
+  /**
+   * Re-tests a capability that is already available against the requirements that it might match
+   * and the ones that it is a candidate of. If the capability does not match anymore the
+   * requirement that it is wired to, the requirement is wired to another candidate.
+   */
+  private boolean retryCapabilityOnRequirements(final C capability,
+      final Map<String, ?> attributes) {
+
+    BitSet affectedRequirements = requirementIndex.lookup(getRoute(capability), attributes);
+    BitSet candidacy = candidacies.get(capability);
+    if (candidacy != null) {
+      affectedRequirements.or(candidacy);
     }
 
+    Comparable<?> selectionKey = selectionPolicy.getSelectionKey(capability, attributes);
+    filterPool.startEvaluation();
     boolean changed = false;
-    boolean lSatisfied = true;
+    int evaluations = 0;
+    for (int i = affectedRequirements.nextSetBit(0); i >= 0;
+        i = affectedRequirements.nextSetBit(i + 1)) {
+
+      RequirementCandidates<C> candidates = requirementCandidates[i];
+      RequirementDefinition<C> requirement = candidates.getRequirement();
+      evaluations++;
+      if (matchesRequirement(capability, attributes, requirement, i)) {
+        boolean candidatesChanged = candidates.add(capability, selectionKey);
+        addCandidacy(capability, i);
+        changed = wireSelectedCandidate(i, candidates, candidatesChanged) || changed;
+      } else if (candidates.remove(capability)) {
+        removeCandidacy(capability, i);
+        changed = unwireRemovedCandidate(i, candidates, capability) || changed;
+      }
+    }
+    recordFilterEvaluations(evaluations);
 
-    for (int i = 0; i < suitings.length; i++) {
-      Suiting<C> suiting = suitings[i];
+    if (changed) {
+      refreshSatisfied();
+    }
+    return changed;
+  }
 
-      if (suiting.getCapability() == null) {
-        RequirementDefinition<C> requirement = suiting.getRequirement();
-        if (matches(capability, requirement.getFilter())) {
-          changed = true;
-          suitings[i] = new Suiting<C>(requirement, capability);
-        } else {
-          lSatisfied = false;
-        }
+  private void searchMatchingCapabilitiesForRequirement(
+      final RequirementCandidates<C> candidates) {
+
+    if (!opened) {
+      return;
+    }
+
+    RequirementDefinition<C> requirement = candidates.getRequirement();
+    int evaluations = 0;
+    for (C capability : capabilityIndex.candidates(requirement.getRoute(),
+        requirement.getEqualityTerms())) {
+      evaluations++;
+      Map<String, ?> attributes = capabilityIndex.getAttributes(capability);
+      if (matchesRequirement(capability, attributes, requirement, -1)) {
+        candidates.add(capability, selectionPolicy.getSelectionKey(capability, attributes));
+      }
+    }
+
+    StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+    if (lStatisticsRecorder != null) {
+      lStatisticsRecorder.rescans.incrementAndGet();
+      lStatisticsRecorder.filterEvaluations.addAndGet(evaluations);
+    }
+  }
+
+  private void setSuiting(final int index, final Suiting<C> suiting) {
+    suitings[index] = suiting;
+    changedSuitings.set(index);
+    unsatisfiedRequirements.set(index, isUnsatisfied(suiting));
+    FlightRecorderEvents.requirementWired(this, suiting);
+  }
+
+  /**
+   * Sets the candidates of the requirements and rebuilds the structures that are based on the
+   * indexes of the requirements.
+   */
+  private void setRequirementCandidates(final RequirementCandidates<C>[] newRequirementCandidates) {
+    this.requirementCandidates = newRequirementCandidates;
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<C>[] requirements =
+        new RequirementDefinition[newRequirementCandidates.length];
+    candidacies.clear();
+    for (int i = 0; i < newRequirementCandidates.length; i++) {
+      requirements[i] = newRequirementCandidates[i].getRequirement();
+      for (C capability : newRequirementCandidates[i]) {
+        addCandidacy(capability, i);
       }
     }
+    this.requirementIndex = new RequirementIndex(requirements);
+    this.filterPool = new FilterPool(requirements);
+  }
 
-    if (lSatisfied) {
-      this.satisfied = true;
+  /**
+   * Sets the registry that the collector registers with while it is opened. By default, the
+   * collector is not registered anywhere.
+   *
+   * @param collectorRegistry
+   *          The registry or <code>null</code> if the collector should not be registered.
+   * @throws IllegalStateException
+   *           if the collector is opened.
+   */
+  public void setCollectorRegistry(final CollectorRegistry collectorRegistry) {
+    acquireLock();
+
+    try {
+      if (opened) {
+        throw new IllegalStateException(
+            "Collector registry cannot be set on an opened Capability Collector.");
+      }
+      this.collectorRegistry = collectorRegistry;
+    } finally {
+      releaseLock();
+    }
+  }
+
+  /**
+   * Sets the policy that decides which candidate a requirement is wired to if more available
+   * capabilities match the requirement. The default policy is {@link SelectionPolicy#sticky()}.
+   *
+   * @param selectionPolicy
+   *          The selection policy.
+   * @throws IllegalStateException
+   *           if the collector is opened.
+   */
+  public void setSelectionPolicy(final SelectionPolicy<? super C> selectionPolicy) {
+    Objects.requireNonNull(selectionPolicy, "Selection policy must not be null");
+    acquireLock();
+
+    try {
+      if (opened) {
+        throw new IllegalStateException(
+            "Selection policy cannot be set on an opened Capability Collector.");
+      }
+      this.selectionPolicy = selectionPolicy;
+    } finally {
+      releaseLock();
+    }
+  }
+
+  /**
+   * Sets the executor that delivers the notifications to the consumer. By default, the consumer is
+   * called synchronously on the thread that changed the state of the collector (typically the
+   * event thread of the framework) while the lock of the collector is held. If an executor is set,
+   * the consumer is called on the executor and the state changes that happen before a
+   * notification is delivered are coalesced into one notification with the latest state. If the
+   * executor rejects a delivery (e.g. because it is shut down), the notification is delivered
+   * synchronously instead, so no state change is lost.
+   *
+   * @param executor
+   *          The executor or <code>null</code> to call the consumer synchronously.
+   * @throws IllegalStateException
+   *           if the collector is opened.
+   */
+  public void setNotificationExecutor(final Executor executor) {
+    acquireLock();
+
+    try {
+      if (opened) {
+        throw new IllegalStateException(
+            "Notification executor cannot be set on an opened Capability Collector.");
+      }
+      asynchronousNotifier = (executor != null) ? new AsynchronousNotifier(executor) : null;
+    } finally {
+      releaseLock();
+    }
+  }
+
+  /**
+   * Enables or disables the statistics of the collector (see {@link #getStatistics()}). The
+   * statistics can be enabled and disabled at any time. Enabling the statistics starts all
+   * counters from zero. While the statistics are disabled, the collector does not measure anything.
+   *
+   * @param enabled
+   *          Whether the statistics should be collected.
+   */
+  public void setStatisticsEnabled(final boolean enabled) {
+    acquireLock();
+
+    try {
+      if (!enabled) {
+        statisticsRecorder = null;
+      } else if (statisticsRecorder == null) {
+        long nowNanos = System.nanoTime();
+        StatisticsRecorder lStatisticsRecorder = new StatisticsRecorder(nowNanos);
+        lStatisticsRecorder.setUnsatisfied(opened && !satisfied, nowNanos);
+        statisticsRecorder = lStatisticsRecorder;
+      }
+    } finally {
+      releaseLock();
+    }
+  }
+
+  /**
+   * Adds the capability to the candidates of each requirement that it matches and wires it to
+   * those matching requirements that are unsatisfied or, if the selection policy is not sticky,
+   * that prefer it to their current capability.
+   */
+  private boolean tryCapabilityOnRequirements(final C capability,
+      final Map<String, ?> attributes) {
+
+    BitSet affectedRequirements = requirementIndex.lookup(getRoute(capability), attributes);
+    if (affectedRequirements.isEmpty()) {
+      return false;
+    }
+    Comparable<?> selectionKey = selectionPolicy.getSelectionKey(capability, attributes);
+    filterPool.startEvaluation();
+    boolean changed = false;
+    int evaluations = 0;
+
+    for (int i = affectedRequirements.nextSetBit(0); i >= 0;
+        i = affectedRequirements.nextSetBit(i + 1)) {
+
+      RequirementCandidates<C> candidates = requirementCandidates[i];
+      RequirementDefinition<C> requirement = candidates.getRequirement();
+      evaluations++;
+      if (matchesRequirement(capability, attributes, requirement, i)) {
+        boolean candidatesChanged = candidates.add(capability, selectionKey);
+        addCandidacy(capability, i);
+        changed = wireSelectedCandidate(i, candidates, candidatesChanged) || changed;
+      }
+    }
+    recordFilterEvaluations(evaluations);
+
+    if (changed) {
+      refreshSatisfied();
     }
 
     return changed;
   }
 
   /**
-   * Updates the requirements of this collector. Those requirements that were already satisfied
-   * remain unchanged.
+   * Rewires a requirement after one of its candidates was removed if the requirement was wired to
+   * the candidate.
+   *
+   * @return <code>true</code> if the requirement was rewired.
+   */
+  private boolean unwireRemovedCandidate(final int index, final RequirementCandidates<C> candidates,
+      final C capability) {
+
+    if (!candidates.getRequirement().getCardinality().isMultiple()
+        && !capability.equals(suitings[index].getCapability())) {
+      return false;
+    }
+    setSuiting(index, createSuiting(candidates));
+    return true;
+  }
+
+  /**
+   * Updates the requirements of this collector. The new requirements are paired with the current
+   * ones by their ids. If the filter of a requirement did not change, the requirement keeps its
+   * capability without searching the available capabilities again. Only the new requirements and
+   * the ones with a changed filter are matched against the available capabilities.
    *
    * @param newRequirements
    *          The list of reference items to be tracked.
@@ -357,41 +1325,87 @@ public abstract class AbstractCapabilityCollector<C> {
     Objects.requireNonNull(newRequirements, "Items cannot be null");
     validateRequirements(newRequirements);
 
-    WriteLock writeLock = readWriteLock.writeLock();
-    writeLock.lock();
+    acquireLock();
 
     try {
+      StatisticsRecorder lStatisticsRecorder = statisticsRecorder;
+      if (lStatisticsRecorder != null) {
+        lStatisticsRecorder.requirementUpdates.incrementAndGet();
+      }
       if (areNewRequirementsSame(newRequirements)) {
         return;
       }
 
+      updateIndexedKeys(newRequirements);
+
       if (!opened) {
         Suiting<C>[] newSuitings = createSuitingsWithoutCapability(newRequirements);
-        this.suitings = newSuitings;
+        replaceSuitings(newSuitings);
+        setRequirementCandidates(createRequirementCandidates(newRequirements));
+        publishState();
+        requirementsUpdated(newRequirements);
         return;
       }
 
-      boolean lSatisfied = true;
+      Map<String, Integer> indexesByRequirementId = new HashMap<String, Integer>();
+      for (int i = 0; i < suitings.length; i++) {
+        indexesByRequirementId.put(suitings[i].getRequirement().getRequirementId(), i);
+      }
 
       @SuppressWarnings("unchecked")
-      Suiting<C>[] tmpSuitings = new Suiting[newRequirements.length];
+      RequirementCandidates<C>[] newRequirementCandidates =
+          new RequirementCandidates[newRequirements.length];
+      @SuppressWarnings("unchecked")
+      Suiting<C>[] newSuitings = new Suiting[newRequirements.length];
 
       for (int i = 0; i < newRequirements.length; i++) {
-        RequirementDefinition<C> requirement = newRequirements[i];
-        C capability = searchMatchingCapabilityForRequirement(requirement);
-        tmpSuitings[i] = new Suiting<C>(requirement, capability);
-        if (capability == null) {
-          lSatisfied = false;
+        RequirementDefinition<C> newRequirement = newRequirements[i];
+        Integer index = indexesByRequirementId.get(newRequirement.getRequirementId());
+        if (index != null && Objects.equals(suitings[index].getRequirement().getFilter(),
+            newRequirement.getFilter()) && Objects.equals(
+            suitings[index].getRequirement().getPredicate(), newRequirement.getPredicate())) {
+          RequirementCandidates<C> candidates = requirementCandidates[index].withRequirement(
+              newRequirement);
+          newRequirementCandidates[i] = candidates;
+          if (newRequirement.getCardinality().isMultiple()
+              || suitings[index].getRequirement().getCardinality().isMultiple()) {
+            newSuitings[i] = createSuiting(candidates);
+          } else {
+            newSuitings[i] = new Suiting<C>(newRequirement, suitings[index].getCapability());
+          }
+        } else {
+          RequirementCandidates<C> candidates = new RequirementCandidates<C>(newRequirement);
+          searchMatchingCapabilitiesForRequirement(candidates);
+          newRequirementCandidates[i] = candidates;
+          newSuitings[i] = createSuiting(candidates);
         }
       }
 
-      this.satisfied = lSatisfied;
-      this.suitings = tmpSuitings;
+      replaceSuitings(newSuitings);
+      setRequirementCandidates(newRequirementCandidates);
+      refreshSatisfied();
 
+      notificationDeferrals++;
+      try {
+        requirementsUpdated(newRequirements);
+      } finally {
+        notificationDeferrals--;
+      }
+      notificationPending = false;
       notifyConsumer();
     } finally {
-      writeLock.unlock();
+      releaseLock();
+    }
+  }
+
+  private void updateIndexedKeys(final RequirementDefinition<C>[] requirements) {
+    Set<String> keys = new HashSet<String>();
+    for (RequirementDefinition<C> requirement : requirements) {
+      for (EqualityTerm term : requirement.getEqualityTerms()) {
+        keys.add(term.getKey());
+      }
     }
+    capabilityIndex.setIndexedKeys(keys);
   }
 
   private void validateRequirements(final RequirementDefinition<C>[] requirements) {
@@ -409,4 +1423,45 @@ public abstract class AbstractCapabilityCollector<C> {
       }
     }
   }
+
+  /**
+   * Wires a requirement to its preferred candidate if the requirement is not wired to any
+   * capability or if the selection policy is not sticky and the preferred candidate is not the
+   * current capability. A requirement with multiple cardinality is rewired to all of its candidates
+   * if the candidates changed.
+   *
+   * @return <code>true</code> if the requirement was rewired.
+   */
+  private boolean wireSelectedCandidate(final int index, final RequirementCandidates<C> candidates,
+      final boolean candidatesChanged) {
+
+    if (candidates.getRequirement().getCardinality().isMultiple()) {
+      if (!candidatesChanged) {
+        return false;
+      }
+    } else {
+      C wiredCapability = suitings[index].getCapability();
+      if (wiredCapability != null
+          && (selectionPolicy.isSticky() || wiredCapability.equals(candidates.first()))) {
+        return false;
+      }
+    }
+    setSuiting(index, createSuiting(candidates));
+    return true;
+  }
+
+  /**
+   * Fills the candidates of each requirement from the available capabilities and wires each
+   * requirement to its first candidate.
+   */
+  private Suiting<C>[] wireRequirements(final RequirementCandidates<C>[] candidatesArray) {
+    @SuppressWarnings("unchecked")
+    Suiting<C>[] result = new Suiting[candidatesArray.length];
+    for (int i = 0; i < candidatesArray.length; i++) {
+      RequirementCandidates<C> candidates = candidatesArray[i];
+      searchMatchingCapabilitiesForRequirement(candidates);
+      result[i] = createSuiting(candidates);
+    }
+    return result;
+  }
 }
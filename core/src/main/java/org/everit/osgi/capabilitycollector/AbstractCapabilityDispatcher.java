@@ -0,0 +1,843 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A dispatcher that tracks the capabilities with one tracker and routes the events to the
+ * collectors that are created with the dispatcher. Without a dispatcher, each collector opens its
+ * own tracker, so each framework event is processed once for every collector. The dispatcher keeps
+ * a demand index that maps the equality terms of the requirement filters to the collectors, and it
+ * passes a capability only to those collectors that have a requirement whose equality terms are
+ * not violated by the capability. The demand index is keyed by the routing key of the
+ * requirements first (see {@link #getRoute(Object)}), so a capability is only routed to the
+ * requirements of its own routing key and to the ones without a routing key.
+ *
+ * <p>
+ * The collectors of a dispatcher share the lock of the dispatcher. The consumers of the collectors
+ * are called while the lock is held, so a consumer may open, close or update any collector of the
+ * same dispatcher. The deliveries are recorded one by one right before each collector is called,
+ * so a collector that is closed by such a consumer does not get the rest of the event and a
+ * collector that is opened gets every capability exactly once.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+public abstract class AbstractCapabilityDispatcher<C> {
+
+  /**
+   * The demand entries of a collector and the capabilities that were passed to the collector.
+   */
+  private final class CollectorDemand {
+
+    private final Set<C> deliveredCapabilities = new LinkedHashSet<C>();
+
+    private final List<DemandEntry> entries = new ArrayList<DemandEntry>();
+  }
+
+  /**
+   * The demand of one requirement of a collector. The entry is placed into the demand index by one
+   * of the equality terms of the requirement (the anchor term), the other terms are checked when a
+   * capability is routed.
+   */
+  private final class DemandEntry {
+
+    private final EqualityTerm anchorTerm;
+
+    private final AbstractCapabilityCollector<C> collector;
+
+    private final String route;
+
+    private final List<EqualityTerm> terms;
+
+    DemandEntry(final AbstractCapabilityCollector<C> collector, final String route,
+        final List<EqualityTerm> terms, final EqualityTerm anchorTerm) {
+      this.collector = collector;
+      this.route = route;
+      this.terms = terms;
+      this.anchorTerm = anchorTerm;
+    }
+
+    boolean accepts(final Map<String, ?> attributes) {
+      if (attributes == null) {
+        return true;
+      }
+      for (EqualityTerm term : terms) {
+        if (term.isViolatedBy(attributes)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The demand entries of the requirements that have the same routing key.
+   */
+  private final class RouteDemand {
+
+    private final Map<String, Map<String, Set<DemandEntry>>> demandIndex =
+        new HashMap<String, Map<String, Set<DemandEntry>>>();
+
+    private final Set<DemandEntry> unconditionalDemand = new LinkedHashSet<DemandEntry>();
+
+    void addTargets(final Map<String, ?> attributes,
+        final Set<AbstractCapabilityCollector<C>> targets) {
+
+      addEntryTargets(unconditionalDemand, attributes, targets);
+      for (Map.Entry<String, Map<String, Set<DemandEntry>>> mapEntry : demandIndex.entrySet()) {
+        Map<String, Set<DemandEntry>> entriesByValue = mapEntry.getValue();
+        if (attributes == null) {
+          for (Set<DemandEntry> entries : entriesByValue.values()) {
+            addEntryTargets(entries, null, targets);
+          }
+          continue;
+        }
+        Object value = attributes.get(mapEntry.getKey());
+        if (value == null) {
+          continue;
+        }
+        if (value instanceof String) {
+          addEntryTargets(entriesByValue.get(value), attributes, targets);
+        } else if (value instanceof String[]) {
+          for (String element : (String[]) value) {
+            addEntryTargets(entriesByValue.get(element), attributes, targets);
+          }
+        } else if (value instanceof Collection && isStringCollection((Collection<?>) value)) {
+          for (Object element : (Collection<?>) value) {
+            addEntryTargets(entriesByValue.get(element), attributes, targets);
+          }
+        } else {
+          // The filter might convert the value of the term to the type of the attribute
+          for (Set<DemandEntry> entries : entriesByValue.values()) {
+            addEntryTargets(entries, attributes, targets);
+          }
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return demandIndex.isEmpty() && unconditionalDemand.isEmpty();
+    }
+  }
+
+  private final CapabilityIndex<C> capabilityIndex = new CapabilityIndex<C>();
+
+  private final Map<AbstractCapabilityCollector<C>, CollectorDemand> collectorDemands =
+      new HashMap<AbstractCapabilityCollector<C>, CollectorDemand>();
+
+  private final Map<C, Set<AbstractCapabilityCollector<C>>> deliveries =
+      new HashMap<C, Set<AbstractCapabilityCollector<C>>>();
+
+  /**
+   * The number of equality terms in the demand per attribute key. The capability index only
+   * indexes the keys that have at least one term.
+   */
+  private final Map<String, Integer> indexedKeyCounts = new HashMap<String, Integer>();
+
+  private final ReentrantLock lock = new ReentrantLock(false);
+
+  private boolean opened = false;
+
+  /**
+   * The demand per routing key. The requirements without a routing key are under the
+   * <code>null</code> key.
+   */
+  private final Map<String, RouteDemand> routeDemands = new HashMap<String, RouteDemand>();
+
+  /**
+   * Should be called by the subclass when a new capability is available for the tracker. The
+   * capability is passed to each collector that might need it. In case the capability is already
+   * available, it is handled as if it was modified.
+   *
+   * @param capability
+   *          The new capability.
+   */
+  protected void addingCapability(final C capability) {
+    lock.lock();
+    try {
+      if (deliveries.containsKey(capability)) {
+        modifiedCapability(capability);
+        return;
+      }
+      String route = getRoute(capability);
+      Map<String, ?> attributes = getAttributes(capability);
+      capabilityIndex.add(capability, route, attributes);
+      deliveries.put(capability, new LinkedHashSet<AbstractCapabilityCollector<C>>());
+
+      for (AbstractCapabilityCollector<C> collector : route(route, attributes)) {
+        if (recordDelivery(collector, capability)) {
+          collector.addingCapablility(capability);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Should be called by the subclass when several new capabilities are available at the same time
+   * (e.g. the capabilities of a bundle). Each collector gets the capabilities that it might need
+   * in one batch, so it notifies its consumer at most once.
+   *
+   * @param capabilities
+   *          The new capabilities.
+   */
+  protected void addingCapabilities(final Collection<? extends C> capabilities) {
+    lock.lock();
+    try {
+      Map<AbstractCapabilityCollector<C>, List<C>> batches =
+          new LinkedHashMap<AbstractCapabilityCollector<C>, List<C>>();
+      deliverAddedCapabilities(capabilities, batches);
+      for (Map.Entry<AbstractCapabilityCollector<C>, List<C>> batch : batches.entrySet()) {
+        AbstractCapabilityCollector<C> collector = batch.getKey();
+        List<C> deliveredBatch = recordDeliveries(collector, batch.getValue());
+        if (!deliveredBatch.isEmpty()) {
+          collector.addingCapabilities(deliveredBatch);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void addEntryTargets(final Set<DemandEntry> entries, final Map<String, ?> attributes,
+      final Set<AbstractCapabilityCollector<C>> targets) {
+
+    if (entries == null) {
+      return;
+    }
+    for (DemandEntry entry : entries) {
+      if (!targets.contains(entry.collector) && entry.accepts(attributes)) {
+        targets.add(entry.collector);
+      }
+    }
+  }
+
+  private void addToBatch(final Map<AbstractCapabilityCollector<C>, List<C>> batches,
+      final AbstractCapabilityCollector<C> collector, final C capability) {
+
+    List<C> batch = batches.get(collector);
+    if (batch == null) {
+      batch = new ArrayList<C>();
+      batches.put(collector, batch);
+    }
+    batch.add(capability);
+  }
+
+  private void addToDemandIndex(final RouteDemand routeDemand, final DemandEntry entry) {
+    EqualityTerm term = entry.anchorTerm;
+    Map<String, Set<DemandEntry>> entriesByValue = routeDemand.demandIndex.get(term.getKey());
+    if (entriesByValue == null) {
+      entriesByValue = new HashMap<String, Set<DemandEntry>>();
+      routeDemand.demandIndex.put(term.getKey(), entriesByValue);
+    }
+    Set<DemandEntry> entries = entriesByValue.get(term.getValue());
+    if (entries == null) {
+      entries = new LinkedHashSet<DemandEntry>();
+      entriesByValue.put(term.getValue(), entries);
+    }
+    entries.add(entry);
+  }
+
+  /**
+   * Closes the dispatcher and its tracker. The collectors of the dispatcher get a removal event for
+   * each capability that they got from the dispatcher.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      if (!opened) {
+        throw new IllegalStateException(
+            "Close was called on a Capability Dispatcher that was already closed.");
+      }
+      opened = false;
+      closeTracker();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  protected abstract void closeTracker();
+
+  /**
+   * Collects the capabilities that should be passed to a collector based on its demand.
+   */
+  private Set<C> collectDemandedCapabilities(final CollectorDemand demand) {
+    Set<C> result = new LinkedHashSet<C>();
+    for (DemandEntry entry : demand.entries) {
+      for (C capability : capabilityIndex.candidates(entry.route, entry.terms)) {
+        if (!result.contains(capability)
+            && entry.accepts(capabilityIndex.getAttributes(capability))) {
+          result.add(capability);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Indexes and routes new capabilities and adds them to the batches of the collectors that might
+   * need them. Capabilities that are already available are handled as modified. The deliveries are
+   * recorded when the batches are passed to the collectors.
+   */
+  private void deliverAddedCapabilities(final Collection<? extends C> capabilities,
+      final Map<AbstractCapabilityCollector<C>, List<C>> batches) {
+
+    for (C capability : capabilities) {
+      if (deliveries.containsKey(capability)) {
+        modifiedCapability(capability);
+        continue;
+      }
+      String route = getRoute(capability);
+      Map<String, ?> attributes = getAttributes(capability);
+      capabilityIndex.add(capability, route, attributes);
+      deliveries.put(capability, new LinkedHashSet<AbstractCapabilityCollector<C>>());
+
+      for (AbstractCapabilityCollector<C> collector : route(route, attributes)) {
+        addToBatch(batches, collector, capability);
+      }
+    }
+  }
+
+  /**
+   * Removes capabilities from the index and adds them to the batches of the collectors that got
+   * them. The removals are recorded when the batches are passed to the collectors.
+   */
+  private void deliverRemovedCapabilities(final Collection<? extends C> capabilities,
+      final Map<AbstractCapabilityCollector<C>, List<C>> batches) {
+
+    for (C capability : capabilities) {
+      capabilityIndex.remove(capability);
+      Set<AbstractCapabilityCollector<C>> targets = deliveries.remove(capability);
+      if (targets != null) {
+        for (AbstractCapabilityCollector<C> collector : targets) {
+          addToBatch(batches, collector, capability);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the attributes of a capability that are used to route the capability to the
+   * collectors. See {@link AbstractCapabilityCollector#getAttributes(Object)}.
+   *
+   * @param capability
+   *          The capability.
+   * @return The attributes of the capability or <code>null</code> if the capability should be
+   *         passed to every collector.
+   */
+  protected abstract Map<String, ?> getAttributes(C capability);
+
+  /**
+   * Returns the attributes that a capability was routed with the last time it was added or
+   * modified. Collectors use them instead of getting the attributes of the capability again. Must
+   * be called under the lock of the dispatcher.
+   *
+   * @param capability
+   *          The capability.
+   * @return The attributes or <code>null</code> if the capability is not tracked or its
+   *         attributes are not known.
+   */
+  Map<String, ?> getIndexedAttributes(final C capability) {
+    return capabilityIndex.getAttributes(capability);
+  }
+
+  ReentrantLock getLock() {
+    return lock;
+  }
+
+  /**
+   * Returns the routing key of a capability. A capability with a routing key is only passed to the
+   * collectors that have a requirement with the same routing key or without a routing key (see
+   * {@link RequirementDefinition#getRoute()}). The default implementation returns
+   * <code>null</code>, that means that the routing key is not known and every requirement is
+   * considered.
+   *
+   * @param capability
+   *          The capability.
+   * @return The routing key or <code>null</code>.
+   */
+  String getRoute(final C capability) {
+    return null;
+  }
+
+  private boolean isDelivered(final AbstractCapabilityCollector<C> collector,
+      final C capability) {
+    CollectorDemand demand = collectorDemands.get(collector);
+    return demand != null && demand.deliveredCapabilities.contains(capability);
+  }
+
+  private boolean isStringCollection(final Collection<?> collection) {
+    for (Object element : collection) {
+      if (!(element instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isOpened() {
+    return opened;
+  }
+
+  /**
+   * Should be called by the subclass if an already added capability is modified. Collectors that
+   * might need the capability from now on get an adding event, the ones that had it and still might
+   * need it get a modification event and the ones that do not need it anymore get a removal event.
+   *
+   * @param capability
+   *          The modified capability.
+   */
+  protected void modifiedCapability(final C capability) {
+    lock.lock();
+    try {
+      String route = getRoute(capability);
+      Map<String, ?> attributes = getAttributes(capability);
+      capabilityIndex.update(capability, route, attributes);
+
+      Set<AbstractCapabilityCollector<C>> targets = route(route, attributes);
+      Set<AbstractCapabilityCollector<C>> deliveredCollectors = deliveries.get(capability);
+      if (deliveredCollectors == null) {
+        deliveredCollectors = new LinkedHashSet<AbstractCapabilityCollector<C>>();
+        deliveries.put(capability, deliveredCollectors);
+      }
+      List<AbstractCapabilityCollector<C>> previousTargets =
+          new ArrayList<AbstractCapabilityCollector<C>>(deliveredCollectors);
+      for (AbstractCapabilityCollector<C> collector : previousTargets) {
+        if (targets.contains(collector)) {
+          if (isDelivered(collector, capability)) {
+            collector.modifiedCapablility(capability);
+          }
+        } else if (recordRemoval(collector, capability)) {
+          collector.removedCapability(capability);
+        }
+      }
+      for (AbstractCapabilityCollector<C> collector : targets) {
+        if (!previousTargets.contains(collector) && recordDelivery(collector, capability)) {
+          collector.addingCapablility(capability);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Opens the dispatcher and its tracker. Collectors can be opened before or after the dispatcher
+   * is opened, they get the capabilities as soon as both of them are open.
+   */
+  public void open() {
+    lock.lock();
+    try {
+      if (opened) {
+        throw new IllegalStateException(
+            "Open was called on a Capability Dispatcher that was already opened.");
+      }
+      opened = true;
+      openTracker();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  protected abstract void openTracker();
+
+  private List<C> recordDeliveries(final AbstractCapabilityCollector<C> collector,
+      final List<C> capabilities) {
+
+    List<C> result = new ArrayList<C>(capabilities.size());
+    for (C capability : capabilities) {
+      if (recordDelivery(collector, capability)) {
+        result.add(capability);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records that a capability is passed to a collector.
+   *
+   * @return <code>false</code> if the collector is not registered anymore, the capability is not
+   *         available anymore or the collector already got the capability. These can happen if a
+   *         consumer that was called during the same event opened or closed a collector or
+   *         changed the capabilities.
+   */
+  private boolean recordDelivery(final AbstractCapabilityCollector<C> collector,
+      final C capability) {
+
+    CollectorDemand demand = collectorDemands.get(collector);
+    Set<AbstractCapabilityCollector<C>> deliveredCollectors = deliveries.get(capability);
+    if (demand == null || deliveredCollectors == null
+        || !demand.deliveredCapabilities.add(capability)) {
+      return false;
+    }
+    deliveredCollectors.add(collector);
+    return true;
+  }
+
+  /**
+   * Records that a capability is taken away from a collector.
+   *
+   * @return <code>false</code> if the collector is not registered anymore or it does not have the
+   *         capability. An unregistered collector got the removal of its capabilities when it was
+   *         unregistered.
+   */
+  private boolean recordRemoval(final AbstractCapabilityCollector<C> collector,
+      final C capability) {
+
+    CollectorDemand demand = collectorDemands.get(collector);
+    if (demand == null || !demand.deliveredCapabilities.remove(capability)) {
+      return false;
+    }
+    Set<AbstractCapabilityCollector<C>> deliveredCollectors = deliveries.get(capability);
+    if (deliveredCollectors != null) {
+      deliveredCollectors.remove(collector);
+    }
+    return true;
+  }
+
+  private List<C> recordRemovals(final AbstractCapabilityCollector<C> collector,
+      final List<C> capabilities) {
+
+    List<C> result = new ArrayList<C>(capabilities.size());
+    for (C capability : capabilities) {
+      if (recordRemoval(collector, capability)) {
+        result.add(capability);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Registers an opened collector with its requirements and passes the available capabilities to
+   * it that it might need.
+   */
+  void register(final AbstractCapabilityCollector<C> collector,
+      final RequirementDefinition<C>[] requirements) {
+
+    lock.lock();
+    try {
+      CollectorDemand demand = new CollectorDemand();
+      collectorDemands.put(collector, demand);
+      registerDemand(collector, demand, requirements);
+      for (C capability : collectDemandedCapabilities(demand)) {
+        if (recordDelivery(collector, capability)) {
+          collector.addingCapablility(capability);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Registers the requirements of a collector in the demand index. Each requirement is anchored by
+   * the equality term that has the fewest demand entries so far, requirements without equality
+   * terms make the collector receive every capability.
+   */
+  private void registerDemand(final AbstractCapabilityCollector<C> collector,
+      final CollectorDemand demand, final RequirementDefinition<C>[] requirements) {
+
+    for (RequirementDefinition<C> requirement : requirements) {
+      String route = requirement.getRoute();
+      RouteDemand routeDemand = routeDemands.get(route);
+      if (routeDemand == null) {
+        routeDemand = new RouteDemand();
+        routeDemands.put(route, routeDemand);
+      }
+      List<EqualityTerm> terms = requirement.getEqualityTerms();
+      EqualityTerm anchorTerm = null;
+      int anchorSize = Integer.MAX_VALUE;
+      for (EqualityTerm term : terms) {
+        int size = 0;
+        Map<String, Set<DemandEntry>> entriesByValue =
+            routeDemand.demandIndex.get(term.getKey());
+        if (entriesByValue != null && entriesByValue.containsKey(term.getValue())) {
+          size = entriesByValue.get(term.getValue()).size();
+        }
+        if (size < anchorSize) {
+          anchorTerm = term;
+          anchorSize = size;
+        }
+      }
+
+      DemandEntry entry = new DemandEntry(collector, route, terms, anchorTerm);
+      demand.entries.add(entry);
+      if (anchorTerm == null) {
+        routeDemand.unconditionalDemand.add(entry);
+      } else {
+        addToDemandIndex(routeDemand, entry);
+      }
+      retainIndexedKeys(terms);
+    }
+  }
+
+  private void releaseIndexedKeys(final List<EqualityTerm> terms) {
+    for (EqualityTerm term : terms) {
+      String key = term.getKey();
+      int count = indexedKeyCounts.get(key);
+      if (count == 1) {
+        indexedKeyCounts.remove(key);
+        capabilityIndex.removeIndexedKey(key);
+      } else {
+        indexedKeyCounts.put(key, count - 1);
+      }
+    }
+  }
+
+  /**
+   * Should be called by the subclass if several capabilities are not available anymore at the same
+   * time. Each collector gets the removed capabilities that it had in one batch.
+   *
+   * @param capabilities
+   *          The removed capabilities.
+   */
+  protected void removedCapabilities(final Collection<? extends C> capabilities) {
+    lock.lock();
+    try {
+      Map<AbstractCapabilityCollector<C>, List<C>> batches =
+          new LinkedHashMap<AbstractCapabilityCollector<C>, List<C>>();
+      deliverRemovedCapabilities(capabilities, batches);
+      for (Map.Entry<AbstractCapabilityCollector<C>, List<C>> batch : batches.entrySet()) {
+        AbstractCapabilityCollector<C> collector = batch.getKey();
+        List<C> removedBatch = recordRemovals(collector, batch.getValue());
+        if (!removedBatch.isEmpty()) {
+          collector.removedCapabilities(removedBatch);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Should be called by the subclass if some capabilities are replaced by others at the same time.
+   * Each collector gets the new capabilities that it might need and the removed capabilities that
+   * it had in one call of
+   * {@link AbstractCapabilityCollector#replacedCapabilities(Collection, Collection)}.
+   *
+   * @param removedCapabilities
+   *          The capabilities that are not available anymore.
+   * @param addedCapabilities
+   *          The new capabilities.
+   */
+  protected void replacedCapabilities(final Collection<? extends C> removedCapabilities,
+      final Collection<? extends C> addedCapabilities) {
+    lock.lock();
+    try {
+      Map<AbstractCapabilityCollector<C>, List<C>> addedBatches =
+          new LinkedHashMap<AbstractCapabilityCollector<C>, List<C>>();
+      deliverAddedCapabilities(addedCapabilities, addedBatches);
+      Map<AbstractCapabilityCollector<C>, List<C>> removedBatches =
+          new LinkedHashMap<AbstractCapabilityCollector<C>, List<C>>();
+      deliverRemovedCapabilities(removedCapabilities, removedBatches);
+
+      Set<AbstractCapabilityCollector<C>> collectors =
+          new LinkedHashSet<AbstractCapabilityCollector<C>>(addedBatches.keySet());
+      collectors.addAll(removedBatches.keySet());
+      for (AbstractCapabilityCollector<C> collector : collectors) {
+        List<C> removedBatch = removedBatches.get(collector);
+        removedBatch = (removedBatch != null) ? recordRemovals(collector, removedBatch)
+            : Collections.<C> emptyList();
+        List<C> addedBatch = addedBatches.get(collector);
+        addedBatch = (addedBatch != null) ? recordDeliveries(collector, addedBatch)
+            : Collections.<C> emptyList();
+        if (!removedBatch.isEmpty() || !addedBatch.isEmpty()) {
+          collector.replacedCapabilities(removedBatch, addedBatch);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Should be called by the subclass if a capability that was previously added, is not available
+   * anymore. The collectors that got the capability get a removal event.
+   *
+   * @param capability
+   *          The removed capability.
+   */
+  protected void removedCapability(final C capability) {
+    lock.lock();
+    try {
+      capabilityIndex.remove(capability);
+      Set<AbstractCapabilityCollector<C>> targets = deliveries.get(capability);
+      if (targets == null) {
+        return;
+      }
+      for (AbstractCapabilityCollector<C> collector
+          : new ArrayList<AbstractCapabilityCollector<C>>(targets)) {
+        if (recordRemoval(collector, capability)) {
+          collector.removedCapability(capability);
+        }
+      }
+      deliveries.remove(capability);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void retainIndexedKeys(final List<EqualityTerm> terms) {
+    for (EqualityTerm term : terms) {
+      String key = term.getKey();
+      Integer count = indexedKeyCounts.get(key);
+      if (count == null) {
+        indexedKeyCounts.put(key, 1);
+        capabilityIndex.addIndexedKey(key);
+      } else {
+        indexedKeyCounts.put(key, count + 1);
+      }
+    }
+  }
+
+  /**
+   * Collects the collectors that might need a capability with the specified routing key and
+   * attributes.
+   */
+  private Set<AbstractCapabilityCollector<C>> route(final String route,
+      final Map<String, ?> attributes) {
+
+    if (route == null && attributes == null) {
+      return new LinkedHashSet<AbstractCapabilityCollector<C>>(collectorDemands.keySet());
+    }
+
+    Set<AbstractCapabilityCollector<C>> targets =
+        new LinkedHashSet<AbstractCapabilityCollector<C>>();
+    if (route == null) {
+      for (RouteDemand routeDemand : routeDemands.values()) {
+        routeDemand.addTargets(attributes, targets);
+      }
+      return targets;
+    }
+    RouteDemand unroutedDemand = routeDemands.get(null);
+    if (unroutedDemand != null) {
+      unroutedDemand.addTargets(attributes, targets);
+    }
+    RouteDemand routeDemand = routeDemands.get(route);
+    if (routeDemand != null) {
+      routeDemand.addTargets(attributes, targets);
+    }
+    return targets;
+  }
+
+  /**
+   * Unregisters a collector. The collector gets a removal event for each capability that it got
+   * from the dispatcher.
+   */
+  void unregister(final AbstractCapabilityCollector<C> collector) {
+    lock.lock();
+    try {
+      CollectorDemand demand = collectorDemands.remove(collector);
+      if (demand == null) {
+        return;
+      }
+      unregisterDemand(demand.entries);
+      demand.entries.clear();
+      List<C> capabilities = new ArrayList<C>(demand.deliveredCapabilities);
+      demand.deliveredCapabilities.clear();
+      for (C capability : capabilities) {
+        // The capability might be under removal by the event that called the consumer that closed
+        // the collector
+        Set<AbstractCapabilityCollector<C>> deliveredCollectors = deliveries.get(capability);
+        if (deliveredCollectors != null) {
+          deliveredCollectors.remove(collector);
+        }
+        collector.removedCapability(capability);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void unregisterDemand(final Collection<DemandEntry> demandEntries) {
+    for (DemandEntry entry : demandEntries) {
+      releaseIndexedKeys(entry.terms);
+      RouteDemand routeDemand = routeDemands.get(entry.route);
+      EqualityTerm term = entry.anchorTerm;
+      if (term == null) {
+        routeDemand.unconditionalDemand.remove(entry);
+      } else {
+        Map<String, Set<DemandEntry>> entriesByValue = routeDemand.demandIndex.get(term.getKey());
+        Set<DemandEntry> entries = entriesByValue.get(term.getValue());
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+          entriesByValue.remove(term.getValue());
+          if (entriesByValue.isEmpty()) {
+            routeDemand.demandIndex.remove(term.getKey());
+          }
+        }
+      }
+      if (routeDemand.isEmpty()) {
+        routeDemands.remove(entry.route);
+      }
+    }
+  }
+
+  /**
+   * Updates the demand of a registered collector after its requirements changed. The collector
+   * gets the capabilities that it might need from now on and loses the ones that it does not need
+   * anymore.
+   */
+  void updateDemand(final AbstractCapabilityCollector<C> collector,
+      final RequirementDefinition<C>[] requirements) {
+
+    lock.lock();
+    try {
+      CollectorDemand demand = collectorDemands.get(collector);
+      if (demand == null) {
+        return;
+      }
+      // The new demand is registered first so the keys that are kept are not unindexed meanwhile
+      List<DemandEntry> previousEntries = new ArrayList<DemandEntry>(demand.entries);
+      demand.entries.clear();
+      registerDemand(collector, demand, requirements);
+      unregisterDemand(previousEntries);
+
+      Set<C> demandedCapabilities = collectDemandedCapabilities(demand);
+      for (C capability : demandedCapabilities) {
+        if (recordDelivery(collector, capability)) {
+          collector.addingCapablility(capability);
+        }
+      }
+
+      List<C> undemandedCapabilities = new ArrayList<C>();
+      for (C capability : demand.deliveredCapabilities) {
+        if (!demandedCapabilities.contains(capability)) {
+          undemandedCapabilities.add(capability);
+        }
+      }
+      for (C capability : undemandedCapabilities) {
+        if (recordRemoval(collector, capability)) {
+          collector.removedCapability(capability);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -15,81 +15,95 @@
  */
 package org.everit.osgi.capabilitycollector;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.Filter;
 import org.osgi.framework.wiring.BundleCapability;
-import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.BundleTrackerCustomizer;
 
 /**
- * A Capability Collector that collects {@link BundleCapability}s.
+ * A Capability Collector that collects {@link BundleCapability}s. Collectors that are created with
+ * a {@link BundleCapabilityDispatcher} do not have their own tracker, they get the capabilities from
+ * the dispatcher.
+ *
+ * <p>
+ * A collector can track the capabilities of one namespace or of all namespaces. In the latter case
+ * the wiring of each bundle is read once and the capabilities are passed to the requirements of
+ * their namespace if the requirements are {@link BundleRequirementDefinition}s.
  */
 public class BundleCapabilityCollector extends AbstractCapabilityCollector<BundleCapability> {
 
   /**
-   * Tracks all {@link BundleCapability}s in the system. In case there is a new capability, it is
-   * passed to the {@link AbstractCapabilityCollector#addingCapablility(Object)} function. In case a
-   * {@link BundleCapability} is removed,
-   * {@link AbstractCapabilityCollector#removedCapability(Object)} is called.
+   * Tracks all {@link BundleCapability}s in the system. The capabilities of a new bundle are
+   * passed to the {@link AbstractCapabilityCollector#addingCapabilities(java.util.Collection)}
+   * function in one batch. In case a bundle is removed, its capabilities are passed to
+   * {@link AbstractCapabilityCollector#removedCapabilities(java.util.Collection)}. The tracked
+   * object of a bundle holds the capabilities that were added, so exactly the same capabilities
+   * are removed when the bundle is not tracked anymore. If the bundle gets a new wiring while it
+   * is tracked, the difference of the capabilities is passed to
+   * {@link AbstractCapabilityCollector#replacedCapabilities(java.util.Collection,
+   * java.util.Collection)}.
    */
-  private class TrackerCustomizer implements BundleTrackerCustomizer<Bundle> {
+  private class TrackerCustomizer implements BundleTrackerCustomizer<TrackedBundleCapabilities> {
 
     @Override
-    public Bundle addingBundle(final Bundle bundle, final BundleEvent event) {
-      BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
-      List<BundleCapability> capabilities = bundleWiring.getCapabilities(namespace);
-      for (BundleCapability bundleCapability : capabilities) {
-        addingCapablility(bundleCapability);
-      }
-
-      Lock writeLock = readWriteLock.writeLock();
-      writeLock.lock();
-      availableCapabilities.addAll(capabilities);
-      writeLock.unlock();
-
-      return bundle;
+    public TrackedBundleCapabilities addingBundle(final Bundle bundle, final BundleEvent event) {
+      TrackedBundleCapabilities trackedCapabilities =
+          new TrackedBundleCapabilities(bundle, namespace);
+      addingCapabilities(trackedCapabilities.getCapabilities());
+      return trackedCapabilities;
     }
 
     @Override
-    public void modifiedBundle(final Bundle bundle, final BundleEvent event, final Bundle object) {
-      // Do nothing as this is only about bundle state change.
+    public void modifiedBundle(final Bundle bundle, final BundleEvent event,
+        final TrackedBundleCapabilities trackedCapabilities) {
+      List<BundleCapability> removedCapabilities = new ArrayList<BundleCapability>();
+      List<BundleCapability> addedCapabilities = new ArrayList<BundleCapability>();
+      if (trackedCapabilities.refresh(bundle, removedCapabilities, addedCapabilities)) {
+        replacedCapabilities(removedCapabilities, addedCapabilities);
+      }
     }
 
     @Override
-    public void removedBundle(final Bundle bundle, final BundleEvent event, final Bundle object) {
-      BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
-      List<BundleCapability> capabilities = bundleWiring.getCapabilities(namespace);
+    public void removedBundle(final Bundle bundle, final BundleEvent event,
+        final TrackedBundleCapabilities trackedCapabilities) {
+      removedCapabilities(trackedCapabilities.getCapabilities());
+    }
 
-      Lock writeLock = readWriteLock.writeLock();
-      writeLock.lock();
-      availableCapabilities.removeAll(capabilities);
-      writeLock.unlock();
+  }
 
-      for (BundleCapability bundleCapability : capabilities) {
-        removedCapability(bundleCapability);
-      }
+  /**
+   * Checks whether the state mask contains only the states that are supported by the tracker of
+   * the collector.
+   *
+   * @param stateMask
+   *          The state mask.
+   * @throws IllegalArgumentException
+   *           if the mask contains an unsupported state.
+   */
+  static void validateStateMask(final int stateMask) {
+    if ((~(Bundle.RESOLVED | Bundle.STARTING | Bundle.STOPPING | Bundle.ACTIVE) & stateMask) > 0) {
+      throw new IllegalArgumentException(
+          "Only RESOLVED, STARTING, ACTIVE and STOPPING states"
+              + " are allowed in the bundle stateMask: " + stateMask);
     }
-
   }
 
-  private final Set<BundleCapability> availableCapabilities = new HashSet<BundleCapability>();
+  private final BundleCapabilityDispatcher dispatcher;
 
   private final String namespace;
 
-  private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+  private RequirementDefinition<BundleCapability>[] requirements;
 
-  private final BundleTracker<Bundle> tracker;
+  private final BundleTracker<TrackedBundleCapabilities> tracker;
 
   /**
    * Constructor.
@@ -98,7 +112,8 @@ public class BundleCapabilityCollector extends AbstractCapabilityCollector<Bundl
    *          The context of the bundle that collects the capabilities.
    * @param namespace
    *          The namespace of the {@link BundleCapability}. See
-   *          {@link BundleCapability#getNamespace()}.
+   *          {@link BundleCapability#getNamespace()}. In case of <code>null</code>, the
+   *          capabilities of all namespaces are tracked.
    * @param requirements
    *          The definition of requirements. If all has a matching Capability, the collector
    *          becomes satisfied.
@@ -113,42 +128,301 @@ public class BundleCapabilityCollector extends AbstractCapabilityCollector<Bundl
   public BundleCapabilityCollector(final BundleContext context, final String namespace,
       final RequirementDefinition<BundleCapability>[] requirements,
       final CapabilityConsumer<BundleCapability> capabilityConsumer, final int stateMask) {
-    super(requirements, capabilityConsumer);
+    this(context, namespace, requirements, NotificationSink.of(capabilityConsumer), stateMask);
+  }
 
-    if ((~(Bundle.RESOLVED | Bundle.STARTING | Bundle.STOPPING | Bundle.ACTIVE) & stateMask) > 0) {
-      throw new IllegalArgumentException(
-          "Only RESOLVED, STARTING, ACTIVE and STOPPING states"
-              + " are allowed in the bundle stateMask: " + stateMask);
-    }
+  /**
+   * Constructor of a collector that notifies its consumer only about the changes of the suitings.
+   *
+   * @param context
+   *          The context of the bundle that collects the capabilities.
+   * @param namespace
+   *          The namespace of the {@link BundleCapability}. See
+   *          {@link BundleCapability#getNamespace()}. In case of <code>null</code>, the
+   *          capabilities of all namespaces are tracked.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that gets the changes of the suitings.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states. Supported states are {@link Bundle#RESOLVED},
+   *          {@link Bundle#STARTING}, {@link Bundle#ACTIVE} and {@link Bundle#STOPPING}.
+   */
+  public BundleCapabilityCollector(final BundleContext context, final String namespace,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final CapabilityDeltaConsumer<BundleCapability> capabilityConsumer, final int stateMask) {
+    this(context, namespace, requirements, NotificationSink.of(capabilityConsumer), stateMask);
+  }
+
+  /**
+   * Constructor of a collector that passes the sequence number of each notification to its
+   * consumer.
+   *
+   * @param context
+   *          The context of the bundle that collects the capabilities.
+   * @param namespace
+   *          The namespace of the {@link BundleCapability}. See
+   *          {@link BundleCapability#getNamespace()}. In case of <code>null</code>, the
+   *          capabilities of all namespaces are tracked.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that gets the sequence numbers of the notifications.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states. Supported states are {@link Bundle#RESOLVED},
+   *          {@link Bundle#STARTING}, {@link Bundle#ACTIVE} and {@link Bundle#STOPPING}.
+   */
+  public BundleCapabilityCollector(final BundleContext context, final String namespace,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final SequencedCapabilityConsumer<BundleCapability> capabilityConsumer,
+      final int stateMask) {
+    this(context, namespace, requirements, NotificationSink.of(capabilityConsumer), stateMask);
+  }
 
+  private BundleCapabilityCollector(final BundleContext context, final String namespace,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final NotificationSink<BundleCapability> notificationSink, final int stateMask) {
+    super(requirements, notificationSink, new ReentrantLock(false));
+
+    validateStateMask(stateMask);
+
+    this.dispatcher = null;
     this.namespace = namespace;
-    tracker = new BundleTracker<Bundle>(context, stateMask, new TrackerCustomizer());
+    tracker = new BundleTracker<TrackedBundleCapabilities>(context, stateMask,
+        new TrackerCustomizer());
+  }
+
+  /**
+   * Constructor of a collector that tracks the capabilities of all namespaces with one
+   * {@link BundleTracker}. The requirements should be {@link BundleRequirementDefinition}s, so they
+   * are only matched against the capabilities of their own namespace.
+   *
+   * <p>
+   * The collector indexes the requirements and the capabilities by namespace first. A capability is
+   * only tested against the {@link BundleRequirementDefinition}s of its own namespace, even if the
+   * filter of a requirement has no equality term, and a requirement only looks for candidates
+   * among the capabilities of its own namespace. Requirements that are not
+   * {@link BundleRequirementDefinition}s match the capabilities of any namespace.
+   *
+   * @param context
+   *          The context of the bundle that collects the capabilities.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that will be called if there is a new matching Capability or one
+   *          previously matched is not available anymore.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states. Supported states are {@link Bundle#RESOLVED},
+   *          {@link Bundle#STARTING}, {@link Bundle#ACTIVE} and {@link Bundle#STOPPING}.
+   */
+  public BundleCapabilityCollector(final BundleContext context,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final CapabilityConsumer<BundleCapability> capabilityConsumer, final int stateMask) {
+    this(context, null, requirements, capabilityConsumer, stateMask);
+  }
+
+  /**
+   * Constructor of a collector that tracks the capabilities of all namespaces with one
+   * {@link BundleTracker} and notifies its consumer only about the changes of the suitings. See
+   * {@link #BundleCapabilityCollector(BundleContext, RequirementDefinition[], CapabilityConsumer,
+   * int)} for the matching of the namespaces.
+   *
+   * @param context
+   *          The context of the bundle that collects the capabilities.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that gets the changes of the suitings.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states. Supported states are {@link Bundle#RESOLVED},
+   *          {@link Bundle#STARTING}, {@link Bundle#ACTIVE} and {@link Bundle#STOPPING}.
+   */
+  public BundleCapabilityCollector(final BundleContext context,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final CapabilityDeltaConsumer<BundleCapability> capabilityConsumer, final int stateMask) {
+    this(context, null, requirements, capabilityConsumer, stateMask);
+  }
+
+  /**
+   * Constructor of a collector that tracks the capabilities of all namespaces with one
+   * {@link BundleTracker} and passes the sequence number of each notification to its consumer.
+   * See {@link #BundleCapabilityCollector(BundleContext, RequirementDefinition[],
+   * CapabilityConsumer, int)} for the matching of the namespaces.
+   *
+   * @param context
+   *          The context of the bundle that collects the capabilities.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that gets the sequence numbers of the notifications.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states. Supported states are {@link Bundle#RESOLVED},
+   *          {@link Bundle#STARTING}, {@link Bundle#ACTIVE} and {@link Bundle#STOPPING}.
+   */
+  public BundleCapabilityCollector(final BundleContext context,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final SequencedCapabilityConsumer<BundleCapability> capabilityConsumer,
+      final int stateMask) {
+    this(context, null, requirements, capabilityConsumer, stateMask);
+  }
+
+  /**
+   * Constructor of a collector that gets the capabilities from a shared dispatcher instead of
+   * opening its own {@link BundleTracker}.
+   *
+   * <p>
+   * The collectors of a dispatcher share the lock of the dispatcher and the consumers are called
+   * while that lock is held. A consumer that blocks stops the dispatching of the events to every
+   * other collector of the dispatcher. Slow consumers should get their notifications on another
+   * thread via {@link #setNotificationExecutor(java.util.concurrent.Executor)}. A consumer may
+   * open, close or update any collector of the same dispatcher.
+   *
+   * @param dispatcher
+   *          The dispatcher that tracks the capabilities of a namespace. The dispatcher must be
+   *          opened to get the capabilities.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that will be called if there is a new matching Capability or one
+   *          previously matched is not available anymore.
+   */
+  public BundleCapabilityCollector(final BundleCapabilityDispatcher dispatcher,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final CapabilityConsumer<BundleCapability> capabilityConsumer) {
+    this(dispatcher, requirements, NotificationSink.of(capabilityConsumer));
+  }
+
+  /**
+   * Constructor of a collector that gets the capabilities from a shared dispatcher and notifies
+   * its consumer only about the changes of the suitings. See
+   * {@link #BundleCapabilityCollector(BundleCapabilityDispatcher, RequirementDefinition[],
+   * CapabilityConsumer)} for the threading rules of the dispatcher.
+   *
+   * @param dispatcher
+   *          The dispatcher that tracks the capabilities of a namespace. The dispatcher must be
+   *          opened to get the capabilities.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that gets the changes of the suitings.
+   */
+  public BundleCapabilityCollector(final BundleCapabilityDispatcher dispatcher,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final CapabilityDeltaConsumer<BundleCapability> capabilityConsumer) {
+    this(dispatcher, requirements, NotificationSink.of(capabilityConsumer));
+  }
+
+  /**
+   * Constructor of a collector that gets the capabilities from a shared dispatcher and passes the
+   * sequence number of each notification to its consumer. See
+   * {@link #BundleCapabilityCollector(BundleCapabilityDispatcher, RequirementDefinition[],
+   * CapabilityConsumer)} for the threading rules of the dispatcher.
+   *
+   * @param dispatcher
+   *          The dispatcher that tracks the capabilities of a namespace. The dispatcher must be
+   *          opened to get the capabilities.
+   * @param requirements
+   *          The definition of requirements. If all has a matching Capability, the collector
+   *          becomes satisfied.
+   * @param capabilityConsumer
+   *          The consumer that gets the sequence numbers of the notifications.
+   */
+  public BundleCapabilityCollector(final BundleCapabilityDispatcher dispatcher,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final SequencedCapabilityConsumer<BundleCapability> capabilityConsumer) {
+    this(dispatcher, requirements, NotificationSink.of(capabilityConsumer));
+  }
+
+  private BundleCapabilityCollector(final BundleCapabilityDispatcher dispatcher,
+      final RequirementDefinition<BundleCapability>[] requirements,
+      final NotificationSink<BundleCapability> notificationSink) {
+    super(requirements, notificationSink,
+        Objects.requireNonNull(dispatcher, "Dispatcher must not be null").getLock());
+
+    this.dispatcher = dispatcher;
+    this.namespace = dispatcher.getNamespace();
+    this.requirements = requirements;
+    this.tracker = null;
   }
 
   @Override
   protected void closeTracker() {
-    tracker.close();
+    if (dispatcher != null) {
+      dispatcher.unregister(this);
+    } else {
+      tracker.close();
+    }
   }
 
+  /**
+   * Returns the attributes of the capability. The collector records the returned map when the
+   * capability is added and matches the requirements on the recorded map afterwards, so the
+   * attributes are not requested from the framework again. Collectors of a dispatcher reuse the
+   * map that the dispatcher recorded.
+   */
+  @Override
+  protected Map<String, ?> getAttributes(final BundleCapability capability) {
+    if (dispatcher != null) {
+      Map<String, ?> attributes = dispatcher.getIndexedAttributes(capability);
+      if (attributes != null) {
+        return attributes;
+      }
+    }
+    return capability.getAttributes();
+  }
+
+  /**
+   * Routes the capabilities by namespace, so a capability is only tested against the
+   * {@link BundleRequirementDefinition}s of its own namespace.
+   */
   @Override
-  protected BundleCapability[] getAvailableCapabilities() {
-    Lock readLock = readWriteLock.readLock();
-    readLock.lock();
-    BundleCapability[] result = availableCapabilities
-        .toArray(new BundleCapability[availableCapabilities.size()]);
-    readLock.unlock();
-    return result;
+  String getRoute(final BundleCapability capability) {
+    return capability.getNamespace();
   }
 
   @Override
   protected boolean matches(final BundleCapability capability, final Filter filter) {
-    Map<String, Object> attributes = capability.getAttributes();
+    Map<String, ?> attributes = getIndexedAttributes(capability);
+    if (attributes == null) {
+      attributes = capability.getAttributes();
+    }
     return filter.matches(attributes);
   }
 
   @Override
   protected void openTracker() {
-    tracker.open();
+    if (dispatcher != null) {
+      dispatcher.register(this, requirements);
+    } else {
+      tracker.open();
+    }
+  }
+
+  /**
+   * Updates the demand of the collector in the dispatcher if the collector uses a dispatcher.
+   */
+  @Override
+  protected void requirementsUpdated(
+      final RequirementDefinition<BundleCapability>[] newRequirements) {
+
+    if (dispatcher != null) {
+      requirements = newRequirements;
+      if (isOpened()) {
+        dispatcher.updateDemand(this, newRequirements);
+      }
+    }
   }
 
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.util.tracker.BundleTracker;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+
+/**
+ * An {@link AbstractCapabilityDispatcher} that tracks the {@link BundleCapability}s of a namespace
+ * or of all namespaces with one {@link BundleTracker} and passes them to the
+ * {@link BundleCapabilityCollector}s that are created with this dispatcher.
+ */
+public class BundleCapabilityDispatcher extends AbstractCapabilityDispatcher<BundleCapability> {
+
+  /**
+   * Passes the capabilities of the tracked bundles to the dispatcher. The tracked object of a
+   * bundle holds the capabilities that were added, so exactly the same capabilities are removed
+   * when the bundle is not tracked anymore. If the bundle gets a new wiring while it is tracked,
+   * only the difference of the capabilities is passed to the dispatcher.
+   */
+  private class TrackerCustomizer implements BundleTrackerCustomizer<TrackedBundleCapabilities> {
+
+    @Override
+    public TrackedBundleCapabilities addingBundle(final Bundle bundle, final BundleEvent event) {
+      TrackedBundleCapabilities trackedCapabilities =
+          new TrackedBundleCapabilities(bundle, namespace);
+      addingCapabilities(trackedCapabilities.getCapabilities());
+      return trackedCapabilities;
+    }
+
+    @Override
+    public void modifiedBundle(final Bundle bundle, final BundleEvent event,
+        final TrackedBundleCapabilities trackedCapabilities) {
+      List<BundleCapability> removedCapabilities = new ArrayList<BundleCapability>();
+      List<BundleCapability> addedCapabilities = new ArrayList<BundleCapability>();
+      if (trackedCapabilities.refresh(bundle, removedCapabilities, addedCapabilities)) {
+        replacedCapabilities(removedCapabilities, addedCapabilities);
+      }
+    }
+
+    @Override
+    public void removedBundle(final Bundle bundle, final BundleEvent event,
+        final TrackedBundleCapabilities trackedCapabilities) {
+      removedCapabilities(trackedCapabilities.getCapabilities());
+    }
+  }
+
+  private final String namespace;
+
+  private final BundleTracker<TrackedBundleCapabilities> tracker;
+
+  /**
+   * Constructor.
+   *
+   * @param context
+   *          The context of the bundle that tracks the capabilities.
+   * @param namespace
+   *          The namespace of the {@link BundleCapability}. See
+   *          {@link BundleCapability#getNamespace()}. In case of <code>null</code>, the
+   *          capabilities of all namespaces are tracked.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states. Supported states are {@link Bundle#RESOLVED},
+   *          {@link Bundle#STARTING}, {@link Bundle#ACTIVE} and {@link Bundle#STOPPING}.
+   */
+  public BundleCapabilityDispatcher(final BundleContext context, final String namespace,
+      final int stateMask) {
+    Objects.requireNonNull(context, "Context must not be null");
+    BundleCapabilityCollector.validateStateMask(stateMask);
+
+    this.namespace = namespace;
+    tracker = new BundleTracker<TrackedBundleCapabilities>(context, stateMask,
+        new TrackerCustomizer());
+  }
+
+  /**
+   * Constructor of a dispatcher that tracks the capabilities of all namespaces. The wiring of each
+   * bundle is read once and the collectors that use {@link BundleRequirementDefinition}s only get
+   * matched against the capabilities of the namespace of their requirements.
+   *
+   * @param context
+   *          The context of the bundle that tracks the capabilities.
+   * @param stateMask
+   *          Only those {@link BundleCapability}s are tracked that belong to a {@link Bundle} that
+   *          has any of the specified states.
+   */
+  public BundleCapabilityDispatcher(final BundleContext context, final int stateMask) {
+    this(context, null, stateMask);
+  }
+
+  @Override
+  protected void closeTracker() {
+    tracker.close();
+  }
+
+  @Override
+  protected Map<String, ?> getAttributes(final BundleCapability capability) {
+    return capability.getAttributes();
+  }
+
+  /**
+   * The namespace of the tracked {@link BundleCapability}s or <code>null</code> if the capabilities
+   * of all namespaces are tracked.
+   */
+  public String getNamespace() {
+    return namespace;
+  }
+
+  /**
+   * Routes the capabilities by namespace, so a capability is only passed to the collectors that
+   * have a {@link BundleRequirementDefinition} of its namespace or a requirement without a
+   * namespace.
+   */
+  @Override
+  String getRoute(final BundleCapability capability) {
+    return capability.getNamespace();
+  }
+
+  @Override
+  protected void openTracker() {
+    tracker.open();
+  }
+}
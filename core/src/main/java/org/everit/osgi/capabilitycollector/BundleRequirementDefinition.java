@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Map;
+import java.util.Objects;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * A requirement for a {@link BundleCapability} of a specific namespace. Requirements of different
+ * namespaces can be used in the same {@link BundleCapabilityCollector} if the collector tracks all
+ * namespaces, so the wiring of each bundle is read only once for all of them. The namespace is the
+ * routing key of the requirement: the collectors and the dispatchers index the requirements by
+ * namespace, so a capability is only tested against the requirements of its own namespace.
+ */
+public class BundleRequirementDefinition extends RequirementDefinition<BundleCapability> {
+
+  /**
+   * Checks the namespace of the capability before the predicate of the user. The capabilities are
+   * routed by namespace, the check is needed only for the capabilities of collectors that do not
+   * know the namespace of their capabilities.
+   */
+  private static final class NamespacePredicate implements CapabilityPredicate<BundleCapability> {
+
+    private final String namespace;
+
+    private final CapabilityPredicate<? super BundleCapability> predicate;
+
+    NamespacePredicate(final String namespace,
+        final CapabilityPredicate<? super BundleCapability> predicate) {
+      this.namespace = namespace;
+      this.predicate = predicate;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof NamespacePredicate)) {
+        return false;
+      }
+      NamespacePredicate other = (NamespacePredicate) obj;
+      return namespace.equals(other.namespace) && Objects.equals(predicate, other.predicate);
+    }
+
+    @Override
+    public int hashCode() {
+      return namespace.hashCode();
+    }
+
+    @Override
+    public boolean test(final BundleCapability capability) {
+      return namespace.equals(capability.getNamespace())
+          && (predicate == null || predicate.test(capability));
+    }
+
+    @Override
+    public String toString() {
+      return "NamespacePredicate [namespace=" + namespace + ", predicate=" + predicate + "]";
+    }
+  }
+
+  private final String namespace;
+
+  /**
+   * Constructor of {@link BundleRequirementDefinition}.
+   *
+   * @param requirementId
+   *          Id of the requirement that must be unique within the same collector.
+   * @param namespace
+   *          The namespace of the capabilities that can satisfy the requirement.
+   * @param filter
+   *          A capability can satisfy this requirement if the filter matches the capability.
+   * @param attributes
+   *          Additional metadata that can be used by the {@link CapabilityConsumer} implementation.
+   */
+  public BundleRequirementDefinition(final String requirementId, final String namespace,
+      final Filter filter, final Map<String, Object> attributes) {
+    this(requirementId, namespace, filter, null, attributes, Cardinality.MANDATORY);
+  }
+
+  /**
+   * Constructor of {@link BundleRequirementDefinition}.
+   *
+   * @param requirementId
+   *          Id of the requirement that must be unique within the same collector.
+   * @param namespace
+   *          The namespace of the capabilities that can satisfy the requirement.
+   * @param filter
+   *          The filter that the capability must match or <code>null</code>.
+   * @param predicate
+   *          The typed condition that the capability must fulfill or <code>null</code>.
+   * @param attributes
+   *          Additional metadata that can be used by the {@link CapabilityConsumer} implementation.
+   * @param cardinality
+   *          The number of capabilities that the requirement is wired to.
+   */
+  public BundleRequirementDefinition(final String requirementId, final String namespace,
+      final Filter filter, final CapabilityPredicate<? super BundleCapability> predicate,
+      final Map<String, Object> attributes, final Cardinality cardinality) {
+    super(requirementId, filter,
+        new NamespacePredicate(Objects.requireNonNull(namespace, "Namespace must be provided"),
+            predicate),
+        attributes, cardinality);
+    this.namespace = namespace;
+  }
+
+  /**
+   * The namespace of the capabilities that can satisfy the requirement. The predicate of the
+   * requirement (see {@link #getPredicate()}) checks the namespace before the predicate that was
+   * passed to the constructor.
+   */
+  public String getNamespace() {
+    return namespace;
+  }
+
+  @Override
+  String getRoute() {
+    return namespace;
+  }
+
+  @Override
+  public String toString() {
+    return "BundleRequirementDefinition [namespace=" + namespace + ", " + super.toString() + "]";
+  }
+}
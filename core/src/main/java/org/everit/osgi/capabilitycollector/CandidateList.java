@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable list of the candidates of a requirement in the order of their selection keys. The
+ * list is a persistent balanced tree: adding or removing a candidate creates a new list in
+ * logarithmic time that shares all unchanged nodes with the original one. This makes it possible
+ * to hand out the current candidates of a requirement with multiple cardinality in each
+ * notification without copying them.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+final class CandidateList<C> extends AbstractList<C> {
+
+  /**
+   * A candidate with the key that it is ordered by.
+   */
+  static final class Candidate<C> implements Comparable<Candidate<C>> {
+
+    private final C capability;
+
+    private final Comparable<?> key;
+
+    private final long sequence;
+
+    Candidate(final C capability, final Comparable<?> key, final long sequence) {
+      this.capability = capability;
+      this.key = key;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(final Candidate<C> o) {
+      if (key != null && o.key != null) {
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        int result = ((Comparable) key).compareTo(o.key);
+        if (result != 0) {
+          return result;
+        }
+      } else if (key != o.key) {
+        // Candidates without a key come after the ones with a key
+        return (key == null) ? 1 : -1;
+      }
+      return Long.compare(sequence, o.sequence);
+    }
+
+    C getCapability() {
+      return capability;
+    }
+
+    Comparable<?> getKey() {
+      return key;
+    }
+
+    long getSequence() {
+      return sequence;
+    }
+  }
+
+  /**
+   * An immutable node of the AVL tree.
+   */
+  private static final class Node<C> {
+
+    private final Candidate<C> candidate;
+
+    private final int height;
+
+    private final Node<C> left;
+
+    private final Node<C> right;
+
+    private final int size;
+
+    Node(final Node<C> left, final Candidate<C> candidate, final Node<C> right) {
+      this.left = left;
+      this.candidate = candidate;
+      this.right = right;
+      this.height = Math.max(height(left), height(right)) + 1;
+      this.size = size(left) + size(right) + 1;
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final CandidateList EMPTY = new CandidateList<Object>(null);
+
+  private static <C> Node<C> balance(final Node<C> left, final Candidate<C> candidate,
+      final Node<C> right) {
+
+    int difference = height(left) - height(right);
+    if (difference > 1) {
+      if (height(left.left) >= height(left.right)) {
+        return new Node<C>(left.left, left.candidate, new Node<C>(left.right, candidate, right));
+      }
+      return new Node<C>(new Node<C>(left.left, left.candidate, left.right.left),
+          left.right.candidate, new Node<C>(left.right.right, candidate, right));
+    }
+    if (difference < -1) {
+      if (height(right.right) >= height(right.left)) {
+        return new Node<C>(new Node<C>(left, candidate, right.left), right.candidate, right.right);
+      }
+      return new Node<C>(new Node<C>(left, candidate, right.left.left), right.left.candidate,
+          new Node<C>(right.left.right, right.candidate, right.right));
+    }
+    return new Node<C>(left, candidate, right);
+  }
+
+  @SuppressWarnings("unchecked")
+  static <C> CandidateList<C> empty() {
+    return EMPTY;
+  }
+
+  private static int height(final Node<?> node) {
+    return (node != null) ? node.height : 0;
+  }
+
+  private static <C> Node<C> insert(final Node<C> node, final Candidate<C> candidate) {
+    if (node == null) {
+      return new Node<C>(null, candidate, null);
+    }
+    if (candidate.compareTo(node.candidate) < 0) {
+      return balance(insert(node.left, candidate), node.candidate, node.right);
+    }
+    return balance(node.left, node.candidate, insert(node.right, candidate));
+  }
+
+  private static <C> Node<C> remove(final Node<C> node, final Candidate<C> candidate) {
+    if (node == null) {
+      return null;
+    }
+    int comparison = candidate.compareTo(node.candidate);
+    if (comparison < 0) {
+      Node<C> newLeft = remove(node.left, candidate);
+      return (newLeft == node.left) ? node : balance(newLeft, node.candidate, node.right);
+    }
+    if (comparison > 0) {
+      Node<C> newRight = remove(node.right, candidate);
+      return (newRight == node.right) ? node : balance(node.left, node.candidate, newRight);
+    }
+    if (node.left == null) {
+      return node.right;
+    }
+    if (node.right == null) {
+      return node.left;
+    }
+    Node<C> successor = node.right;
+    while (successor.left != null) {
+      successor = successor.left;
+    }
+    return balance(node.left, successor.candidate, remove(node.right, successor.candidate));
+  }
+
+  private static int size(final Node<?> node) {
+    return (node != null) ? node.size : 0;
+  }
+
+  private final Node<C> root;
+
+  private CandidateList(final Node<C> root) {
+    this.root = root;
+  }
+
+  /**
+   * Returns the first capability of the list or <code>null</code> if the list is empty.
+   */
+  C first() {
+    if (root == null) {
+      return null;
+    }
+    Node<C> node = root;
+    while (node.left != null) {
+      node = node.left;
+    }
+    return node.candidate.capability;
+  }
+
+  @Override
+  public C get(final int index) {
+    if (index < 0 || index >= size(root)) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size(root));
+    }
+    Node<C> node = root;
+    int remaining = index;
+    while (true) {
+      int leftSize = size(node.left);
+      if (remaining < leftSize) {
+        node = node.left;
+      } else if (remaining > leftSize) {
+        remaining -= leftSize + 1;
+        node = node.right;
+      } else {
+        return node.candidate.capability;
+      }
+    }
+  }
+
+  @Override
+  public Iterator<C> iterator() {
+    final Deque<Node<C>> path = new ArrayDeque<Node<C>>();
+    for (Node<C> node = root; node != null; node = node.left) {
+      path.push(node);
+    }
+    return new Iterator<C>() {
+
+      @Override
+      public boolean hasNext() {
+        return !path.isEmpty();
+      }
+
+      @Override
+      public C next() {
+        if (path.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        Node<C> node = path.pop();
+        for (Node<C> child = node.right; child != null; child = child.left) {
+          path.push(child);
+        }
+        return node.candidate.capability;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return size(root);
+  }
+
+  /**
+   * Returns a list that contains the candidate in addition to the elements of this list.
+   */
+  CandidateList<C> with(final Candidate<C> candidate) {
+    return new CandidateList<C>(insert(root, candidate));
+  }
+
+  /**
+   * Returns a list that contains the elements of this list except the candidate.
+   */
+  CandidateList<C> without(final Candidate<C> candidate) {
+    Node<C> newRoot = remove(root, candidate);
+    return (newRoot == root) ? this : new CandidateList<C>(newRoot);
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes of the suitings of a collector since the previous notification of a
+ * {@link CapabilityDeltaConsumer}. Only those requirements are reported whose capabilities
+ * changed.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+public final class CapabilityDelta<C> {
+
+  private final Map<String, Suiting<C>> currentSuitings;
+
+  private final boolean previouslySatisfied;
+
+  private final Map<String, Suiting<C>> previousSuitings;
+
+  private final boolean satisfied;
+
+  private final long sequence;
+
+  /**
+   * Constructor.
+   *
+   * @param previousSuitings
+   *          The suitings that the consumer knew before, by requirement id.
+   * @param currentSuitings
+   *          The suitings from now on by requirement id. Each key of the previous suitings must be
+   *          present in this map and the other way around. A removed requirement is represented by
+   *          a suiting without capability.
+   */
+  CapabilityDelta(final Map<String, Suiting<C>> previousSuitings,
+      final Map<String, Suiting<C>> currentSuitings, final boolean previouslySatisfied,
+      final boolean satisfied, final long sequence) {
+    this.previousSuitings = previousSuitings;
+    this.currentSuitings = currentSuitings;
+    this.previouslySatisfied = previouslySatisfied;
+    this.satisfied = satisfied;
+    this.sequence = sequence;
+  }
+
+  /**
+   * The suitings of the requirements that were wired to other capabilities. A requirement with
+   * multiple cardinality is reported here if any of its capabilities came or left.
+   *
+   * @return The new suitings of the requirements.
+   */
+  public List<Suiting<C>> getChanged() {
+    List<Suiting<C>> result = new ArrayList<Suiting<C>>();
+    for (Map.Entry<String, Suiting<C>> entry : currentSuitings.entrySet()) {
+      Suiting<C> previousSuiting = previousSuitings.get(entry.getKey());
+      Suiting<C> currentSuiting = entry.getValue();
+      if (previousSuiting.getCapability() != null && currentSuiting.getCapability() != null
+          && !previousSuiting.getCapabilities().equals(currentSuiting.getCapabilities())) {
+        result.add(entry.getValue());
+      }
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * The suitings of the requirements that were unsatisfied and got a capability.
+   *
+   * @return The new suitings of the requirements.
+   */
+  public List<Suiting<C>> getGained() {
+    List<Suiting<C>> result = new ArrayList<Suiting<C>>();
+    for (Map.Entry<String, Suiting<C>> entry : currentSuitings.entrySet()) {
+      if (previousSuitings.get(entry.getKey()).getCapability() == null
+          && entry.getValue().getCapability() != null) {
+        result.add(entry.getValue());
+      }
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * The previous suitings of the requirements that lost their capability or were removed from the
+   * collector.
+   *
+   * @return The previous suitings of the requirements that hold the lost capabilities.
+   */
+  public List<Suiting<C>> getLost() {
+    List<Suiting<C>> result = new ArrayList<Suiting<C>>();
+    for (Map.Entry<String, Suiting<C>> entry : previousSuitings.entrySet()) {
+      if (entry.getValue().getCapability() != null
+          && currentSuitings.get(entry.getKey()).getCapability() == null) {
+        result.add(entry.getValue());
+      }
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * The sequence number of the state change. See {@link SequencedCapabilityConsumer}.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Whether the collector was satisfied before the changes.
+   */
+  public boolean isPreviouslySatisfied() {
+    return previouslySatisfied;
+  }
+
+  /**
+   * Whether the collector became satisfied or unsatisfied.
+   */
+  public boolean isSatisfactionChanged() {
+    return previouslySatisfied != satisfied;
+  }
+
+  /**
+   * Whether all requirements of the collector are satisfied from now on.
+   */
+  public boolean isSatisfied() {
+    return satisfied;
+  }
+
+  /**
+   * Merges this delta with a subsequent one, so the result contains the changes of both.
+   */
+  CapabilityDelta<C> merge(final CapabilityDelta<C> next) {
+    Map<String, Suiting<C>> mergedPrevious = new LinkedHashMap<String, Suiting<C>>(
+        previousSuitings);
+    for (Map.Entry<String, Suiting<C>> entry : next.previousSuitings.entrySet()) {
+      if (!mergedPrevious.containsKey(entry.getKey())) {
+        mergedPrevious.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Map<String, Suiting<C>> mergedCurrent = new LinkedHashMap<String, Suiting<C>>(
+        currentSuitings);
+    mergedCurrent.putAll(next.currentSuitings);
+    return new CapabilityDelta<C>(mergedPrevious, mergedCurrent, previouslySatisfied,
+        next.satisfied, next.sequence);
+  }
+
+  @Override
+  public String toString() {
+    return "CapabilityDelta [sequence=" + sequence + ", satisfied=" + satisfied
+        + ", previouslySatisfied=" + previouslySatisfied + ", gained=" + getGained() + ", lost="
+        + getLost() + ", changed=" + getChanged() + "]";
+  }
+}
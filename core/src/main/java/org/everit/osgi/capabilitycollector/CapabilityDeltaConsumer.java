@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A consumer that gets only the changes of the suitings instead of the full suiting array like a
+ * {@link CapabilityConsumer}. Consumers with many requirements do not have to compare the suiting
+ * arrays of subsequent notifications.
+ *
+ * <p>
+ * The consumer is passed to the constructor of a collector instead of a {@link CapabilityConsumer}
+ * (e.g.
+ * {@link AbstractCapabilityCollector#AbstractCapabilityCollector(RequirementDefinition[],
+ * CapabilityDeltaConsumer)}).
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+@ConsumerType
+public interface CapabilityDeltaConsumer<C> {
+
+  /**
+   * The function that is called if there is any state change in the suitings or the collector.
+   *
+   * @param delta
+   *          The changes since the previous call of this function.
+   */
+  void acceptDelta(CapabilityDelta<C> delta);
+}
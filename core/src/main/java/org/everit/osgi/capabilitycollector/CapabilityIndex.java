@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the available capabilities of a collector and indexes them by the string values of those
+ * attributes that are used in the equality terms of the requirement filters. The index only
+ * narrows down the candidates, the filter of the requirement must still be evaluated on each of
+ * them.
+ *
+ * <p>
+ * A capability is always a candidate for an equality term if it is not possible to decide with a
+ * simple string comparison whether the term matches:
+ * <ul>
+ * <li>the attributes of the capability are not known (see
+ * {@link AbstractCapabilityCollector#getAttributes(Object)}),</li>
+ * <li>the value of the attribute is not a {@link String}, a {@link String} array or a
+ * {@link Collection} of {@link String}s, as the filter might convert the value of the term to the
+ * type of the attribute (e.g. <code>(key=00)</code> matches <code>0L</code>).</li>
+ * </ul>
+ *
+ * <p>
+ * The capabilities are partitioned by their routing key (see
+ * {@link AbstractCapabilityCollector#getRoute(Object)}), so the candidates of a requirement with
+ * a routing key are looked up only among the capabilities of the same routing key and the ones
+ * whose routing key is not known.
+ *
+ * <p>
+ * The class is not thread safe, it must be used under the lock of the collector.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+final class CapabilityIndex<C> {
+
+  /**
+   * The attributes of an indexed capability and the buckets that the capability is placed into.
+   */
+  private final class IndexEntry {
+
+    private final List<String[]> indexedValues = new ArrayList<String[]>();
+
+    private Map<String, ?> attributes;
+
+    private String route;
+
+    IndexEntry(final Map<String, ?> attributes, final String route) {
+      this.attributes = attributes;
+      this.route = route;
+    }
+  }
+
+  /**
+   * The capabilities that have the same routing key and their buckets.
+   */
+  private final class Partition {
+
+    private final Set<C> capabilities = new LinkedHashSet<C>();
+
+    /**
+     * Capabilities whose attributes are not known.
+     */
+    private final Set<C> opaqueCapabilities = new LinkedHashSet<C>();
+
+    /**
+     * Capabilities per attribute key that have a value that cannot be indexed by its string form.
+     */
+    private final Map<String, Set<C>> unindexableByKey = new HashMap<String, Set<C>>();
+
+    private final Map<String, Map<String, Set<C>>> valueIndex =
+        new HashMap<String, Map<String, Set<C>>>();
+
+    void addToBucket(final C capability, final IndexEntry entry, final String key,
+        final String value) {
+
+      Set<C> bucket;
+      if (value == null) {
+        bucket = unindexableByKey.get(key);
+        if (bucket == null) {
+          bucket = new LinkedHashSet<C>();
+          unindexableByKey.put(key, bucket);
+        }
+      } else {
+        Map<String, Set<C>> bucketsOfKey = valueIndex.get(key);
+        if (bucketsOfKey == null) {
+          bucketsOfKey = new HashMap<String, Set<C>>();
+          valueIndex.put(key, bucketsOfKey);
+        }
+        bucket = bucketsOfKey.get(value);
+        if (bucket == null) {
+          bucket = new LinkedHashSet<C>();
+          bucketsOfKey.put(value, bucket);
+        }
+      }
+      if (bucket.add(capability)) {
+        entry.indexedValues.add(new String[] { key, value });
+      }
+    }
+
+    Collection<C> candidates(final List<EqualityTerm> terms) {
+      Collection<C> result = capabilities;
+      int resultSize = capabilities.size();
+
+      for (EqualityTerm term : terms) {
+        String key = term.getKey();
+        if (!indexedKeys.contains(key)) {
+          continue;
+        }
+        Set<C> bucket = null;
+        Map<String, Set<C>> bucketsOfKey = valueIndex.get(key);
+        if (bucketsOfKey != null) {
+          bucket = bucketsOfKey.get(term.getValue());
+        }
+        Set<C> unindexable = unindexableByKey.get(key);
+
+        int size = sizeOf(bucket) + sizeOf(unindexable) + opaqueCapabilities.size();
+        if (size < resultSize) {
+          resultSize = size;
+          if (unindexable == null && opaqueCapabilities.isEmpty()) {
+            result = (bucket != null) ? bucket : Collections.<C> emptySet();
+          } else {
+            List<C> union = new ArrayList<C>(size);
+            if (bucket != null) {
+              union.addAll(bucket);
+            }
+            if (unindexable != null) {
+              union.addAll(unindexable);
+            }
+            union.addAll(opaqueCapabilities);
+            result = union;
+          }
+        }
+      }
+      return result;
+    }
+
+    void removeFromBucket(final C capability, final String key, final String value) {
+      if (value == null) {
+        Set<C> bucket = unindexableByKey.get(key);
+        if (bucket != null) {
+          bucket.remove(capability);
+          if (bucket.isEmpty()) {
+            unindexableByKey.remove(key);
+          }
+        }
+        return;
+      }
+      Map<String, Set<C>> bucketsOfKey = valueIndex.get(key);
+      if (bucketsOfKey == null) {
+        return;
+      }
+      Set<C> bucket = bucketsOfKey.get(value);
+      if (bucket != null) {
+        bucket.remove(capability);
+        if (bucket.isEmpty()) {
+          bucketsOfKey.remove(value);
+          if (bucketsOfKey.isEmpty()) {
+            valueIndex.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  private final Map<C, IndexEntry> entries = new LinkedHashMap<C, IndexEntry>();
+
+  private final Set<String> indexedKeys = new HashSet<String>();
+
+  /**
+   * The partitions by routing key. The capabilities whose routing key is not known are under the
+   * <code>null</code> key.
+   */
+  private final Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+
+  /**
+   * Adds a capability to the index. If the capability is already in the index, it is re-indexed
+   * with the new attributes.
+   *
+   * @param capability
+   *          The capability.
+   * @param route
+   *          The routing key of the capability or <code>null</code> if it is not known.
+   * @param attributes
+   *          The attributes of the capability or <code>null</code> if they are not known.
+   */
+  void add(final C capability, final String route, final Map<String, ?> attributes) {
+    IndexEntry entry = entries.get(capability);
+    if (entry != null) {
+      update(capability, route, attributes);
+      return;
+    }
+    entry = new IndexEntry(attributes, route);
+    entries.put(capability, entry);
+    indexEntry(capability, entry);
+  }
+
+  /**
+   * Starts indexing an attribute key. Only the available capabilities that have a value for the
+   * key are touched.
+   *
+   * @param key
+   *          The attribute key.
+   */
+  void addIndexedKey(final String key) {
+    if (!indexedKeys.add(key)) {
+      return;
+    }
+    for (Map.Entry<C, IndexEntry> mapEntry : entries.entrySet()) {
+      IndexEntry entry = mapEntry.getValue();
+      if (entry.attributes != null) {
+        indexValue(mapEntry.getKey(), entry, key);
+      }
+    }
+  }
+
+  /**
+   * Returns the capabilities that might match a requirement with the specified routing key and
+   * equality terms. In each partition, the equality term that has the fewest candidates is used
+   * for the lookup.
+   *
+   * @param route
+   *          The routing key of the requirement or <code>null</code> if the requirement does not
+   *          have one.
+   * @param terms
+   *          The mandatory equality terms of the filter.
+   * @return The candidates in a collection that must not be modified and must not be used after
+   *         the index is changed.
+   */
+  Collection<C> candidates(final String route, final List<EqualityTerm> terms) {
+    Partition unroutedPartition = partitions.get(null);
+    if (route != null) {
+      Partition partition = partitions.get(route);
+      if (partition == null) {
+        return (unroutedPartition != null) ? unroutedPartition.candidates(terms)
+            : Collections.<C> emptySet();
+      }
+      if (unroutedPartition == null) {
+        return partition.candidates(terms);
+      }
+      List<C> union = new ArrayList<C>(partition.candidates(terms));
+      union.addAll(unroutedPartition.candidates(terms));
+      return union;
+    }
+
+    if (partitions.size() == 1) {
+      return partitions.values().iterator().next().candidates(terms);
+    }
+    List<C> union = new ArrayList<C>();
+    for (Partition partition : partitions.values()) {
+      union.addAll(partition.candidates(terms));
+    }
+    return union;
+  }
+
+  void clear() {
+    entries.clear();
+    partitions.clear();
+  }
+
+  boolean contains(final C capability) {
+    return entries.containsKey(capability);
+  }
+
+  /**
+   * Returns the attributes that a capability was indexed with.
+   *
+   * @param capability
+   *          The capability.
+   * @return The attributes or <code>null</code> if the capability is not in the index or its
+   *         attributes are not known.
+   */
+  Map<String, ?> getAttributes(final C capability) {
+    IndexEntry entry = entries.get(capability);
+    return (entry != null) ? entry.attributes : null;
+  }
+
+  private void indexEntry(final C capability, final IndexEntry entry) {
+    Partition partition = partitions.get(entry.route);
+    if (partition == null) {
+      partition = new Partition();
+      partitions.put(entry.route, partition);
+    }
+    partition.capabilities.add(capability);
+    if (entry.attributes == null) {
+      partition.opaqueCapabilities.add(capability);
+      return;
+    }
+
+    for (String key : indexedKeys) {
+      indexValue(capability, entry, key);
+    }
+  }
+
+  private void indexValue(final C capability, final IndexEntry entry, final String key) {
+    Object value = entry.attributes.get(key);
+    if (value == null) {
+      return;
+    }
+    Partition partition = partitions.get(entry.route);
+    if (value instanceof String) {
+      partition.addToBucket(capability, entry, key, (String) value);
+    } else if (value instanceof String[]) {
+      for (String element : (String[]) value) {
+        partition.addToBucket(capability, entry, key, element);
+      }
+    } else if (value instanceof Collection && isStringCollection((Collection<?>) value)) {
+      for (Object element : (Collection<?>) value) {
+        partition.addToBucket(capability, entry, key, (String) element);
+      }
+    } else {
+      partition.addToBucket(capability, entry, key, null);
+    }
+  }
+
+  private boolean isStringCollection(final Collection<?> collection) {
+    for (Object element : collection) {
+      if (!(element instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes a capability from the index.
+   *
+   * @param capability
+   *          The capability.
+   * @return <code>true</code> if the capability was in the index.
+   */
+  boolean remove(final C capability) {
+    IndexEntry entry = entries.remove(capability);
+    if (entry == null) {
+      return false;
+    }
+    unindexEntry(capability, entry);
+    return true;
+  }
+
+  /**
+   * Stops indexing an attribute key. The buckets of the key are dropped, the other keys are not
+   * touched.
+   *
+   * @param key
+   *          The attribute key.
+   */
+  void removeIndexedKey(final String key) {
+    if (!indexedKeys.remove(key)) {
+      return;
+    }
+    for (Partition partition : partitions.values()) {
+      partition.valueIndex.remove(key);
+      partition.unindexableByKey.remove(key);
+    }
+    for (IndexEntry entry : entries.values()) {
+      Iterator<String[]> iterator = entry.indexedValues.iterator();
+      while (iterator.hasNext()) {
+        if (key.equals(iterator.next()[0])) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the attribute keys that are used in the equality terms of the requirements. Only the
+   * keys that are dropped or added are unindexed or indexed.
+   *
+   * @param keys
+   *          The attribute keys that should be indexed.
+   */
+  void setIndexedKeys(final Set<String> keys) {
+    for (String key : new ArrayList<String>(indexedKeys)) {
+      if (!keys.contains(key)) {
+        removeIndexedKey(key);
+      }
+    }
+    for (String key : keys) {
+      addIndexedKey(key);
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private int sizeOf(final Set<C> set) {
+    return (set != null) ? set.size() : 0;
+  }
+
+  private void unindexEntry(final C capability, final IndexEntry entry) {
+    Partition partition = partitions.get(entry.route);
+    partition.capabilities.remove(capability);
+    if (entry.attributes == null) {
+      partition.opaqueCapabilities.remove(capability);
+    }
+    for (String[] indexedValue : entry.indexedValues) {
+      partition.removeFromBucket(capability, indexedValue[0], indexedValue[1]);
+    }
+    entry.indexedValues.clear();
+    if (partition.capabilities.isEmpty()) {
+      partitions.remove(entry.route);
+    }
+  }
+
+  /**
+   * Re-indexes a capability that is already in the index.
+   *
+   * @param capability
+   *          The capability.
+   * @param route
+   *          The routing key of the capability or <code>null</code> if it is not known.
+   * @param attributes
+   *          The new attributes of the capability or <code>null</code> if they are not known.
+   */
+  void update(final C capability, final String route, final Map<String, ?> attributes) {
+    IndexEntry entry = entries.get(capability);
+    if (entry == null) {
+      add(capability, route, attributes);
+      return;
+    }
+    unindexEntry(capability, entry);
+    entry.attributes = attributes;
+    entry.route = route;
+    indexEntry(capability, entry);
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+/**
+ * A typed condition that a capability must fulfill to satisfy a requirement. It can be used
+ * instead of or in addition to the filter of a {@link RequirementDefinition} if the condition is
+ * easier or cheaper to check on the capability object itself than with an LDAP filter.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+public interface CapabilityPredicate<C> {
+
+  /**
+   * Checks whether a capability fulfills the condition. The method is called while the collector
+   * holds its lock, so it should return quickly and must not call the collector.
+   *
+   * @param capability
+   *          The capability.
+   * @return <code>true</code> if the capability fulfills the condition.
+   */
+  boolean test(C capability);
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+/**
+ * The number of capabilities that a requirement is wired to.
+ */
+public enum Cardinality {
+
+  /**
+   * The requirement is wired to one capability and it is satisfied only if there is a matching
+   * capability (1..1). This is the default cardinality.
+   */
+  MANDATORY(false, false),
+
+  /**
+   * The requirement is wired to one capability if there is a matching one, but it is satisfied
+   * also without a capability (0..1).
+   */
+  OPTIONAL(true, false),
+
+  /**
+   * The requirement is wired to all matching capabilities and it is satisfied also if there is
+   * none (0..n).
+   */
+  MULTIPLE(true, true),
+
+  /**
+   * The requirement is wired to all matching capabilities and it is satisfied only if there is at
+   * least one (1..n).
+   */
+  AT_LEAST_ONE(false, true);
+
+  private final boolean multiple;
+
+  private final boolean optional;
+
+  Cardinality(final boolean optional, final boolean multiple) {
+    this.optional = optional;
+    this.multiple = multiple;
+  }
+
+  /**
+   * Whether the requirement is wired to all matching capabilities.
+   */
+  public boolean isMultiple() {
+    return multiple;
+  }
+
+  /**
+   * Whether the requirement is satisfied without a capability.
+   */
+  public boolean isOptional() {
+    return optional;
+  }
+}
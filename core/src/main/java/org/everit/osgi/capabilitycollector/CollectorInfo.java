@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.List;
+
+/**
+ * An immutable description of an opened collector in a {@link CollectorRegistry}. The rates are
+ * computed from the statistics of the collector, so they are zero if the statistics of the
+ * collector are not enabled.
+ */
+public final class CollectorInfo {
+
+  private static final double NANOS_PER_SECOND = 1000000000d;
+
+  private static double perSecond(final long count, final long nanos) {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return count * NANOS_PER_SECOND / nanos;
+  }
+
+  private final double eventsPerSecond;
+
+  private final long filterEvaluations;
+
+  private final long generation;
+
+  private final long id;
+
+  private final long lockHoldNanos;
+
+  private final double notificationsPerSecond;
+
+  private final String[] requirementIds;
+
+  private final boolean satisfied;
+
+  private final boolean statisticsEnabled;
+
+  private final String type;
+
+  private final long unsatisfiedNanos;
+
+  private final String[] wirings;
+
+  CollectorInfo(final long id, final AbstractCapabilityCollector<?> collector) {
+    this.id = id;
+    this.type = collector.getClass().getName();
+
+    CollectorState<?> state = collector.getState();
+    Suiting<?>[] suitings = state.getSuitings();
+    this.satisfied = state.isSatisfied();
+    this.generation = state.getGeneration();
+    this.requirementIds = new String[suitings.length];
+    this.wirings = new String[suitings.length];
+    for (int i = 0; i < suitings.length; i++) {
+      String requirementId = suitings[i].getRequirement().getRequirementId();
+      List<?> capabilities = suitings[i].getCapabilities();
+      requirementIds[i] = requirementId;
+      wirings[i] = requirementId + " -> " + (capabilities.isEmpty() ? "" : capabilities);
+    }
+
+    CollectorStatistics statistics = collector.getStatistics();
+    this.statisticsEnabled = (statistics != null);
+    if (statistics != null) {
+      long events = statistics.getAddedCapabilities() + statistics.getModifiedCapabilities()
+          + statistics.getRemovedCapabilities();
+      this.eventsPerSecond = perSecond(events, statistics.getElapsedNanos());
+      this.notificationsPerSecond =
+          perSecond(statistics.getNotifications(), statistics.getElapsedNanos());
+      this.filterEvaluations = statistics.getFilterEvaluations();
+      this.lockHoldNanos = statistics.getLockHoldNanos();
+      this.unsatisfiedNanos = statistics.getUnsatisfiedNanos();
+    } else {
+      this.eventsPerSecond = 0;
+      this.notificationsPerSecond = 0;
+      this.filterEvaluations = 0;
+      this.lockHoldNanos = 0;
+      this.unsatisfiedNanos = 0;
+    }
+  }
+
+  /**
+   * The number of capability events (additions, modifications and removals) per second since the
+   * statistics of the collector were enabled.
+   */
+  public double getEventsPerSecond() {
+    return eventsPerSecond;
+  }
+
+  /**
+   * See {@link CollectorStatistics#getFilterEvaluations()}.
+   */
+  public long getFilterEvaluations() {
+    return filterEvaluations;
+  }
+
+  /**
+   * The generation of the state of the collector. See {@link CollectorState#getGeneration()}. A
+   * quickly growing generation shows a flapping collector.
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * The id of the collector in the registry.
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * See {@link CollectorStatistics#getLockHoldNanos()}.
+   */
+  public long getLockHoldNanos() {
+    return lockHoldNanos;
+  }
+
+  /**
+   * The number of consumer notifications per second since the statistics of the collector were
+   * enabled.
+   */
+  public double getNotificationsPerSecond() {
+    return notificationsPerSecond;
+  }
+
+  /**
+   * The ids of the requirements of the collector.
+   */
+  public String[] getRequirementIds() {
+    return requirementIds.clone();
+  }
+
+  /**
+   * The class name of the collector.
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * See {@link CollectorStatistics#getUnsatisfiedNanos()}.
+   */
+  public long getUnsatisfiedNanos() {
+    return unsatisfiedNanos;
+  }
+
+  /**
+   * The capabilities that the requirements are wired to in the form
+   * <code>requirementId -&gt; [capabilities]</code>.
+   */
+  public String[] getWirings() {
+    return wirings.clone();
+  }
+
+  public boolean isSatisfied() {
+    return satisfied;
+  }
+
+  /**
+   * Whether the statistics of the collector are enabled.
+   */
+  public boolean isStatisticsEnabled() {
+    return statisticsEnabled;
+  }
+
+  @Override
+  public String toString() {
+    return "CollectorInfo [id=" + id + ", type=" + type + ", satisfied=" + satisfied
+        + ", generation=" + generation + ", eventsPerSecond=" + eventsPerSecond + "]";
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * An inventory of opened collectors. A collector that has a registry (see
+ * {@link AbstractCapabilityCollector#setCollectorRegistry(CollectorRegistry)}) registers itself
+ * when it is opened and unregisters itself when it is closed. The registry can be published as an
+ * MXBean and as an OSGi service by {@link #publish(BundleContext)}, so the collectors of a live
+ * framework can be inspected.
+ */
+public class CollectorRegistry implements CollectorRegistryMXBean {
+
+  /**
+   * The domain of the object names of the published registries.
+   */
+  public static final String JMX_DOMAIN = "org.everit.osgi.capabilitycollector";
+
+  private final Map<AbstractCapabilityCollector<?>, Long> collectors =
+      new ConcurrentHashMap<AbstractCapabilityCollector<?>, Long>();
+
+  private final boolean enableStatistics;
+
+  private final AtomicLong nextId = new AtomicLong();
+
+  private ObjectName objectName;
+
+  private ServiceRegistration<CollectorRegistry> serviceRegistration;
+
+  /**
+   * Constructor of a registry that does not change the statistics settings of the collectors.
+   */
+  public CollectorRegistry() {
+    this(false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param enableStatistics
+   *          Whether the statistics of the collectors should be enabled when they are registered,
+   *          so the rates of every collector are available in the registry.
+   */
+  public CollectorRegistry(final boolean enableStatistics) {
+    this.enableStatistics = enableStatistics;
+  }
+
+  @Override
+  public int getCollectorCount() {
+    return collectors.size();
+  }
+
+  @Override
+  public List<CollectorInfo> getCollectors() {
+    List<CollectorInfo> result = new ArrayList<CollectorInfo>(collectors.size());
+    for (Entry<AbstractCapabilityCollector<?>, Long> entry : collectors.entrySet()) {
+      result.add(new CollectorInfo(entry.getValue(), entry.getKey()));
+    }
+    return result;
+  }
+
+  /**
+   * Registers the registry as an OSGi service and as an MXBean in the platform MBean server. The
+   * name of the MXBean is <code>org.everit.osgi.capabilitycollector:type=CollectorRegistry,
+   * bundle=&lt;bundle id of the context&gt;</code>.
+   *
+   * @param context
+   *          The context that registers the service.
+   * @throws IllegalStateException
+   *           if the registry is already published or the MXBean cannot be registered.
+   */
+  public synchronized void publish(final BundleContext context) {
+    Objects.requireNonNull(context, "Context must not be null");
+    if (serviceRegistration != null) {
+      throw new IllegalStateException("Collector registry is already published");
+    }
+
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    Hashtable<String, String> keys = new Hashtable<String, String>();
+    keys.put("type", "CollectorRegistry");
+    keys.put("bundle", String.valueOf(context.getBundle().getBundleId()));
+    try {
+      objectName = new ObjectName(JMX_DOMAIN, keys);
+      mbeanServer.registerMBean(this, objectName);
+    } catch (JMException e) {
+      objectName = null;
+      throw new IllegalStateException("Cannot register collector registry MXBean", e);
+    }
+
+    serviceRegistration = context.registerService(CollectorRegistry.class, this, null);
+  }
+
+  void register(final AbstractCapabilityCollector<?> collector) {
+    if (enableStatistics) {
+      collector.setStatisticsEnabled(true);
+    }
+    collectors.put(collector, nextId.incrementAndGet());
+  }
+
+  void unregister(final AbstractCapabilityCollector<?> collector) {
+    collectors.remove(collector);
+  }
+
+  /**
+   * Unregisters the OSGi service and the MXBean of the registry.
+   *
+   * @throws IllegalStateException
+   *           if the registry is not published.
+   */
+  public synchronized void unpublish() {
+    if (serviceRegistration == null) {
+      throw new IllegalStateException("Collector registry is not published");
+    }
+    try {
+      serviceRegistration.unregister();
+    } finally {
+      serviceRegistration = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        throw new IllegalStateException("Cannot unregister collector registry MXBean", e);
+      } finally {
+        objectName = null;
+      }
+    }
+  }
+}
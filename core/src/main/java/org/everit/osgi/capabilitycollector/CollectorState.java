@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the state of a capability collector. See
+ * {@link AbstractCapabilityCollector#getState()}.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+public final class CollectorState<C> {
+
+  private final long generation;
+
+  private final boolean satisfied;
+
+  private final Suiting<C>[] suitings;
+
+  CollectorState(final Suiting<C>[] suitings, final boolean satisfied, final long generation) {
+    this.suitings = suitings;
+    this.satisfied = satisfied;
+    this.generation = generation;
+  }
+
+  /**
+   * The generation of the state. The generation is increased each time the state of the collector
+   * changes, so a snapshot with a higher generation is always newer.
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * The suitings of the collector at the time of the snapshot.
+   *
+   * @return A copy of the suitings that can be modified by the caller.
+   */
+  public Suiting<C>[] getSuitings() {
+    return suitings.clone();
+  }
+
+  /**
+   * Whether all requirements of the collector were satisfied at the time of the snapshot.
+   */
+  public boolean isSatisfied() {
+    return satisfied;
+  }
+
+  @Override
+  public String toString() {
+    return "CollectorState [generation=" + generation + ", satisfied=" + satisfied
+        + ", suitings=" + Arrays.toString(suitings) + "]";
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+/**
+ * An immutable snapshot of the statistics of a capability collector. See
+ * {@link AbstractCapabilityCollector#getStatistics()}. All counters start from zero when the
+ * statistics are enabled and the durations are in nanoseconds.
+ */
+public final class CollectorStatistics {
+
+  private final long addedCapabilities;
+
+  private final long elapsedNanos;
+
+  private final long filterEvaluations;
+
+  private final long lockAcquisitions;
+
+  private final long lockHoldNanos;
+
+  private final long lockWaitNanos;
+
+  private final long modifiedCapabilities;
+
+  private final long notificationNanos;
+
+  private final long notifications;
+
+  private final long removedCapabilities;
+
+  private final long requirementUpdates;
+
+  private final long rescans;
+
+  private final long unsatisfiedNanos;
+
+  CollectorStatistics(final StatisticsRecorder recorder, final long nowNanos) {
+    addedCapabilities = recorder.addedCapabilities.get();
+    modifiedCapabilities = recorder.modifiedCapabilities.get();
+    removedCapabilities = recorder.removedCapabilities.get();
+    requirementUpdates = recorder.requirementUpdates.get();
+    filterEvaluations = recorder.filterEvaluations.get();
+    rescans = recorder.rescans.get();
+    notifications = recorder.notifications.get();
+    notificationNanos = recorder.notificationNanos.get();
+    lockAcquisitions = recorder.lockAcquisitions.get();
+    lockWaitNanos = recorder.lockWaitNanos.get();
+    lockHoldNanos = recorder.lockHoldNanos.get();
+    unsatisfiedNanos = recorder.getUnsatisfiedNanos(nowNanos);
+    elapsedNanos = nowNanos - recorder.startNanos;
+  }
+
+  /**
+   * The number of capabilities that were added to the collector.
+   */
+  public long getAddedCapabilities() {
+    return addedCapabilities;
+  }
+
+  /**
+   * The time since the statistics were enabled.
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * The number of times a capability was matched against a requirement.
+   */
+  public long getFilterEvaluations() {
+    return filterEvaluations;
+  }
+
+  /**
+   * The number of times the collector acquired its lock. Reentrant acquisitions are not counted.
+   */
+  public long getLockAcquisitions() {
+    return lockAcquisitions;
+  }
+
+  /**
+   * The time the collector held its lock.
+   */
+  public long getLockHoldNanos() {
+    return lockHoldNanos;
+  }
+
+  /**
+   * The time the collector waited for its lock. The lock of a collector that is created with a
+   * dispatcher is shared with the dispatcher and the other collectors of the dispatcher.
+   */
+  public long getLockWaitNanos() {
+    return lockWaitNanos;
+  }
+
+  /**
+   * The number of modifications of capabilities that the collector received.
+   */
+  public long getModifiedCapabilities() {
+    return modifiedCapabilities;
+  }
+
+  /**
+   * The time that the consumer spent processing the notifications.
+   */
+  public long getNotificationNanos() {
+    return notificationNanos;
+  }
+
+  /**
+   * The number of times the consumer was called.
+   */
+  public long getNotifications() {
+    return notifications;
+  }
+
+  /**
+   * The number of capabilities that were removed from the collector.
+   */
+  public long getRemovedCapabilities() {
+    return removedCapabilities;
+  }
+
+  /**
+   * The number of times the requirements of the collector were updated.
+   */
+  public long getRequirementUpdates() {
+    return requirementUpdates;
+  }
+
+  /**
+   * The number of times all available capabilities were searched for the matches of a requirement
+   * (e.g. when the collector is opened or a requirement is changed).
+   */
+  public long getRescans() {
+    return rescans;
+  }
+
+  /**
+   * The time the collector spent opened and unsatisfied.
+   */
+  public long getUnsatisfiedNanos() {
+    return unsatisfiedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "CollectorStatistics [elapsedNanos=" + elapsedNanos + ", addedCapabilities="
+        + addedCapabilities + ", modifiedCapabilities=" + modifiedCapabilities
+        + ", removedCapabilities=" + removedCapabilities + ", requirementUpdates="
+        + requirementUpdates + ", filterEvaluations=" + filterEvaluations + ", rescans=" + rescans
+        + ", notifications=" + notifications + ", notificationNanos=" + notificationNanos
+        + ", lockAcquisitions=" + lockAcquisitions + ", lockWaitNanos=" + lockWaitNanos
+        + ", lockHoldNanos=" + lockHoldNanos + ", unsatisfiedNanos=" + unsatisfiedNanos + "]";
+  }
+}
@@ -0,0 +1,795 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.Version;
+
+/**
+ * An LDAP filter that is parsed once and evaluated on the attributes of capabilities. The
+ * comparison operands of the filter are converted to the type of the attribute value at the first
+ * evaluation and the converted operand is reused as long as the attribute has the same type, so
+ * the type coercion of {@link Filter#matches(Map)} is not repeated for each capability.
+ *
+ * <p>
+ * The evaluation follows the rules of the OSGi core specification: an attribute value is compared
+ * as a {@link String}, a number, a {@link Character}, a {@link Boolean}, a {@link Version} or any
+ * other type that can be created from the operand with a public static <code>valueOf(String)</code>
+ * method or a public constructor with a {@link String} parameter. Arrays and collections match if
+ * any of their elements matches. The attribute keys are looked up in the map as they are, so it is
+ * the map that decides whether the keys are case sensitive.
+ *
+ * <p>
+ * The filter is kept in a canonical form: nested and and or operations are flattened, their
+ * operands are sorted and deduplicated and double negations are removed. Filters that are equal in
+ * their canonical form can share their nodes and the results of the shared nodes can be memoized
+ * during the evaluation of a capability (see {@link FilterPool}).
+ *
+ * <p>
+ * Instances are thread safe, but an {@link Evaluation} must be used by one thread at a time.
+ */
+final class CompiledFilter {
+
+  /**
+   * A comparison of an attribute with an operand.
+   */
+  private static final class Comparison extends Node {
+
+    private final String approximateValue;
+
+    private final String key;
+
+    /**
+     * The operand converted to the type of the attribute value that the comparison was evaluated
+     * on most recently.
+     */
+    private volatile ConvertedOperand lastConvertedOperand;
+
+    private final int operator;
+
+    private final String value;
+
+    Comparison(final String key, final int operator, final String value, final int id) {
+      super("(" + key + OPERATOR_SYMBOLS[operator] + escape(value) + ")", id);
+      this.key = key;
+      this.operator = operator;
+      this.value = value;
+      this.approximateValue = (operator == APPROX) ? normalizeApproximate(value) : null;
+    }
+
+    private boolean compareObject(final Object attributeValue) {
+      Object operand = convertOperand(attributeValue.getClass());
+      if (operand == null) {
+        return false;
+      }
+      if (operator == APPROX && attributeValue instanceof Character) {
+        return Character.toLowerCase((Character) attributeValue) == Character
+            .toLowerCase((Character) operand);
+      }
+      if (attributeValue instanceof Boolean || !(attributeValue instanceof Comparable)) {
+        return attributeValue.equals(operand);
+      }
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      int result = ((Comparable) attributeValue).compareTo(operand);
+      switch (operator) {
+        case GREATER_EQUAL:
+          return result >= 0;
+        case LESS_EQUAL:
+          return result <= 0;
+        default:
+          return result == 0;
+      }
+    }
+
+    private boolean compareString(final String attributeValue) {
+      switch (operator) {
+        case APPROX:
+          return normalizeApproximate(attributeValue).equalsIgnoreCase(approximateValue);
+        case GREATER_EQUAL:
+          return attributeValue.compareTo(value) >= 0;
+        case LESS_EQUAL:
+          return attributeValue.compareTo(value) <= 0;
+        default:
+          return attributeValue.equals(value);
+      }
+    }
+
+    private Object convertOperand(final Class<?> type) {
+      ConvertedOperand convertedOperand = lastConvertedOperand;
+      if (convertedOperand == null || convertedOperand.type != type) {
+        convertedOperand = new ConvertedOperand(type, convert(type, value));
+        lastConvertedOperand = convertedOperand;
+      }
+      return convertedOperand.value;
+    }
+
+    @Override
+    boolean evaluate(final Map<String, ?> attributes, final Evaluation evaluation) {
+      Object attributeValue = attributes.get(key);
+      return attributeValue != null && matchesValue(attributeValue);
+    }
+
+    @Override
+    Node[] getOperands() {
+      return NO_OPERANDS;
+    }
+
+    private boolean matchesValue(final Object attributeValue) {
+      if (attributeValue instanceof String) {
+        return compareString((String) attributeValue);
+      }
+      if (attributeValue instanceof Collection) {
+        for (Object element : (Collection<?>) attributeValue) {
+          if (element != null && matchesValue(element)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (attributeValue.getClass().isArray()) {
+        for (int i = 0, n = Array.getLength(attributeValue); i < n; i++) {
+          Object element = Array.get(attributeValue, i);
+          if (element != null && matchesValue(element)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return compareObject(attributeValue);
+    }
+
+    @Override
+    Node withId(final int newId, final Node[] operands) {
+      return new Comparison(key, operator, value, newId);
+    }
+  }
+
+  /**
+   * An operand converted to a type.
+   */
+  private static final class ConvertedOperand {
+
+    private final Class<?> type;
+
+    private final Object value;
+
+    ConvertedOperand(final Class<?> type, final Object value) {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  /**
+   * The memoized results of the shared nodes of filters during the evaluation of one capability.
+   * The results are forgotten by {@link #reset()} in constant time.
+   */
+  static final class Evaluation {
+
+    private final int[] evaluatedGenerations;
+
+    private int generation = 1;
+
+    private final BitSet results;
+
+    Evaluation(final int nodeCount) {
+      this.evaluatedGenerations = new int[nodeCount];
+      this.results = new BitSet(nodeCount);
+    }
+
+    private boolean matches(final Node node, final Map<String, ?> attributes) {
+      int id = node.id;
+      if (evaluatedGenerations[id] == generation) {
+        return results.get(id);
+      }
+      boolean result = node.evaluate(attributes, this);
+      evaluatedGenerations[id] = generation;
+      results.set(id, result);
+      return result;
+    }
+
+    /**
+     * Forgets the results, so the next evaluation can be done on another capability.
+     */
+    void reset() {
+      generation++;
+      if (generation == Integer.MAX_VALUE) {
+        Arrays.fill(evaluatedGenerations, 0);
+        generation = 1;
+      }
+    }
+  }
+
+  /**
+   * The and or the or operation of filters.
+   */
+  private static final class Junction extends Node {
+
+    private final boolean conjunction;
+
+    private final Node[] operands;
+
+    Junction(final String canonicalForm, final boolean conjunction, final Node[] operands,
+        final int id) {
+      super(canonicalForm, id);
+      this.conjunction = conjunction;
+      this.operands = operands;
+    }
+
+    @Override
+    boolean evaluate(final Map<String, ?> attributes, final Evaluation evaluation) {
+      for (Node operand : operands) {
+        if (operand.matches(attributes, evaluation) != conjunction) {
+          return !conjunction;
+        }
+      }
+      return conjunction;
+    }
+
+    @Override
+    Node[] getOperands() {
+      return operands;
+    }
+
+    @Override
+    Node withId(final int newId, final Node[] newOperands) {
+      return new Junction(getCanonicalForm(), conjunction, newOperands, newId);
+    }
+  }
+
+  /**
+   * A node of the parsed filter. Nodes with the same canonical form are equivalent, so they can be
+   * shared between filters (see {@link FilterPool}).
+   */
+  abstract static class Node {
+
+    private final String canonicalForm;
+
+    /**
+     * The index of the result of the node in an {@link Evaluation} or -1 if the result of the node
+     * is not memoized.
+     */
+    private final int id;
+
+    Node(final String canonicalForm, final int id) {
+      this.canonicalForm = canonicalForm;
+      this.id = id;
+    }
+
+    abstract boolean evaluate(Map<String, ?> attributes, Evaluation evaluation);
+
+    String getCanonicalForm() {
+      return canonicalForm;
+    }
+
+    abstract Node[] getOperands();
+
+    final boolean matches(final Map<String, ?> attributes, final Evaluation evaluation) {
+      if (evaluation == null || id < 0) {
+        return evaluate(attributes, evaluation);
+      }
+      return evaluation.matches(this, attributes);
+    }
+
+    /**
+     * Creates a copy of the node with the specified id and operands.
+     */
+    abstract Node withId(int newId, Node[] operands);
+  }
+
+  /**
+   * The not operation of a filter.
+   */
+  private static final class Not extends Node {
+
+    private final Node operand;
+
+    Not(final Node operand, final int id) {
+      super("(!" + operand.getCanonicalForm() + ")", id);
+      this.operand = operand;
+    }
+
+    @Override
+    boolean evaluate(final Map<String, ?> attributes, final Evaluation evaluation) {
+      return !operand.matches(attributes, evaluation);
+    }
+
+    @Override
+    Node[] getOperands() {
+      return new Node[] { operand };
+    }
+
+    @Override
+    Node withId(final int newId, final Node[] operands) {
+      return new Not(operands[0], newId);
+    }
+  }
+
+  /**
+   * Parses the string representation of a filter.
+   */
+  private static final class Parser {
+
+    private final String filterString;
+
+    private int pos = 0;
+
+    Parser(final String filterString) {
+      this.filterString = filterString;
+    }
+
+    private char current() {
+      if (pos >= filterString.length()) {
+        throw new IllegalArgumentException("Unexpected end of filter: " + filterString);
+      }
+      return filterString.charAt(pos);
+    }
+
+    private void expect(final char c) {
+      if (current() != c) {
+        throw new IllegalArgumentException("Expected '" + c + "' at position " + pos
+            + " of filter: " + filterString);
+      }
+      pos++;
+    }
+
+    Node parse() {
+      Node result = parseFilter();
+      skipWhitespace();
+      if (pos != filterString.length()) {
+        throw new IllegalArgumentException("Unexpected characters at the end of filter: "
+            + filterString);
+      }
+      return result;
+    }
+
+    private Node parseFilter() {
+      skipWhitespace();
+      expect('(');
+      skipWhitespace();
+      Node result;
+      char c = current();
+      if (c == '&') {
+        pos++;
+        result = junction(true, parseFilterList());
+      } else if (c == '|') {
+        pos++;
+        result = junction(false, parseFilterList());
+      } else if (c == '!') {
+        pos++;
+        result = not(parseFilter());
+      } else {
+        result = parseItem();
+      }
+      skipWhitespace();
+      expect(')');
+      return result;
+    }
+
+    private Node[] parseFilterList() {
+      List<Node> operands = new ArrayList<Node>();
+      skipWhitespace();
+      do {
+        operands.add(parseFilter());
+        skipWhitespace();
+      } while (current() == '(');
+      return operands.toArray(new Node[operands.size()]);
+    }
+
+    private Node parseItem() {
+      int attrStart = pos;
+      while ("=<>~()".indexOf(current()) < 0) {
+        pos++;
+      }
+      String attr = filterString.substring(attrStart, pos).trim();
+      if (attr.length() == 0) {
+        throw new IllegalArgumentException("Missing attribute name at position " + pos
+            + " of filter: " + filterString);
+      }
+
+      int operator;
+      char c = current();
+      if (c == '~') {
+        operator = APPROX;
+        pos++;
+      } else if (c == '>') {
+        operator = GREATER_EQUAL;
+        pos++;
+      } else if (c == '<') {
+        operator = LESS_EQUAL;
+        pos++;
+      } else {
+        operator = EQUAL;
+      }
+      expect('=');
+
+      List<String> segments = new ArrayList<String>();
+      StringBuilder value = new StringBuilder();
+      StringBuilder segment = new StringBuilder();
+      c = current();
+      while (c != ')') {
+        if (c == '\\') {
+          pos++;
+          value.append(current());
+          segment.append(current());
+        } else if (c == '*') {
+          value.append(c);
+          segments.add(segment.toString());
+          segment.setLength(0);
+        } else if (c == '(') {
+          throw new IllegalArgumentException("Unescaped '(' at position " + pos
+              + " of filter: " + filterString);
+        } else {
+          value.append(c);
+          segment.append(c);
+        }
+        pos++;
+        c = current();
+      }
+      segments.add(segment.toString());
+
+      if (operator != EQUAL || segments.size() == 1) {
+        return new Comparison(attr, operator, value.toString(), -1);
+      }
+      if (segments.size() == 2 && segments.get(0).length() == 0
+          && segments.get(1).length() == 0) {
+        return new Present(attr, -1);
+      }
+      return new Substring(attr, segments.toArray(new String[segments.size()]), -1);
+    }
+
+    private void skipWhitespace() {
+      while (pos < filterString.length() && Character.isWhitespace(filterString.charAt(pos))) {
+        pos++;
+      }
+    }
+  }
+
+  /**
+   * A presence check of an attribute.
+   */
+  private static final class Present extends Node {
+
+    private final String key;
+
+    Present(final String key, final int id) {
+      super("(" + key + "=*)", id);
+      this.key = key;
+    }
+
+    @Override
+    boolean evaluate(final Map<String, ?> attributes, final Evaluation evaluation) {
+      return attributes.get(key) != null;
+    }
+
+    @Override
+    Node[] getOperands() {
+      return NO_OPERANDS;
+    }
+
+    @Override
+    Node withId(final int newId, final Node[] operands) {
+      return new Present(key, newId);
+    }
+  }
+
+  /**
+   * A substring match of an attribute.
+   */
+  private static final class Substring extends Node {
+
+    private final String key;
+
+    /**
+     * The parts of the pattern between the wildcards. The first and the last parts are empty if the
+     * pattern starts or ends with a wildcard.
+     */
+    private final String[] parts;
+
+    Substring(final String key, final String[] parts, final int id) {
+      super(substringCanonicalForm(key, parts), id);
+      this.key = key;
+      this.parts = parts;
+    }
+
+    @Override
+    boolean evaluate(final Map<String, ?> attributes, final Evaluation evaluation) {
+      Object attributeValue = attributes.get(key);
+      return attributeValue != null && matchesValue(attributeValue);
+    }
+
+    @Override
+    Node[] getOperands() {
+      return NO_OPERANDS;
+    }
+
+    private boolean matchesString(final String attributeValue) {
+      String first = parts[0];
+      String last = parts[parts.length - 1];
+      if (!attributeValue.startsWith(first)) {
+        return false;
+      }
+      int position = first.length();
+      for (int i = 1, n = parts.length - 1; i < n; i++) {
+        int index = attributeValue.indexOf(parts[i], position);
+        if (index < 0) {
+          return false;
+        }
+        position = index + parts[i].length();
+      }
+      return attributeValue.length() - last.length() >= position
+          && attributeValue.endsWith(last);
+    }
+
+    private boolean matchesValue(final Object attributeValue) {
+      if (attributeValue instanceof String) {
+        return matchesString((String) attributeValue);
+      }
+      if (attributeValue instanceof Collection) {
+        for (Object element : (Collection<?>) attributeValue) {
+          if (element instanceof String && matchesString((String) element)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (attributeValue instanceof String[]) {
+        for (String element : (String[]) attributeValue) {
+          if (element != null && matchesString(element)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    Node withId(final int newId, final Node[] operands) {
+      return new Substring(key, parts, newId);
+    }
+  }
+
+  private static final int APPROX = 1;
+
+  private static final int EQUAL = 0;
+
+  private static final int GREATER_EQUAL = 2;
+
+  private static final int LESS_EQUAL = 3;
+
+  private static final Node[] NO_OPERANDS = new Node[0];
+
+  private static final String[] OPERATOR_SYMBOLS = { "=", "~=", ">=", "<=" };
+
+  /**
+   * Compiles a filter.
+   *
+   * @param filter
+   *          The filter.
+   * @return The compiled filter or <code>null</code> if the string representation of the filter
+   *         cannot be parsed.
+   */
+  static CompiledFilter compile(final Filter filter) {
+    try {
+      return new CompiledFilter(new Parser(filter.toString()).parse());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Converts the operand of a comparison to the type of the attribute value.
+   *
+   * @return The converted operand or <code>null</code> if the operand cannot be converted.
+   */
+  private static Object convert(final Class<?> type, final String value) {
+    String trimmed = value.trim();
+    try {
+      if (type == Long.class) {
+        return Long.valueOf(trimmed);
+      } else if (type == Integer.class) {
+        return Integer.valueOf(trimmed);
+      } else if (type == Short.class) {
+        return Short.valueOf(trimmed);
+      } else if (type == Byte.class) {
+        return Byte.valueOf(trimmed);
+      } else if (type == Double.class) {
+        return Double.valueOf(trimmed);
+      } else if (type == Float.class) {
+        return Float.valueOf(trimmed);
+      } else if (type == BigInteger.class) {
+        return new BigInteger(trimmed);
+      } else if (type == BigDecimal.class) {
+        return new BigDecimal(trimmed);
+      } else if (type == Boolean.class) {
+        return Boolean.valueOf(trimmed);
+      } else if (type == Character.class) {
+        return (value.length() > 0) ? Character.valueOf(value.charAt(0)) : null;
+      } else if (type == Version.class) {
+        return Version.parseVersion(trimmed);
+      }
+      return convertByReflection(type, trimmed);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static Object convertByReflection(final Class<?> type, final String value) {
+    try {
+      Method valueOf = type.getMethod("valueOf", String.class);
+      if (Modifier.isStatic(valueOf.getModifiers()) && type.isAssignableFrom(
+          valueOf.getReturnType())) {
+        return valueOf.invoke(null, value);
+      }
+    } catch (ReflectiveOperationException e) {
+      // Falling back to the constructor
+    }
+    try {
+      Constructor<?> constructor = type.getConstructor(String.class);
+      return constructor.newInstance(value);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static String escape(final String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '(' || c == ')' || c == '*') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static Node intern(final Node node, final Map<String, Node> internedNodes) {
+    Node result = internedNodes.get(node.getCanonicalForm());
+    if (result == null) {
+      Node[] operands = node.getOperands();
+      Node[] internedOperands = new Node[operands.length];
+      for (int i = 0; i < operands.length; i++) {
+        internedOperands[i] = intern(operands[i], internedNodes);
+      }
+      result = node.withId(internedNodes.size(), internedOperands);
+      internedNodes.put(node.getCanonicalForm(), result);
+    }
+    return result;
+  }
+
+  /**
+   * Creates the canonical form of an and or an or operation: nested operations of the same kind
+   * are flattened, the operands are sorted by their canonical form and the duplicates are removed.
+   */
+  private static Node junction(final boolean conjunction, final Node[] operands) {
+    SortedMap<String, Node> distinctOperands = new TreeMap<String, Node>();
+    for (Node operand : operands) {
+      if (operand instanceof Junction && ((Junction) operand).conjunction == conjunction) {
+        for (Node nestedOperand : operand.getOperands()) {
+          distinctOperands.put(nestedOperand.getCanonicalForm(), nestedOperand);
+        }
+      } else {
+        distinctOperands.put(operand.getCanonicalForm(), operand);
+      }
+    }
+    if (distinctOperands.size() == 1) {
+      return distinctOperands.values().iterator().next();
+    }
+    StringBuilder canonicalForm = new StringBuilder("(").append(conjunction ? '&' : '|');
+    for (String operandForm : distinctOperands.keySet()) {
+      canonicalForm.append(operandForm);
+    }
+    canonicalForm.append(')');
+    return new Junction(canonicalForm.toString(), conjunction,
+        distinctOperands.values().toArray(new Node[distinctOperands.size()]), -1);
+  }
+
+  private static String normalizeApproximate(final String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static Node not(final Node operand) {
+    if (operand instanceof Not) {
+      return ((Not) operand).operand;
+    }
+    return new Not(operand, -1);
+  }
+
+  private static String substringCanonicalForm(final String key, final String[] parts) {
+    StringBuilder sb = new StringBuilder("(").append(key).append('=');
+    for (int i = 0; i < parts.length; i++) {
+      if (i > 0) {
+        sb.append('*');
+      }
+      sb.append(escape(parts[i]));
+    }
+    return sb.append(')').toString();
+  }
+
+  private final Node root;
+
+  private CompiledFilter(final Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Creates a copy of this filter whose nodes are shared with the other filters that are interned
+   * into the same map. Each distinct node gets the next free id, so the results of the nodes can be
+   * memoized in an {@link Evaluation} that has as many slots as the size of the map.
+   *
+   * @param internedNodes
+   *          The already interned nodes by their canonical form.
+   * @return The interned filter.
+   */
+  CompiledFilter intern(final Map<String, Node> internedNodes) {
+    return new CompiledFilter(intern(root, internedNodes));
+  }
+
+  /**
+   * Evaluates the filter on the attributes of a capability.
+   *
+   * @param attributes
+   *          The attributes of the capability.
+   * @return <code>true</code> if the filter matches the attributes.
+   */
+  boolean matches(final Map<String, ?> attributes) {
+    return root.matches(attributes, null);
+  }
+
+  /**
+   * Evaluates the filter on the attributes of a capability and reuses the results of those nodes
+   * that were already evaluated on the same capability.
+   *
+   * @param attributes
+   *          The attributes of the capability.
+   * @param evaluation
+   *          The results of the interned nodes since the last {@link Evaluation#reset()}.
+   * @return <code>true</code> if the filter matches the attributes.
+   */
+  boolean matches(final Map<String, ?> attributes, final Evaluation evaluation) {
+    return root.matches(attributes, evaluation);
+  }
+
+  /**
+   * The canonical form of the filter.
+   */
+  @Override
+  public String toString() {
+    return root.getCanonicalForm();
+  }
+}
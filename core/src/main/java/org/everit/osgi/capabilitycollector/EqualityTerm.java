@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Filter;
+
+/**
+ * An <code>(attribute=value)</code> term of an LDAP filter that must be true for the whole filter
+ * to match. Capabilities can be looked up by these terms in a {@link CapabilityIndex} before the
+ * filter is evaluated on them.
+ */
+final class EqualityTerm {
+
+  /**
+   * Parses the string representation of a filter and collects the equality terms that are on the
+   * top level of the filter or in nested and operations. Any term below an or or a not operation is
+   * skipped as it is not mandatory for the filter to match.
+   */
+  private static final class Parser {
+
+    private final String filterString;
+
+    private int pos = 0;
+
+    private final List<EqualityTerm> terms = new ArrayList<EqualityTerm>();
+
+    Parser(final String filterString) {
+      this.filterString = filterString;
+    }
+
+    private char current() {
+      if (pos >= filterString.length()) {
+        throw new IllegalArgumentException("Unexpected end of filter: " + filterString);
+      }
+      return filterString.charAt(pos);
+    }
+
+    private void expect(final char c) {
+      if (current() != c) {
+        throw new IllegalArgumentException("Expected '" + c + "' at position " + pos
+            + " of filter: " + filterString);
+      }
+      pos++;
+    }
+
+    List<EqualityTerm> parse() {
+      parseFilter(true);
+      skipWhitespace();
+      if (pos != filterString.length()) {
+        throw new IllegalArgumentException("Unexpected characters at the end of filter: "
+            + filterString);
+      }
+      return terms;
+    }
+
+    private void parseFilter(final boolean mandatory) {
+      skipWhitespace();
+      expect('(');
+      skipWhitespace();
+      char c = current();
+      if (c == '&') {
+        pos++;
+        parseFilterList(mandatory);
+      } else if (c == '|') {
+        pos++;
+        parseFilterList(false);
+      } else if (c == '!') {
+        pos++;
+        parseFilter(false);
+      } else {
+        parseItem(mandatory);
+      }
+      skipWhitespace();
+      expect(')');
+    }
+
+    private void parseFilterList(final boolean mandatory) {
+      skipWhitespace();
+      do {
+        parseFilter(mandatory);
+        skipWhitespace();
+      } while (current() == '(');
+    }
+
+    private void parseItem(final boolean mandatory) {
+      int attrStart = pos;
+      while ("=<>~()".indexOf(current()) < 0) {
+        pos++;
+      }
+      String attr = filterString.substring(attrStart, pos).trim();
+      if (attr.length() == 0) {
+        throw new IllegalArgumentException("Missing attribute name at position " + pos
+            + " of filter: " + filterString);
+      }
+
+      boolean equality = current() == '=';
+      if (!equality) {
+        pos++;
+      }
+      expect('=');
+
+      StringBuilder value = new StringBuilder();
+      boolean wildcard = false;
+      char c = current();
+      while (c != ')') {
+        if (c == '\\') {
+          pos++;
+          value.append(current());
+        } else if (c == '*') {
+          wildcard = true;
+        } else if (c == '(') {
+          throw new IllegalArgumentException("Unescaped '(' at position " + pos
+              + " of filter: " + filterString);
+        } else {
+          value.append(c);
+        }
+        pos++;
+        c = current();
+      }
+
+      if (mandatory && equality && !wildcard) {
+        terms.add(new EqualityTerm(attr, value.toString()));
+      }
+    }
+
+    private void skipWhitespace() {
+      while (pos < filterString.length() && Character.isWhitespace(filterString.charAt(pos))) {
+        pos++;
+      }
+    }
+  }
+
+  /**
+   * Collects the mandatory equality terms of a filter. In case the filter is <code>null</code> or
+   * its string representation cannot be parsed, an empty list is returned, so the requirement is
+   * matched against all available capabilities.
+   *
+   * @param filter
+   *          The filter of a requirement.
+   * @return The equality terms that must be true for the filter to match.
+   */
+  static List<EqualityTerm> extract(final Filter filter) {
+    if (filter == null) {
+      return Collections.emptyList();
+    }
+    try {
+      List<EqualityTerm> terms = new Parser(filter.toString()).parse();
+      return Collections.unmodifiableList(terms);
+    } catch (IllegalArgumentException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  private final String key;
+
+  private final String value;
+
+  EqualityTerm(final String key, final String value) {
+    this.key = key;
+    this.value = value;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  String getValue() {
+    return value;
+  }
+
+  /**
+   * Checks with a cheap string comparison whether the term is surely false for a capability. If
+   * the value of the attribute is not a {@link String} or a {@link String} array or collection, the
+   * term is never considered as violated as the filter might convert the value of the term before
+   * the comparison.
+   *
+   * @param attributes
+   *          The attributes of the capability.
+   * @return <code>true</code> if the filter that contains this term cannot match the capability.
+   */
+  boolean isViolatedBy(final Map<String, ?> attributes) {
+    Object attributeValue = attributes.get(key);
+    if (attributeValue == null) {
+      return true;
+    }
+    if (attributeValue instanceof String) {
+      return !value.equals(attributeValue);
+    }
+    if (attributeValue instanceof String[]) {
+      for (String element : (String[]) attributeValue) {
+        if (value.equals(element)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (attributeValue instanceof Collection) {
+      boolean stringsOnly = true;
+      for (Object element : (Collection<?>) attributeValue) {
+        if (value.equals(element)) {
+          return false;
+        }
+        stringsOnly = stringsOnly && (element instanceof String);
+      }
+      return stringsOnly;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "(" + key + "=" + value + ")";
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.everit.osgi.capabilitycollector.CompiledFilter.Evaluation;
+import org.everit.osgi.capabilitycollector.CompiledFilter.Node;
+
+/**
+ * The compiled filters of the requirements of a collector with their equal subexpressions shared.
+ * Between two calls of {@link #startEvaluation()} each distinct filter and each distinct
+ * subexpression is evaluated at most once, so requirements with the same or overlapping filters do
+ * not repeat the work for the same capability.
+ *
+ * <p>
+ * The class is not thread safe, it must be used under the lock of the collector.
+ */
+final class FilterPool {
+
+  private final Evaluation evaluation;
+
+  /**
+   * The interned filters by the index of the requirements. An element is <code>null</code> if the
+   * requirement does not have a compiled filter.
+   */
+  private final CompiledFilter[] filters;
+
+  private final int nodeCount;
+
+  FilterPool(final RequirementDefinition<?>[] requirements) {
+    Map<String, Node> internedNodes = new HashMap<String, Node>();
+    filters = new CompiledFilter[requirements.length];
+    for (int i = 0; i < requirements.length; i++) {
+      CompiledFilter compiledFilter = requirements[i].getCompiledFilter();
+      if (compiledFilter != null) {
+        filters[i] = compiledFilter.intern(internedNodes);
+      }
+    }
+    nodeCount = internedNodes.size();
+    evaluation = new Evaluation(nodeCount);
+  }
+
+  /**
+   * The number of distinct filter nodes of the requirements.
+   */
+  int getNodeCount() {
+    return nodeCount;
+  }
+
+  boolean isCompiled(final int requirementIndex) {
+    return filters[requirementIndex] != null;
+  }
+
+  /**
+   * Evaluates the filter of a requirement on the attributes of the capability that is currently
+   * evaluated.
+   *
+   * @param requirementIndex
+   *          The index of a requirement that has a compiled filter.
+   * @param attributes
+   *          The attributes of the capability.
+   * @return <code>true</code> if the filter matches the attributes.
+   */
+  boolean matches(final int requirementIndex, final Map<String, ?> attributes) {
+    return filters[requirementIndex].matches(attributes, evaluation);
+  }
+
+  /**
+   * Starts the evaluation of a new capability by forgetting the memoized results.
+   */
+  void startEvaluation() {
+    evaluation.reset();
+  }
+}
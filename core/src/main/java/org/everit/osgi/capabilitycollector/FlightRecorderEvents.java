@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+/**
+ * Emits the Java Flight Recorder events of the capability collectors. This implementation is used
+ * on the Java runtimes that do not have the Flight Recorder API and it does nothing. The jar of the
+ * module is a multi-release jar that contains another implementation of this class for Java 11 and
+ * later under <code>META-INF/versions/11</code> (see <code>src/main/java11</code>).
+ *
+ * <p>
+ * The begin methods return an event object that must be passed to the matching end method. The
+ * returned object is <code>null</code> if the event is not recorded.
+ */
+final class FlightRecorderEvents {
+
+  static Object beginConsumerCallback() {
+    return null;
+  }
+
+  static Object beginLockHold() {
+    return null;
+  }
+
+  static void endConsumerCallback(final Object event,
+      final AbstractCapabilityCollector<?> collector, final Throwable error) {
+    // Flight Recorder is not available
+  }
+
+  static void endLockHold(final Object event, final AbstractCapabilityCollector<?> collector) {
+    // Flight Recorder is not available
+  }
+
+  static void requirementWired(final AbstractCapabilityCollector<?> collector,
+      final Suiting<?> suiting) {
+    // Flight Recorder is not available
+  }
+
+  static void satisfactionChanged(final AbstractCapabilityCollector<?> collector,
+      final boolean satisfied) {
+    // Flight Recorder is not available
+  }
+
+  private FlightRecorderEvents() {
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Objects;
+
+/**
+ * The consumer of a collector in the form that the collector notifies it. The sink is created by
+ * the constructor of the collector from the type of consumer that the constructor gets, so the
+ * collector knows at construction whether it has to compute the changes of the suitings.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+final class NotificationSink<C> {
+
+  /**
+   * Passes the notifications to a {@link CapabilityConsumer} without the sequence number.
+   */
+  private static final class ConsumerAdapter<C> implements SequencedCapabilityConsumer<C> {
+
+    private final CapabilityConsumer<C> consumer;
+
+    ConsumerAdapter(final CapabilityConsumer<C> consumer) {
+      this.consumer = consumer;
+    }
+
+    @Override
+    public void accept(final Suiting<C>[] suitings, final boolean satisfied,
+        final long sequence) {
+      consumer.accept(suitings, satisfied);
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(consumer);
+    }
+  }
+
+  static <C> NotificationSink<C> of(final CapabilityConsumer<C> consumer) {
+    Objects.requireNonNull(consumer, "Capability consumer must not be null");
+    return new NotificationSink<C>(new ConsumerAdapter<C>(consumer), null);
+  }
+
+  static <C> NotificationSink<C> of(final CapabilityDeltaConsumer<C> consumer) {
+    Objects.requireNonNull(consumer, "Capability consumer must not be null");
+    return new NotificationSink<C>(null, consumer);
+  }
+
+  static <C> NotificationSink<C> of(final SequencedCapabilityConsumer<C> consumer) {
+    Objects.requireNonNull(consumer, "Capability consumer must not be null");
+    return new NotificationSink<C>(consumer, null);
+  }
+
+  /**
+   * The consumer that gets the changes of the suitings or <code>null</code> if the consumer gets
+   * the full state of the collector.
+   */
+  private final CapabilityDeltaConsumer<C> deltaConsumer;
+
+  /**
+   * The consumer that gets the full state of the collector or <code>null</code> if the consumer
+   * gets the changes of the suitings.
+   */
+  private final SequencedCapabilityConsumer<C> stateConsumer;
+
+  private NotificationSink(final SequencedCapabilityConsumer<C> stateConsumer,
+      final CapabilityDeltaConsumer<C> deltaConsumer) {
+    this.stateConsumer = stateConsumer;
+    this.deltaConsumer = deltaConsumer;
+  }
+
+  /**
+   * Passes the full state of the collector to the consumer. Must not be called if
+   * {@link #isDelta()} returns <code>true</code>.
+   */
+  void accept(final Suiting<C>[] suitings, final boolean satisfied, final long sequence) {
+    stateConsumer.accept(suitings, satisfied, sequence);
+  }
+
+  /**
+   * Passes the changes of the suitings to the consumer. Must only be called if {@link #isDelta()}
+   * returns <code>true</code>.
+   */
+  void acceptDelta(final CapabilityDelta<C> delta) {
+    deltaConsumer.acceptDelta(delta);
+  }
+
+  /**
+   * Whether the consumer gets the changes of the suitings instead of the full state.
+   */
+  boolean isDelta() {
+    return deltaConsumer != null;
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf((deltaConsumer != null) ? deltaConsumer : stateConsumer);
+  }
+}
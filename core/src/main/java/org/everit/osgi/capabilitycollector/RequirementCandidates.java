@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.everit.osgi.capabilitycollector.CandidateList.Candidate;
+
+/**
+ * The available capabilities that match the filter of a requirement. The set is kept up to date
+ * by the collector when capabilities come, change or leave, so a replacement is available without
+ * searching when the wired capability of the requirement leaves.
+ *
+ * <p>
+ * The candidates are ordered by the selection key that the {@link SelectionPolicy} of the
+ * collector assigned to them and then by the time they became candidates. The preferred candidate
+ * can be found, added and removed in logarithmic time. The ordered candidates are held in an
+ * immutable {@link CandidateList}, so a snapshot of them is available at any time without copying.
+ *
+ * <p>
+ * The class is not thread safe, it must be used under the lock of the collector.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+final class RequirementCandidates<C> implements Iterable<C> {
+
+  /**
+   * The candidates and their order. The state is shared between the instances that are created by
+   * {@link #withRequirement(RequirementDefinition)}.
+   */
+  private static final class State<C> {
+
+    private final Map<C, Candidate<C>> candidatesByCapability = new HashMap<C, Candidate<C>>();
+
+    private long nextSequence = 0;
+
+    private CandidateList<C> orderedCandidates = CandidateList.empty();
+  }
+
+  private final RequirementDefinition<C> requirement;
+
+  private final State<C> state;
+
+  RequirementCandidates(final RequirementDefinition<C> requirement) {
+    this(requirement, new State<C>());
+  }
+
+  private RequirementCandidates(final RequirementDefinition<C> requirement, final State<C> state) {
+    this.requirement = requirement;
+    this.state = state;
+  }
+
+  /**
+   * Adds a candidate or updates the selection key of a candidate.
+   *
+   * @param capability
+   *          The capability.
+   * @param key
+   *          The selection key of the capability.
+   * @return <code>true</code> if the capability was not a candidate before or its key changed.
+   */
+  boolean add(final C capability, final Comparable<?> key) {
+    Candidate<C> candidate = state.candidatesByCapability.get(capability);
+    if (candidate != null) {
+      Comparable<?> currentKey = candidate.getKey();
+      if (currentKey == key || (currentKey != null && currentKey.equals(key))) {
+        return false;
+      }
+      state.orderedCandidates = state.orderedCandidates.without(candidate);
+      candidate = new Candidate<C>(capability, key, candidate.getSequence());
+    } else {
+      candidate = new Candidate<C>(capability, key, state.nextSequence++);
+    }
+    state.candidatesByCapability.put(capability, candidate);
+    state.orderedCandidates = state.orderedCandidates.with(candidate);
+    return true;
+  }
+
+  void clear() {
+    state.candidatesByCapability.clear();
+    state.orderedCandidates = CandidateList.empty();
+  }
+
+  /**
+   * Returns the preferred candidate or <code>null</code> if there is no candidate.
+   */
+  C first() {
+    return state.orderedCandidates.first();
+  }
+
+  /**
+   * Returns the current candidates in their order. The returned list is immutable and it is not
+   * affected by the later changes of the candidates.
+   */
+  CandidateList<C> getCandidateList() {
+    return state.orderedCandidates;
+  }
+
+  RequirementDefinition<C> getRequirement() {
+    return requirement;
+  }
+
+  @Override
+  public Iterator<C> iterator() {
+    return state.orderedCandidates.iterator();
+  }
+
+  boolean remove(final C capability) {
+    Candidate<C> candidate = state.candidatesByCapability.remove(capability);
+    if (candidate == null) {
+      return false;
+    }
+    state.orderedCandidates = state.orderedCandidates.without(candidate);
+    return true;
+  }
+
+  int size() {
+    return state.candidatesByCapability.size();
+  }
+
+  /**
+   * Creates candidates for a new definition of the requirement that has the same filter. The
+   * candidates are taken over, so this instance must not be used anymore.
+   */
+  RequirementCandidates<C> withRequirement(final RequirementDefinition<C> newRequirement) {
+    return new RequirementCandidates<C>(newRequirement, state);
+  }
+}
@@ -17,6 +17,7 @@ package org.everit.osgi.capabilitycollector;
 
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -32,8 +33,16 @@ public class RequirementDefinition<C> {
 
   private final Map<String, Object> attributes;
 
+  private final Cardinality cardinality;
+
+  private final CompiledFilter compiledFilter;
+
+  private final List<EqualityTerm> equalityTerms;
+
   private final Filter filter;
 
+  private final CapabilityPredicate<? super C> predicate;
+
   private final String requirementId;
 
   /**
@@ -48,12 +57,56 @@ public class RequirementDefinition<C> {
    */
   public RequirementDefinition(final String requirementId, final Filter filter,
       final Map<String, Object> attributes) {
+    this(requirementId, filter, attributes, Cardinality.MANDATORY);
+  }
+
+  /**
+   * Constructor of {@link RequirementDefinition}.
+   *
+   * @param requirementId
+   *          Id of the requirement that must be unique within the same collector.
+   * @param filter
+   *          A capability can satisfy this requirement if the filter matches the capability.
+   * @param attributes
+   *          Additional metadata that can be used by the {@link CapabilityConsumer} implementation.
+   * @param cardinality
+   *          The number of capabilities that the requirement is wired to.
+   */
+  public RequirementDefinition(final String requirementId, final Filter filter,
+      final Map<String, Object> attributes, final Cardinality cardinality) {
+    this(requirementId, filter, null, attributes, cardinality);
+  }
+
+  /**
+   * Constructor of {@link RequirementDefinition}. A capability can satisfy the requirement if both
+   * the filter and the predicate match the capability.
+   *
+   * @param requirementId
+   *          Id of the requirement that must be unique within the same collector.
+   * @param filter
+   *          The filter that the capability must match or <code>null</code>. The filter is also
+   *          used to narrow down the capabilities that are tracked and tested.
+   * @param predicate
+   *          The typed condition that the capability must fulfill or <code>null</code>.
+   * @param attributes
+   *          Additional metadata that can be used by the {@link CapabilityConsumer} implementation.
+   * @param cardinality
+   *          The number of capabilities that the requirement is wired to.
+   */
+  public RequirementDefinition(final String requirementId, final Filter filter,
+      final CapabilityPredicate<? super C> predicate, final Map<String, Object> attributes,
+      final Cardinality cardinality) {
     Objects.requireNonNull(requirementId, "Requirement id must be provided");
     Objects.requireNonNull(attributes,
         "Attributes for requirement must be provided at least with a zero element map");
+    Objects.requireNonNull(cardinality, "Cardinality must be provided");
 
     this.requirementId = requirementId;
     this.filter = filter;
+    this.predicate = predicate;
+    this.cardinality = cardinality;
+    this.compiledFilter = (filter != null) ? CompiledFilter.compile(filter) : null;
+    this.equalityTerms = EqualityTerm.extract(filter);
     this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(attributes));
   }
 
@@ -64,6 +117,30 @@ public class RequirementDefinition<C> {
     return attributes;
   }
 
+  /**
+   * The number of capabilities that the requirement is wired to.
+   */
+  public Cardinality getCardinality() {
+    return cardinality;
+  }
+
+  /**
+   * The filter parsed once, so it can be evaluated on the attributes of capabilities without
+   * parsing and type coercion on each call. <code>null</code> if there is no filter or its string
+   * representation cannot be parsed.
+   */
+  CompiledFilter getCompiledFilter() {
+    return compiledFilter;
+  }
+
+  /**
+   * The equality terms of the filter that must be true for the filter to match. Used to look up the
+   * candidate capabilities in the index of the collector.
+   */
+  List<EqualityTerm> getEqualityTerms() {
+    return equalityTerms;
+  }
+
   /**
    * A capability can satisfy this requirement if the filter matches the capability.
    */
@@ -71,6 +148,14 @@ public class RequirementDefinition<C> {
     return filter;
   }
 
+  /**
+   * The typed condition that a capability must fulfill to satisfy this requirement or
+   * <code>null</code> if there is no such condition.
+   */
+  public CapabilityPredicate<? super C> getPredicate() {
+    return predicate;
+  }
+
   /**
    * Id of the requirement that must be unique within the same collector.
    */
@@ -78,10 +163,22 @@ public class RequirementDefinition<C> {
     return requirementId;
   }
 
+  /**
+   * The routing key of the requirement. A requirement with a routing key is only tested against
+   * the capabilities that have the same routing key or whose routing key is not known (see
+   * {@link AbstractCapabilityCollector#getRoute(Object)}). A requirement without a routing key is
+   * tested against every capability.
+   *
+   * @return The routing key or <code>null</code>.
+   */
+  String getRoute() {
+    return null;
+  }
+
   @Override
   public String toString() {
     return "RequirementDefinition [requirementId=" + requirementId + ", filter=" + filter
-        + ", attributes="
+        + ", predicate=" + predicate + ", cardinality=" + cardinality + ", attributes="
         + attributes + "]";
   }
 
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indexes the requirements of a collector by one of the equality terms of their filters, so the
+ * requirements that a capability might satisfy can be found without testing the capability on
+ * every requirement. Each requirement is placed under its equality term that is shared by the
+ * fewest requirements. Requirements without equality terms are returned for every capability.
+ *
+ * <p>
+ * The requirements are partitioned by their routing key (see
+ * {@link RequirementDefinition#getRoute()}) before they are indexed by their equality terms. A
+ * capability is only looked up in the partition of its own routing key and in the partition of the
+ * requirements without a routing key.
+ *
+ * <p>
+ * The class is immutable, a new instance must be created when the requirements change.
+ */
+final class RequirementIndex {
+
+  /**
+   * The requirements that have the same routing key.
+   */
+  private static final class Partition {
+
+    private final Map<String, Map<String, BitSet>> anchoredRequirements =
+        new HashMap<String, Map<String, BitSet>>();
+
+    private final BitSet requirementIndexes = new BitSet();
+
+    private final BitSet unconditionalRequirements = new BitSet();
+
+    private void anchor(final int index, final EqualityTerm anchorTerm) {
+      Map<String, BitSet> requirementsByValue = anchoredRequirements.get(anchorTerm.getKey());
+      if (requirementsByValue == null) {
+        requirementsByValue = new HashMap<String, BitSet>();
+        anchoredRequirements.put(anchorTerm.getKey(), requirementsByValue);
+      }
+      BitSet indexes = requirementsByValue.get(anchorTerm.getValue());
+      if (indexes == null) {
+        indexes = new BitSet();
+        requirementsByValue.put(anchorTerm.getValue(), indexes);
+      }
+      indexes.set(index);
+    }
+
+    void index(final RequirementDefinition<?>[] requirements) {
+      Map<String, Map<String, Integer>> termFrequencies =
+          new HashMap<String, Map<String, Integer>>();
+      for (int i = requirementIndexes.nextSetBit(0); i >= 0;
+          i = requirementIndexes.nextSetBit(i + 1)) {
+        for (EqualityTerm term : requirements[i].getEqualityTerms()) {
+          Map<String, Integer> frequenciesByValue = termFrequencies.get(term.getKey());
+          if (frequenciesByValue == null) {
+            frequenciesByValue = new HashMap<String, Integer>();
+            termFrequencies.put(term.getKey(), frequenciesByValue);
+          }
+          Integer frequency = frequenciesByValue.get(term.getValue());
+          frequenciesByValue.put(term.getValue(), (frequency == null) ? 1 : frequency + 1);
+        }
+      }
+
+      for (int i = requirementIndexes.nextSetBit(0); i >= 0;
+          i = requirementIndexes.nextSetBit(i + 1)) {
+        EqualityTerm anchorTerm = null;
+        int anchorFrequency = Integer.MAX_VALUE;
+        for (EqualityTerm term : requirements[i].getEqualityTerms()) {
+          int frequency = termFrequencies.get(term.getKey()).get(term.getValue());
+          if (frequency < anchorFrequency) {
+            anchorTerm = term;
+            anchorFrequency = frequency;
+          }
+        }
+
+        if (anchorTerm == null) {
+          unconditionalRequirements.set(i);
+        } else {
+          anchor(i, anchorTerm);
+        }
+      }
+    }
+
+    void lookup(final Map<String, ?> attributes, final BitSet result) {
+      if (attributes == null) {
+        result.or(requirementIndexes);
+        return;
+      }
+      result.or(unconditionalRequirements);
+
+      for (Map.Entry<String, Map<String, BitSet>> entry : anchoredRequirements.entrySet()) {
+        Object value = attributes.get(entry.getKey());
+        Map<String, BitSet> requirementsByValue = entry.getValue();
+        if (value == null) {
+          continue;
+        }
+        if (value instanceof String) {
+          or(result, requirementsByValue.get(value));
+        } else if (value instanceof String[]) {
+          for (String element : (String[]) value) {
+            or(result, requirementsByValue.get(element));
+          }
+        } else if (value instanceof Collection && isStringCollection((Collection<?>) value)) {
+          for (Object element : (Collection<?>) value) {
+            or(result, requirementsByValue.get(element));
+          }
+        } else {
+          // The filter might convert the value of the term to the type of the attribute
+          for (BitSet indexes : requirementsByValue.values()) {
+            result.or(indexes);
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isStringCollection(final Collection<?> collection) {
+    for (Object element : collection) {
+      if (!(element instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void or(final BitSet result, final BitSet requirementIndexes) {
+    if (requirementIndexes != null) {
+      result.or(requirementIndexes);
+    }
+  }
+
+  /**
+   * The partitions by routing key. The requirements without a routing key are under the
+   * <code>null</code> key.
+   */
+  private final Map<String, Partition> partitions = new HashMap<String, Partition>();
+
+  RequirementIndex(final RequirementDefinition<?>[] requirements) {
+    for (int i = 0; i < requirements.length; i++) {
+      String route = requirements[i].getRoute();
+      Partition partition = partitions.get(route);
+      if (partition == null) {
+        partition = new Partition();
+        partitions.put(route, partition);
+      }
+      partition.requirementIndexes.set(i);
+    }
+    for (Partition partition : partitions.values()) {
+      partition.index(requirements);
+    }
+  }
+
+  /**
+   * Returns the indexes of the requirements that a capability with the specified routing key and
+   * attributes might satisfy.
+   *
+   * @param route
+   *          The routing key of the capability or <code>null</code> if it is not known.
+   * @param attributes
+   *          The attributes of the capability or <code>null</code> if they are not known.
+   * @return The indexes of the requirements in a new {@link BitSet} that can be modified by the
+   *         caller.
+   */
+  BitSet lookup(final String route, final Map<String, ?> attributes) {
+    BitSet result = new BitSet();
+    if (route == null) {
+      for (Partition partition : partitions.values()) {
+        partition.lookup(attributes, result);
+      }
+      return result;
+    }
+    Partition unroutedPartition = partitions.get(null);
+    if (unroutedPartition != null) {
+      unroutedPartition.lookup(attributes, result);
+    }
+    Partition partition = partitions.get(route);
+    if (partition != null) {
+      partition.lookup(attributes, result);
+    }
+    return result;
+  }
+}
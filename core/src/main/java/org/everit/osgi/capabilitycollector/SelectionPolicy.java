@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Decides which candidate a requirement is wired to if there are more available capabilities that
+ * match the requirement. The policy assigns a selection key to each candidate, the candidate with
+ * the lowest key is preferred. The key is computed when the capability becomes a candidate and
+ * each time it is modified, so the ordering of the candidates does not change if the capability
+ * changes without a modification event. The collectors call
+ * {@link #getSelectionKey(Object, Map)}, so the key can be computed from the same attributes that
+ * the requirements were matched against.
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+public abstract class SelectionPolicy<C> {
+
+  /**
+   * The selection key of {@link SelectionPolicy#highestRanking()}.
+   */
+  private static final class RankingKey implements Comparable<RankingKey> {
+
+    private final int ranking;
+
+    private final long serviceId;
+
+    RankingKey(final int ranking, final long serviceId) {
+      this.ranking = ranking;
+      this.serviceId = serviceId;
+    }
+
+    @Override
+    public int compareTo(final RankingKey o) {
+      if (ranking != o.ranking) {
+        return (ranking > o.ranking) ? -1 : 1;
+      }
+      return Long.compare(serviceId, o.serviceId);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof RankingKey)) {
+        return false;
+      }
+      RankingKey other = (RankingKey) obj;
+      return ranking == other.ranking && serviceId == other.serviceId;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * ranking + (int) (serviceId ^ (serviceId >>> 32));
+    }
+  }
+
+  private static final SelectionPolicy<Object> STICKY = new SelectionPolicy<Object>() {
+
+    @Override
+    public Comparable<?> getSelectionKey(final Object capability) {
+      return null;
+    }
+
+    @Override
+    public boolean isSticky() {
+      return true;
+    }
+  };
+
+  private static Object getProperty(final ServiceReference<?> reference,
+      final Map<String, ?> attributes, final String key) {
+    return (attributes != null) ? attributes.get(key) : reference.getProperty(key);
+  }
+
+  private static RankingKey getRankingKey(final ServiceReference<?> reference,
+      final Map<String, ?> attributes) {
+    Object ranking = getProperty(reference, attributes, Constants.SERVICE_RANKING);
+    return new RankingKey((ranking instanceof Integer) ? (Integer) ranking : 0,
+        getServiceId(reference, attributes));
+  }
+
+  private static long getServiceId(final ServiceReference<?> reference,
+      final Map<String, ?> attributes) {
+    Object serviceId = getProperty(reference, attributes, Constants.SERVICE_ID);
+    return (serviceId instanceof Long) ? (Long) serviceId : Long.MAX_VALUE;
+  }
+
+  /**
+   * A policy that prefers the service with the highest {@link Constants#SERVICE_RANKING} and in
+   * case of equal rankings the one with the lowest {@link Constants#SERVICE_ID}, in the same way as
+   * {@link org.osgi.framework.BundleContext#getServiceReference(String)}. A requirement is rewired
+   * as soon as a better service is available.
+   *
+   * @param <S>
+   *          The type of the service.
+   * @return The policy.
+   */
+  public static <S> SelectionPolicy<ServiceReference<S>> highestRanking() {
+    return new SelectionPolicy<ServiceReference<S>>() {
+
+      @Override
+      public Comparable<?> getSelectionKey(final ServiceReference<S> capability) {
+        return getRankingKey(capability, null);
+      }
+
+      @Override
+      protected Comparable<?> getSelectionKey(final ServiceReference<S> capability,
+          final Map<String, ?> attributes) {
+        return getRankingKey(capability, attributes);
+      }
+    };
+  }
+
+  /**
+   * A policy that prefers the service with the lowest {@link Constants#SERVICE_ID}, that is the
+   * service that was registered the earliest. A requirement is rewired as soon as a better service
+   * is available.
+   *
+   * @param <S>
+   *          The type of the service.
+   * @return The policy.
+   */
+  public static <S> SelectionPolicy<ServiceReference<S>> lowestServiceId() {
+    return new SelectionPolicy<ServiceReference<S>>() {
+
+      @Override
+      public Comparable<?> getSelectionKey(final ServiceReference<S> capability) {
+        return getServiceId(capability, null);
+      }
+
+      @Override
+      protected Comparable<?> getSelectionKey(final ServiceReference<S> capability,
+          final Map<String, ?> attributes) {
+        return getServiceId(capability, attributes);
+      }
+    };
+  }
+
+  /**
+   * The default policy. A requirement keeps its capability as long as the capability is available
+   * and matches the requirement. If the capability leaves, the requirement is wired to the
+   * candidate that became available the earliest.
+   *
+   * @param <C>
+   *          The type of the capability.
+   * @return The policy.
+   */
+  @SuppressWarnings("unchecked")
+  public static <C> SelectionPolicy<C> sticky() {
+    return (SelectionPolicy<C>) STICKY;
+  }
+
+  /**
+   * Returns the selection key of a capability. The keys that are returned by the same policy must
+   * be comparable with each other. Candidates with equal keys or <code>null</code> keys are ordered
+   * by the time they became candidates.
+   *
+   * @param capability
+   *          The capability.
+   * @return The key of the capability, the candidate with the lowest key is preferred.
+   */
+  public abstract Comparable<?> getSelectionKey(C capability);
+
+  /**
+   * Returns the selection key of a capability based on the attributes that the collector matched
+   * the requirements against. In case of services these are the properties of the last service
+   * event, so the key does not change if the properties change without a modification event. The
+   * default implementation calls {@link #getSelectionKey(Object)}.
+   *
+   * @param capability
+   *          The capability.
+   * @param attributes
+   *          The attributes of the capability or <code>null</code> if the collector does not
+   *          take a snapshot of the attributes.
+   * @return The key of the capability, the candidate with the lowest key is preferred.
+   */
+  protected Comparable<?> getSelectionKey(final C capability, final Map<String, ?> attributes) {
+    return getSelectionKey(capability);
+  }
+
+  /**
+   * Whether a requirement keeps its capability even if a preferred candidate becomes available.
+   * The default implementation returns <code>false</code>.
+   *
+   * @return <code>true</code> if requirements are rewired only if their capability leaves.
+   */
+  public boolean isSticky() {
+    return false;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A consumer that gets the sequence number of each notification besides the parameters of
+ * {@link CapabilityConsumer#accept(Suiting[], boolean)}. The collector
+ * assigns a monotonically increasing number to each state change. If notifications are delivered
+ * asynchronously (see
+ * {@link AbstractCapabilityCollector#setNotificationExecutor(java.util.concurrent.Executor)}), the
+ * state changes of a burst are coalesced and only the latest one is delivered, so the sequence
+ * numbers of the deliveries might have gaps.
+ *
+ * <p>
+ * The consumer is passed to the constructor of a collector instead of a {@link CapabilityConsumer}
+ * (e.g.
+ * {@link AbstractCapabilityCollector#AbstractCapabilityCollector(RequirementDefinition[],
+ * SequencedCapabilityConsumer)}).
+ *
+ * @param <C>
+ *          The type of the capability.
+ */
+@ConsumerType
+public interface SequencedCapabilityConsumer<C> {
+
+  /**
+   * The function that is called if there is any state change in the suitings or the collector.
+   *
+   * @param suitings
+   *          The suitings that are available in this collector from now on.
+   * @param satisfied
+   *          True if all suitings are satisfied.
+   * @param sequence
+   *          The sequence number of the state change. A delivery with a lower sequence number than
+   *          a previous one is never made.
+   */
+  void accept(Suiting<C>[] suitings, boolean satisfied, long sequence);
+}
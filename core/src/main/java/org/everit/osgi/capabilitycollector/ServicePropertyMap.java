@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A read-only {@link java.util.Map} snapshot of the properties of a {@link ServiceReference}. The
+ * keys are case insensitive in the same way as in {@link ServiceReference#getProperty(String)}.
+ *
+ * <p>
+ * The properties are read once when the snapshot is created, so matching the filters of the
+ * requirements on the snapshot does not call the synchronized methods of the framework again. A
+ * new snapshot must be taken when the properties of the service are modified.
+ */
+final class ServicePropertyMap extends AbstractMap<String, Object> {
+
+  private final SortedMap<String, Object> properties;
+
+  ServicePropertyMap(final ServiceReference<?> reference) {
+    String[] keys = reference.getPropertyKeys();
+    SortedMap<String, Object> lProperties =
+        new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+    for (String key : keys) {
+      lProperties.put(key, reference.getProperty(key));
+    }
+    this.properties = Collections.unmodifiableSortedMap(lProperties);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return properties.entrySet();
+  }
+
+  @Override
+  public Object get(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    return properties.get(key);
+  }
+}
@@ -15,7 +15,14 @@
  */
 package org.everit.osgi.capabilitycollector;
 
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
@@ -24,6 +31,11 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 /**
  * An {@link AbstractCapabilityCollector} implementation that collects {@link ServiceReference}s.
+ * The inner {@link ServiceTracker} only tracks the services that match the filter of at least one
+ * requirement (and the reference type if it is specified), so the collector is not notified about
+ * the events of unrelated services. Collectors that are created with a
+ * {@link ServiceReferenceDispatcher} do not have their own tracker, they get the services from the
+ * dispatcher.
  *
  * @param <S>
  *          Type of the service.
@@ -31,11 +43,18 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
 public class ServiceReferenceCollector<S> extends AbstractCapabilityCollector<ServiceReference<S>> {
 
   /**
-   * Customizer of the inner {@link ServiceTracker}.
+   * Customizer of the inner {@link ServiceTracker}. When the tracker is replaced due to the change
+   * of the requirements, the old and the new tracker are open at the same time for a short period.
+   * A reference that is removed from the old tracker is not removed from the collector if the new
+   * tracker still tracks it. A modification that the old tracker reports after it was replaced is
+   * ignored if the new tracker does not track the reference, otherwise the reference would be
+   * added to the collector again and never removed.
    */
   private class ReferenceTrackerCustomizer implements
       ServiceTrackerCustomizer<S, ServiceReference<S>> {
 
+    private ServiceTracker<S, ServiceReference<S>> owner;
+
     @Override
     public ServiceReference<S> addingService(final ServiceReference<S> reference) {
       addingCapablility(reference);
@@ -45,19 +64,47 @@ public class ServiceReferenceCollector<S> extends AbstractCapabilityCollector<Se
     @Override
     public void modifiedService(final ServiceReference<S> reference,
         final ServiceReference<S> tracked) {
-      modifiedCapablility(reference);
+      // The tracker is replaced under the lock of the collector
+      acquireLock();
+      try {
+        ServiceTracker<S, ServiceReference<S>> currentTracker = tracker;
+        if (currentTracker != owner && currentTracker.getService(reference) == null) {
+          return;
+        }
+        modifiedCapablility(reference);
+      } finally {
+        releaseLock();
+      }
     }
 
     @Override
     public void removedService(final ServiceReference<S> reference,
         final ServiceReference<S> tracked) {
+      ServiceTracker<S, ServiceReference<S>> currentTracker = tracker;
+      if (currentTracker != owner && currentTracker.getService(reference) != null) {
+        return;
+      }
       removedCapability(reference);
     }
   }
 
+  private static final String TRACK_ALL_FILTER = "(" + Constants.SERVICE_ID + "=*)";
+
+  private static final String TRACK_NONE_FILTER = "(!" + TRACK_ALL_FILTER + ")";
+
+  private final BundleContext context;
+
+  private final ServiceReferenceDispatcher<S> dispatcher;
+
+  private final Class<S> referenceType;
+
+  private RequirementDefinition<ServiceReference<S>>[] requirements;
+
   private final boolean trackAllServices;
 
-  private final ServiceTracker<S, ServiceReference<S>> tracker;
+  private volatile ServiceTracker<S, ServiceReference<S>> tracker;
+
+  private Filter trackerFilter;
 
   /**
    * Constructor.
@@ -82,31 +129,252 @@ public class ServiceReferenceCollector<S> extends AbstractCapabilityCollector<Se
       final RequirementDefinition<ServiceReference<S>>[] requirements,
       final CapabilityConsumer<ServiceReference<S>> capabilityConsumer,
       final boolean trackAllServices) {
-    super(requirements, capabilityConsumer);
+    this(context, referenceType, requirements, NotificationSink.of(capabilityConsumer),
+        trackAllServices);
+  }
+
+  /**
+   * Constructor of a collector that notifies its consumer only about the changes of the suitings.
+   *
+   * @param context
+   *          The context of the bundle that is used to track the services.
+   * @param referenceType
+   *          The type of the reference
+   * @param requirements
+   *          The requirements that need to be satisfied to satisfy the collector. The filter of
+   *          each requirement must match a {@link ServiceReference}.
+   * @param capabilityConsumer
+   *          The consumer that gets the changes of the suitings.
+   * @param trackAllServices
+   *          If {@code true}, then this {@code collector} will track all matching services
+   *          regardless of class loader accessibility. If {@code false}, then this
+   *          {@code collector} will only track matching services which are class loader accessible
+   *          to the bundle whose {@code BundleContext} is used by this {@code collector}.
+   */
+  public ServiceReferenceCollector(final BundleContext context, final Class<S> referenceType,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final CapabilityDeltaConsumer<ServiceReference<S>> capabilityConsumer,
+      final boolean trackAllServices) {
+    this(context, referenceType, requirements, NotificationSink.of(capabilityConsumer),
+        trackAllServices);
+  }
+
+  /**
+   * Constructor of a collector that passes the sequence number of each notification to its
+   * consumer.
+   *
+   * @param context
+   *          The context of the bundle that is used to track the services.
+   * @param referenceType
+   *          The type of the reference
+   * @param requirements
+   *          The requirements that need to be satisfied to satisfy the collector. The filter of
+   *          each requirement must match a {@link ServiceReference}.
+   * @param capabilityConsumer
+   *          The consumer that gets the sequence numbers of the notifications.
+   * @param trackAllServices
+   *          If {@code true}, then this {@code collector} will track all matching services
+   *          regardless of class loader accessibility. If {@code false}, then this
+   *          {@code collector} will only track matching services which are class loader accessible
+   *          to the bundle whose {@code BundleContext} is used by this {@code collector}.
+   */
+  public ServiceReferenceCollector(final BundleContext context, final Class<S> referenceType,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final SequencedCapabilityConsumer<ServiceReference<S>> capabilityConsumer,
+      final boolean trackAllServices) {
+    this(context, referenceType, requirements, NotificationSink.of(capabilityConsumer),
+        trackAllServices);
+  }
 
+  private ServiceReferenceCollector(final BundleContext context, final Class<S> referenceType,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final NotificationSink<ServiceReference<S>> notificationSink,
+      final boolean trackAllServices) {
+    super(requirements, notificationSink, new ReentrantLock(false));
+
+    Objects.requireNonNull(context, "Context must not be null");
+
+    this.context = context;
+    this.dispatcher = null;
+    this.referenceType = referenceType;
     this.trackAllServices = trackAllServices;
-    if (referenceType == null) {
+    this.trackerFilter = createTrackerFilter(requirements);
+    this.tracker = createTracker(trackerFilter);
+  }
+
+  /**
+   * Constructor of a collector that gets the services from a shared dispatcher instead of opening
+   * its own {@link ServiceTracker}.
+   *
+   * <p>
+   * The collectors of a dispatcher share the lock of the dispatcher and the consumers are called
+   * while that lock is held. A consumer that blocks stops the dispatching of the events to every
+   * other collector of the dispatcher. Slow consumers should get their notifications on another
+   * thread via {@link #setNotificationExecutor(java.util.concurrent.Executor)}. A consumer may
+   * open, close or update any collector of the same dispatcher.
+   *
+   * @param dispatcher
+   *          The dispatcher that tracks the services. The dispatcher must be opened to get the
+   *          services.
+   * @param requirements
+   *          The requirements that need to be satisfied to satisfy the collector. The filter of
+   *          each requirement must match a {@link ServiceReference}.
+   * @param capabilityConsumer
+   *          The consumer must be implemented by the programmer using this class to get notified
+   *          about the events of the collector.
+   */
+  public ServiceReferenceCollector(final ServiceReferenceDispatcher<S> dispatcher,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final CapabilityConsumer<ServiceReference<S>> capabilityConsumer) {
+    this(dispatcher, requirements, NotificationSink.of(capabilityConsumer));
+  }
+
+  /**
+   * Constructor of a collector that gets the services from a shared dispatcher and notifies its
+   * consumer only about the changes of the suitings. See
+   * {@link #ServiceReferenceCollector(ServiceReferenceDispatcher, RequirementDefinition[],
+   * CapabilityConsumer)} for the threading rules of the dispatcher.
+   *
+   * @param dispatcher
+   *          The dispatcher that tracks the services. The dispatcher must be opened to get the
+   *          services.
+   * @param requirements
+   *          The requirements that need to be satisfied to satisfy the collector. The filter of
+   *          each requirement must match a {@link ServiceReference}.
+   * @param capabilityConsumer
+   *          The consumer that gets the changes of the suitings.
+   */
+  public ServiceReferenceCollector(final ServiceReferenceDispatcher<S> dispatcher,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final CapabilityDeltaConsumer<ServiceReference<S>> capabilityConsumer) {
+    this(dispatcher, requirements, NotificationSink.of(capabilityConsumer));
+  }
+
+  /**
+   * Constructor of a collector that gets the services from a shared dispatcher and passes the
+   * sequence number of each notification to its consumer. See
+   * {@link #ServiceReferenceCollector(ServiceReferenceDispatcher, RequirementDefinition[],
+   * CapabilityConsumer)} for the threading rules of the dispatcher.
+   *
+   * @param dispatcher
+   *          The dispatcher that tracks the services. The dispatcher must be opened to get the
+   *          services.
+   * @param requirements
+   *          The requirements that need to be satisfied to satisfy the collector. The filter of
+   *          each requirement must match a {@link ServiceReference}.
+   * @param capabilityConsumer
+   *          The consumer that gets the sequence numbers of the notifications.
+   */
+  public ServiceReferenceCollector(final ServiceReferenceDispatcher<S> dispatcher,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final SequencedCapabilityConsumer<ServiceReference<S>> capabilityConsumer) {
+    this(dispatcher, requirements, NotificationSink.of(capabilityConsumer));
+  }
+
+  private ServiceReferenceCollector(final ServiceReferenceDispatcher<S> dispatcher,
+      final RequirementDefinition<ServiceReference<S>>[] requirements,
+      final NotificationSink<ServiceReference<S>> notificationSink) {
+    super(requirements, notificationSink,
+        Objects.requireNonNull(dispatcher, "Dispatcher must not be null").getLock());
+
+    this.context = null;
+    this.dispatcher = dispatcher;
+    this.referenceType = null;
+    this.requirements = requirements;
+    this.trackAllServices = false;
+    this.trackerFilter = null;
+    this.tracker = null;
+  }
+
+  @Override
+  protected void closeTracker() {
+    if (dispatcher != null) {
+      dispatcher.unregister(this);
+    } else {
+      tracker.close();
+    }
+  }
+
+  private Filter createFilter(final String filterString) {
+    try {
+      return context.createFilter(filterString);
+    } catch (InvalidSyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private ServiceTracker<S, ServiceReference<S>> createTracker(final Filter filter) {
+    ReferenceTrackerCustomizer customizer = new ReferenceTrackerCustomizer();
+    ServiceTracker<S, ServiceReference<S>> result =
+        new ServiceTracker<S, ServiceReference<S>>(context, filter, customizer);
+    customizer.owner = result;
+    return result;
+  }
+
+  /**
+   * Creates the filter of the tracker that matches the services that have the reference type and
+   * match the filter of at least one requirement. If any of the requirements has no filter or a
+   * filter that cannot be parsed by the framework, all services with the reference type are
+   * tracked.
+   */
+  private Filter createTrackerFilter(
+      final RequirementDefinition<ServiceReference<S>>[] requirements) {
+
+    String requirementsFilter;
+    if (requirements.length == 0) {
+      requirementsFilter = TRACK_NONE_FILTER;
+    } else {
+      Set<String> filterStrings = new LinkedHashSet<String>();
+      for (RequirementDefinition<ServiceReference<S>> requirement : requirements) {
+        Filter filter = requirement.getFilter();
+        if (filter == null) {
+          filterStrings = null;
+          break;
+        }
+        filterStrings.add(filter.toString());
+      }
+      requirementsFilter = unionOfFilters(filterStrings);
+    }
+
+    String objectClassFilter = null;
+    if (referenceType != null) {
+      objectClassFilter = "(" + Constants.OBJECTCLASS + "=" + referenceType.getName() + ")";
+    }
+
+    if (requirementsFilter != null) {
+      String filterString = requirementsFilter;
+      if (objectClassFilter != null) {
+        filterString = "(&" + objectClassFilter + requirementsFilter + ")";
+      }
       try {
-        tracker = new ServiceTracker<S, ServiceReference<S>>(context,
-            context.createFilter("(service.id=*)"),
-            new ReferenceTrackerCustomizer());
+        return context.createFilter(filterString);
       } catch (InvalidSyntaxException e) {
-        throw new RuntimeException(e);
+        // The toString of a custom filter implementation is not a valid filter, so all services
+        // that have the reference type are tracked.
       }
-    } else {
-      tracker = new ServiceTracker<S, ServiceReference<S>>(context, referenceType,
-          new ReferenceTrackerCustomizer());
     }
-  }
 
-  @Override
-  protected void closeTracker() {
-    tracker.close();
+    if (objectClassFilter != null) {
+      return createFilter(objectClassFilter);
+    }
+    return createFilter(TRACK_ALL_FILTER);
   }
 
+  /**
+   * Returns a snapshot of the properties of the service. The collector keeps the snapshot until
+   * the service is modified and matches the requirements on it, so the properties are not read
+   * from the framework again when the candidates of a requirement are searched. Collectors of a
+   * dispatcher reuse the snapshot that the dispatcher took for the same event.
+   */
   @Override
-  protected ServiceReference<S>[] getAvailableCapabilities() {
-    return tracker.getServiceReferences();
+  protected Map<String, ?> getAttributes(final ServiceReference<S> capability) {
+    if (dispatcher != null) {
+      Map<String, ?> attributes = dispatcher.getIndexedAttributes(capability);
+      if (attributes != null) {
+        return attributes;
+      }
+    }
+    return new ServicePropertyMap(capability);
   }
 
   @Override
@@ -116,6 +384,58 @@ public class ServiceReferenceCollector<S> extends AbstractCapabilityCollector<Se
 
   @Override
   protected void openTracker() {
-    tracker.open(trackAllServices);
+    if (dispatcher != null) {
+      dispatcher.register(this, requirements);
+    } else {
+      tracker.open(trackAllServices);
+    }
+  }
+
+  /**
+   * Replaces the tracker if the union of the requirement filters changed. The new tracker is
+   * opened before the old one is closed, so no service event is lost in the meantime. In case the
+   * collector uses a dispatcher, its demand is updated in the dispatcher.
+   */
+  @Override
+  protected void requirementsUpdated(
+      final RequirementDefinition<ServiceReference<S>>[] newRequirements) {
+
+    if (dispatcher != null) {
+      requirements = newRequirements;
+      if (isOpened()) {
+        dispatcher.updateDemand(this, newRequirements);
+      }
+      return;
+    }
+
+    Filter newTrackerFilter = createTrackerFilter(newRequirements);
+    if (newTrackerFilter.toString().equals(trackerFilter.toString())) {
+      return;
+    }
+
+    ServiceTracker<S, ServiceReference<S>> oldTracker = tracker;
+    ServiceTracker<S, ServiceReference<S>> newTracker = createTracker(newTrackerFilter);
+    trackerFilter = newTrackerFilter;
+    tracker = newTracker;
+
+    if (isOpened()) {
+      newTracker.open(trackAllServices);
+      oldTracker.close();
+    }
+  }
+
+  private String unionOfFilters(final Set<String> filterStrings) {
+    if (filterStrings == null) {
+      return null;
+    }
+    if (filterStrings.size() == 1) {
+      return filterStrings.iterator().next();
+    }
+    StringBuilder sb = new StringBuilder("(|");
+    for (String filterString : filterStrings) {
+      sb.append(filterString);
+    }
+    sb.append(')');
+    return sb.toString();
   }
 }
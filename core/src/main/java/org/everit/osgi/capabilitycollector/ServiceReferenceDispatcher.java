@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Map;
+import java.util.Objects;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * An {@link AbstractCapabilityDispatcher} that tracks {@link ServiceReference}s with one
+ * {@link ServiceTracker} and passes them to the {@link ServiceReferenceCollector}s that are created
+ * with this dispatcher.
+ *
+ * @param <S>
+ *          Type of the service.
+ */
+public class ServiceReferenceDispatcher<S> extends
+    AbstractCapabilityDispatcher<ServiceReference<S>> {
+
+  /**
+   * Customizer of the inner {@link ServiceTracker}.
+   */
+  private class ReferenceTrackerCustomizer implements
+      ServiceTrackerCustomizer<S, ServiceReference<S>> {
+
+    @Override
+    public ServiceReference<S> addingService(final ServiceReference<S> reference) {
+      addingCapability(reference);
+      return reference;
+    }
+
+    @Override
+    public void modifiedService(final ServiceReference<S> reference,
+        final ServiceReference<S> tracked) {
+      modifiedCapability(reference);
+    }
+
+    @Override
+    public void removedService(final ServiceReference<S> reference,
+        final ServiceReference<S> tracked) {
+      removedCapability(reference);
+    }
+  }
+
+  private final boolean trackAllServices;
+
+  private final ServiceTracker<S, ServiceReference<S>> tracker;
+
+  /**
+   * Constructor.
+   *
+   * @param context
+   *          The context of the bundle that is used to track the services.
+   * @param referenceType
+   *          The type of the reference or <code>null</code> if all services should be tracked.
+   * @param trackAllServices
+   *          If {@code true}, then this {@code dispatcher} will track all matching services
+   *          regardless of class loader accessibility. If {@code false}, then this
+   *          {@code dispatcher} will only track matching services which are class loader
+   *          accessible to the bundle whose {@code BundleContext} is used by this
+   *          {@code dispatcher}.
+   */
+  public ServiceReferenceDispatcher(final BundleContext context, final Class<S> referenceType,
+      final boolean trackAllServices) {
+    Objects.requireNonNull(context, "Context must not be null");
+
+    this.trackAllServices = trackAllServices;
+    if (referenceType == null) {
+      try {
+        tracker = new ServiceTracker<S, ServiceReference<S>>(context,
+            context.createFilter("(" + Constants.SERVICE_ID + "=*)"),
+            new ReferenceTrackerCustomizer());
+      } catch (InvalidSyntaxException e) {
+        throw new RuntimeException(e);
+      }
+    } else {
+      tracker = new ServiceTracker<S, ServiceReference<S>>(context, referenceType,
+          new ReferenceTrackerCustomizer());
+    }
+  }
+
+  @Override
+  protected void closeTracker() {
+    tracker.close();
+  }
+
+  @Override
+  protected Map<String, ?> getAttributes(final ServiceReference<S> capability) {
+    return new ServicePropertyMap(capability);
+  }
+
+  @Override
+  protected void openTracker() {
+    tracker.open(trackAllServices);
+  }
+}
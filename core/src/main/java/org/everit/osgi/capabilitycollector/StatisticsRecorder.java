@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the statistics of a capability collector while statistics are enabled. Most counters
+ * are updated while the lock of the collector is held, but the lock wait time and the
+ * notifications can be recorded concurrently, so all counters are atomic.
+ */
+final class StatisticsRecorder {
+
+  final AtomicLong addedCapabilities = new AtomicLong();
+
+  final AtomicLong filterEvaluations = new AtomicLong();
+
+  final AtomicLong lockAcquisitions = new AtomicLong();
+
+  final AtomicLong lockHoldNanos = new AtomicLong();
+
+  final AtomicLong lockWaitNanos = new AtomicLong();
+
+  final AtomicLong modifiedCapabilities = new AtomicLong();
+
+  final AtomicLong notificationNanos = new AtomicLong();
+
+  final AtomicLong notifications = new AtomicLong();
+
+  final AtomicLong removedCapabilities = new AtomicLong();
+
+  final AtomicLong requirementUpdates = new AtomicLong();
+
+  final AtomicLong rescans = new AtomicLong();
+
+  final long startNanos;
+
+  private long unsatisfiedNanos = 0;
+
+  /**
+   * The time when the collector became unsatisfied or <code>null</code> if the collector is
+   * satisfied or not opened.
+   */
+  private Long unsatisfiedSince;
+
+  StatisticsRecorder(final long startNanos) {
+    this.startNanos = startNanos;
+  }
+
+  /**
+   * Returns the time the collector spent unsatisfied until now.
+   */
+  synchronized long getUnsatisfiedNanos(final long nowNanos) {
+    if (unsatisfiedSince == null) {
+      return unsatisfiedNanos;
+    }
+    return unsatisfiedNanos + (nowNanos - unsatisfiedSince);
+  }
+
+  void lockAcquired(final long waitNanos) {
+    lockAcquisitions.incrementAndGet();
+    lockWaitNanos.addAndGet(waitNanos);
+  }
+
+  void notificationDelivered(final long durationNanos) {
+    notifications.incrementAndGet();
+    notificationNanos.addAndGet(durationNanos);
+  }
+
+  /**
+   * Records whether the collector is opened and unsatisfied from now on.
+   */
+  synchronized void setUnsatisfied(final boolean unsatisfied, final long nowNanos) {
+    if (unsatisfied && unsatisfiedSince == null) {
+      unsatisfiedSince = nowNanos;
+    } else if (!unsatisfied && unsatisfiedSince != null) {
+      unsatisfiedNanos += nowNanos - unsatisfiedSince;
+      unsatisfiedSince = null;
+    }
+  }
+}
@@ -15,27 +15,63 @@
  */
 package org.everit.osgi.capabilitycollector;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * A suiting describes the satisfaction (or dissatisfaction) of a requirement. In case the
- * requirement is unsatisfied, the capability attribute is <code>null</code>.
+ * requirement is not wired to any capability, the capability attribute is <code>null</code>. In
+ * case the requirement has {@link Cardinality#isMultiple() multiple} cardinality, the suiting
+ * holds all capabilities that the requirement is wired to.
  *
  * @param <C>
  *          The type of the capability.
  */
 public class Suiting<C> {
 
+  private final List<C> capabilities;
+
   private final C capability;
 
   private final RequirementDefinition<C> requirement;
 
   public Suiting(final RequirementDefinition<C> requirement, final C capability) {
+    this(requirement, capability, (capability != null) ? Collections.singletonList(capability)
+        : Collections.<C> emptyList());
+  }
+
+  /**
+   * Constructor of a suiting that holds several capabilities.
+   *
+   * @param requirement
+   *          The requirement.
+   * @param capability
+   *          The preferred capability that must be the first element of the capabilities or
+   *          <code>null</code> if there is none.
+   * @param capabilities
+   *          The immutable list of the capabilities.
+   */
+  Suiting(final RequirementDefinition<C> requirement, final C capability,
+      final List<C> capabilities) {
     this.requirement = requirement;
     this.capability = capability;
+    this.capabilities = capabilities;
+  }
+
+  /**
+   * The capabilities that the requirement is wired to. In case the requirement has single
+   * cardinality, the list contains at most one capability.
+   *
+   * @return an immutable list of the capabilities in the order of preference.
+   */
+  public List<C> getCapabilities() {
+    return capabilities;
   }
 
   /**
    * The capability that satisfies the requirement. In case the requirement is not satisfied, the
-   * capability is <code>null</code>.
+   * capability is <code>null</code>. In case the requirement has multiple cardinality, the
+   * preferred one of its capabilities is returned.
    *
    * @return the capability that satisfies the requirement or <code>null</code> if the requirement
    *         is not satisfied.
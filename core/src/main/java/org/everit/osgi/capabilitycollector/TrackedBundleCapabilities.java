@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * The tracked object of a bundle in the bundle trackers of the collectors and the dispatchers. It
+ * holds the capabilities of a namespace that were taken from the wiring of the bundle, so exactly
+ * the same capabilities are removed when the bundle is not tracked anymore. If the bundle gets a
+ * new wiring (e.g. after a refresh), {@link #refresh(Bundle, Collection, Collection)} replaces the
+ * capabilities and calculates the difference.
+ */
+final class TrackedBundleCapabilities {
+
+  private static List<BundleCapability> getCapabilities(final BundleWiring wiring,
+      final String namespace) {
+    // The wiring returns null if it is not current anymore
+    List<BundleCapability> result = (wiring != null) ? wiring.getCapabilities(namespace) : null;
+    if (result == null) {
+      return Collections.emptyList();
+    }
+    return result;
+  }
+
+  private List<BundleCapability> capabilities;
+
+  private final String namespace;
+
+  private BundleWiring wiring;
+
+  TrackedBundleCapabilities(final Bundle bundle, final String namespace) {
+    this.namespace = namespace;
+    this.wiring = bundle.adapt(BundleWiring.class);
+    this.capabilities = getCapabilities(wiring, namespace);
+  }
+
+  synchronized List<BundleCapability> getCapabilities() {
+    return capabilities;
+  }
+
+  /**
+   * Checks whether the bundle has a new wiring and if it has, takes the capabilities from the new
+   * wiring.
+   *
+   * @param bundle
+   *          The bundle.
+   * @param removedCapabilities
+   *          The capabilities that were available only in the previous wiring are added to this
+   *          collection.
+   * @param addedCapabilities
+   *          The capabilities that are available only in the new wiring are added to this
+   *          collection.
+   * @return <code>true</code> if any capability was removed or added.
+   */
+  synchronized boolean refresh(final Bundle bundle,
+      final Collection<BundleCapability> removedCapabilities,
+      final Collection<BundleCapability> addedCapabilities) {
+
+    BundleWiring newWiring = bundle.adapt(BundleWiring.class);
+    if (newWiring == wiring) {
+      return false;
+    }
+    List<BundleCapability> newCapabilities = getCapabilities(newWiring, namespace);
+
+    Set<BundleCapability> oldCapabilitySet = new HashSet<BundleCapability>(capabilities);
+    Set<BundleCapability> newCapabilitySet = new HashSet<BundleCapability>(newCapabilities);
+    for (BundleCapability capability : capabilities) {
+      if (!newCapabilitySet.contains(capability)) {
+        removedCapabilities.add(capability);
+      }
+    }
+    for (BundleCapability capability : newCapabilities) {
+      if (!oldCapabilitySet.contains(capability)) {
+        addedCapabilities.add(capability);
+      }
+    }
+
+    wiring = newWiring;
+    capabilities = newCapabilities;
+    return !removedCapabilities.isEmpty() || !addedCapabilities.isEmpty();
+  }
+}
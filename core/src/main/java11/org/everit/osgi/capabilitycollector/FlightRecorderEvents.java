@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Emits the Java Flight Recorder events of the capability collectors on Java 11 and later. This
+ * class is packaged under <code>META-INF/versions/11</code> of the multi-release jar and replaces
+ * the implementation that does nothing.
+ *
+ * <p>
+ * The events are only instantiated if their type is enabled in a running recording, so the cost
+ * of a call is a flag check when nothing is recorded. If the <code>jdk.jfr</code> package is not
+ * visible to the class (e.g. the OSGi framework does not export it), no events are emitted.
+ */
+final class FlightRecorderEvents {
+
+  /**
+   * Recorded when a consumer of a collector is notified.
+   */
+  @Name("org.everit.osgi.capabilitycollector.ConsumerCallback")
+  @Label("Consumer Callback")
+  @Category({ "OSGi", "Capability Collector" })
+  @Description("A consumer of a capability collector was notified")
+  static final class ConsumerCallbackEvent extends Event {
+
+    @Label("Collector Class")
+    Class<?> collectorClass;
+
+    @Label("Collector Id")
+    @Description("The identity hash code of the collector")
+    int collectorId;
+
+    @Label("Exception Class")
+    @Description("The class of the exception that the consumer threw")
+    Class<?> exceptionClass;
+
+    @Label("Exception Message")
+    String exceptionMessage;
+  }
+
+  /**
+   * Recorded when the lock of a collector is held longer than the threshold.
+   */
+  @Name("org.everit.osgi.capabilitycollector.LockHold")
+  @Label("Collector Lock Hold")
+  @Category({ "OSGi", "Capability Collector" })
+  @Description("The lock of a capability collector was held for a long time")
+  @Threshold("10 ms")
+  static final class LockHoldEvent extends Event {
+
+    @Label("Collector Class")
+    Class<?> collectorClass;
+
+    @Label("Collector Id")
+    @Description("The identity hash code of the collector")
+    int collectorId;
+  }
+
+  /**
+   * Recorded when a requirement of a collector is wired to other capabilities.
+   */
+  @Name("org.everit.osgi.capabilitycollector.RequirementWired")
+  @Label("Requirement Wired")
+  @Category({ "OSGi", "Capability Collector" })
+  @Description("A requirement of a capability collector was wired to its current capabilities")
+  static final class RequirementWiredEvent extends Event {
+
+    @Label("Capabilities")
+    String capabilities;
+
+    @Label("Capability Count")
+    int capabilityCount;
+
+    @Label("Collector Class")
+    Class<?> collectorClass;
+
+    @Label("Collector Id")
+    @Description("The identity hash code of the collector")
+    int collectorId;
+
+    @Label("Requirement Id")
+    String requirementId;
+  }
+
+  /**
+   * Recorded when a collector becomes satisfied or unsatisfied.
+   */
+  @Name("org.everit.osgi.capabilitycollector.SatisfactionChanged")
+  @Label("Satisfaction Changed")
+  @Category({ "OSGi", "Capability Collector" })
+  @Description("A capability collector became satisfied or unsatisfied")
+  static final class SatisfactionChangedEvent extends Event {
+
+    @Label("Collector Class")
+    Class<?> collectorClass;
+
+    @Label("Collector Id")
+    @Description("The identity hash code of the collector")
+    int collectorId;
+
+    @Label("Satisfied")
+    boolean satisfied;
+  }
+
+  private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+  /**
+   * Instances that are only used to check whether the event types are enabled without creating an
+   * event for each call.
+   */
+  private static final ConsumerCallbackEvent CONSUMER_CALLBACK_TYPE =
+      AVAILABLE ? new ConsumerCallbackEvent() : null;
+
+  private static final LockHoldEvent LOCK_HOLD_TYPE = AVAILABLE ? new LockHoldEvent() : null;
+
+  private static final RequirementWiredEvent REQUIREMENT_WIRED_TYPE =
+      AVAILABLE ? new RequirementWiredEvent() : null;
+
+  private static final SatisfactionChangedEvent SATISFACTION_CHANGED_TYPE =
+      AVAILABLE ? new SatisfactionChangedEvent() : null;
+
+  static Object beginConsumerCallback() {
+    if (!AVAILABLE || !CONSUMER_CALLBACK_TYPE.isEnabled()) {
+      return null;
+    }
+    ConsumerCallbackEvent event = new ConsumerCallbackEvent();
+    event.begin();
+    return event;
+  }
+
+  static Object beginLockHold() {
+    if (!AVAILABLE || !LOCK_HOLD_TYPE.isEnabled()) {
+      return null;
+    }
+    LockHoldEvent event = new LockHoldEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endConsumerCallback(final Object event,
+      final AbstractCapabilityCollector<?> collector, final Throwable error) {
+    if (event == null) {
+      return;
+    }
+    ConsumerCallbackEvent consumerCallbackEvent = (ConsumerCallbackEvent) event;
+    consumerCallbackEvent.end();
+    if (consumerCallbackEvent.shouldCommit()) {
+      consumerCallbackEvent.collectorClass = collector.getClass();
+      consumerCallbackEvent.collectorId = System.identityHashCode(collector);
+      if (error != null) {
+        consumerCallbackEvent.exceptionClass = error.getClass();
+        consumerCallbackEvent.exceptionMessage = error.getMessage();
+      }
+      consumerCallbackEvent.commit();
+    }
+  }
+
+  static void endLockHold(final Object event, final AbstractCapabilityCollector<?> collector) {
+    if (event == null) {
+      return;
+    }
+    LockHoldEvent lockHoldEvent = (LockHoldEvent) event;
+    lockHoldEvent.end();
+    if (lockHoldEvent.shouldCommit()) {
+      lockHoldEvent.collectorClass = collector.getClass();
+      lockHoldEvent.collectorId = System.identityHashCode(collector);
+      lockHoldEvent.commit();
+    }
+  }
+
+  private static boolean isFlightRecorderAvailable() {
+    try {
+      return FlightRecorder.isAvailable();
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  static void requirementWired(final AbstractCapabilityCollector<?> collector,
+      final Suiting<?> suiting) {
+    if (!AVAILABLE || !REQUIREMENT_WIRED_TYPE.isEnabled()) {
+      return;
+    }
+    RequirementWiredEvent event = new RequirementWiredEvent();
+    if (event.shouldCommit()) {
+      event.collectorClass = collector.getClass();
+      event.collectorId = System.identityHashCode(collector);
+      event.requirementId = suiting.getRequirement().getRequirementId();
+      event.capabilities = String.valueOf(suiting.getCapabilities());
+      event.capabilityCount = suiting.getCapabilities().size();
+      event.commit();
+    }
+  }
+
+  static void satisfactionChanged(final AbstractCapabilityCollector<?> collector,
+      final boolean satisfied) {
+    if (!AVAILABLE || !SATISFACTION_CHANGED_TYPE.isEnabled()) {
+      return;
+    }
+    SatisfactionChangedEvent event = new SatisfactionChangedEvent();
+    if (event.shouldCommit()) {
+      event.collectorClass = collector.getClass();
+      event.collectorId = System.identityHashCode(collector);
+      event.satisfied = satisfied;
+      event.commit();
+    }
+  }
+
+  private FlightRecorderEvents() {
+  }
+}
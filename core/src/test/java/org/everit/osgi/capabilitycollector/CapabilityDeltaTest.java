@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of {@link CapabilityDelta}.
+ */
+public class CapabilityDeltaTest {
+
+  private final Map<String, RequirementDefinition<String>> requirements =
+      new LinkedHashMap<String, RequirementDefinition<String>>();
+
+  /**
+   * Creates the suitings of requirements from pairs of requirement ids and capabilities.
+   */
+  private Map<String, Suiting<String>> suitings(final String... idsAndCapabilities) {
+    Map<String, Suiting<String>> result = new LinkedHashMap<String, Suiting<String>>();
+    for (int i = 0; i < idsAndCapabilities.length; i = i + 2) {
+      String requirementId = idsAndCapabilities[i];
+      RequirementDefinition<String> requirement = requirements.get(requirementId);
+      if (requirement == null) {
+        requirement = new RequirementDefinition<String>(requirementId, null, null,
+            Collections.<String, Object> emptyMap(), Cardinality.MANDATORY);
+        requirements.put(requirementId, requirement);
+      }
+      result.put(requirementId, new Suiting<String>(requirement, idsAndCapabilities[i + 1]));
+    }
+    return result;
+  }
+
+  @Test
+  public void testGainedLostChanged() {
+    Map<String, Suiting<String>> previousSuitings =
+        suitings("a", null, "b", "b1", "c", "c1", "d", "d1");
+    Map<String, Suiting<String>> currentSuitings =
+        suitings("a", "a1", "b", null, "c", "c2", "d", "d1");
+    CapabilityDelta<String> delta =
+        new CapabilityDelta<String>(previousSuitings, currentSuitings, true, false, 5);
+
+    Assert.assertEquals(Arrays.asList(currentSuitings.get("a")), delta.getGained());
+    Assert.assertEquals(Arrays.asList(previousSuitings.get("b")), delta.getLost());
+    Assert.assertEquals(Arrays.asList(currentSuitings.get("c")), delta.getChanged());
+    Assert.assertTrue(delta.isPreviouslySatisfied());
+    Assert.assertFalse(delta.isSatisfied());
+    Assert.assertTrue(delta.isSatisfactionChanged());
+    Assert.assertEquals(5, delta.getSequence());
+  }
+
+  @Test
+  public void testMerge() {
+    CapabilityDelta<String> first = new CapabilityDelta<String>(
+        suitings("a", null, "b", "b1"), suitings("a", "a1", "b", null), false, true, 1);
+    CapabilityDelta<String> second = new CapabilityDelta<String>(
+        suitings("a", "a1", "b", null, "c", "c1"), suitings("a", null, "b", "b2", "c", "c2"),
+        true, false, 3);
+
+    CapabilityDelta<String> merged = first.merge(second);
+
+    // a came and left, b was replaced, c changed only in the second delta
+    Assert.assertTrue(merged.getGained().isEmpty());
+    Assert.assertTrue(merged.getLost().isEmpty());
+    Assert.assertEquals(2, merged.getChanged().size());
+    Assert.assertEquals("b2", merged.getChanged().get(0).getCapability());
+    Assert.assertEquals("c2", merged.getChanged().get(1).getCapability());
+    Assert.assertFalse(merged.isPreviouslySatisfied());
+    Assert.assertFalse(merged.isSatisfied());
+    Assert.assertFalse(merged.isSatisfactionChanged());
+    Assert.assertEquals(3, merged.getSequence());
+  }
+
+  @Test
+  public void testMergeOfGainAndLoss() {
+    CapabilityDelta<String> lost = new CapabilityDelta<String>(
+        suitings("a", "a1"), suitings("a", null), true, false, 1);
+    CapabilityDelta<String> gained = new CapabilityDelta<String>(
+        suitings("a", null, "b", null), suitings("a", null, "b", "b1"), false, false, 2);
+
+    CapabilityDelta<String> merged = lost.merge(gained);
+    Assert.assertEquals("b1", merged.getGained().get(0).getCapability());
+    Assert.assertEquals(1, merged.getGained().size());
+    Assert.assertEquals("a1", merged.getLost().get(0).getCapability());
+    Assert.assertEquals(1, merged.getLost().size());
+    Assert.assertTrue(merged.getChanged().isEmpty());
+    Assert.assertTrue(merged.isSatisfactionChanged());
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of {@link CapabilityIndex}.
+ */
+public class CapabilityIndexTest {
+
+  /**
+   * Attributes that count how many times each attribute is read.
+   */
+  private static final class CountingAttributes extends HashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<Object, Integer> reads = new HashMap<Object, Integer>();
+
+    @Override
+    public Object get(final Object key) {
+      Integer count = reads.get(key);
+      reads.put(key, (count == null) ? 1 : count + 1);
+      return super.get(key);
+    }
+
+    int getReads(final String key) {
+      Integer count = reads.get(key);
+      return (count == null) ? 0 : count;
+    }
+  }
+
+  private static CountingAttributes createAttributes(final String type, final String name) {
+    CountingAttributes attributes = new CountingAttributes();
+    attributes.put("type", type);
+    attributes.put("name", name);
+    return attributes;
+  }
+
+  private static List<String> lookup(final CapabilityIndex<String> index, final String key,
+      final String value) {
+    return new ArrayList<String>(
+        index.candidates(null, Collections.singletonList(new EqualityTerm(key, value))));
+  }
+
+  @Test
+  public void testAddIndexedKeyReadsOnlyTheAddedKey() {
+    CapabilityIndex<String> index = new CapabilityIndex<String>();
+    index.addIndexedKey("type");
+    CountingAttributes attributes1 = createAttributes("a", "x");
+    CountingAttributes attributes2 = createAttributes("b", "y");
+    index.add("1", null, attributes1);
+    index.add("2", null, attributes2);
+
+    index.addIndexedKey("name");
+
+    Assert.assertEquals(1, attributes1.getReads("type"));
+    Assert.assertEquals(1, attributes1.getReads("name"));
+    Assert.assertEquals(Arrays.asList("2"), lookup(index, "name", "y"));
+    Assert.assertEquals(Arrays.asList("1"), lookup(index, "type", "a"));
+
+    index.addIndexedKey("name");
+
+    Assert.assertEquals(1, attributes2.getReads("name"));
+  }
+
+  @Test
+  public void testCandidatesOfRoute() {
+    CapabilityIndex<String> index = new CapabilityIndex<String>();
+    index.addIndexedKey("type");
+    index.add("a1", "a", createAttributes("x", "1"));
+    index.add("b1", "b", createAttributes("x", "2"));
+    index.add("b2", "b", createAttributes("y", "3"));
+    index.add("unknown", null, createAttributes("x", "4"));
+    List<EqualityTerm> terms = Collections.singletonList(new EqualityTerm("type", "x"));
+
+    Assert.assertEquals(Arrays.asList("a1", "unknown"),
+        new ArrayList<String>(index.candidates("a", terms)));
+    Assert.assertEquals(Arrays.asList("b1", "b2", "unknown"), new ArrayList<String>(
+        index.candidates("b", Collections.<EqualityTerm> emptyList())));
+    Assert.assertEquals(Arrays.asList("unknown"),
+        new ArrayList<String>(index.candidates("c", terms)));
+    Assert.assertEquals(3, index.candidates(null, terms).size());
+
+    index.update("unknown", "a", createAttributes("x", "4"));
+    Assert.assertEquals(Arrays.asList("b1"), new ArrayList<String>(index.candidates("b", terms)));
+    index.remove("b1");
+    index.remove("b2");
+    Assert.assertTrue(index.candidates("b", terms).isEmpty());
+  }
+
+  @Test
+  public void testRemoveIndexedKeyKeepsTheOtherKeys() {
+    CapabilityIndex<String> index = new CapabilityIndex<String>();
+    index.addIndexedKey("type");
+    index.addIndexedKey("name");
+    CountingAttributes attributes = createAttributes("a", "x");
+    index.add("1", null, attributes);
+    index.add("2", null, createAttributes("b", "x"));
+
+    index.removeIndexedKey("name");
+
+    Assert.assertEquals(1, attributes.getReads("type"));
+    Assert.assertEquals(Arrays.asList("1"), lookup(index, "type", "a"));
+    Assert.assertEquals(2, lookup(index, "name", "z").size());
+
+    index.remove("1");
+    index.addIndexedKey("name");
+
+    Assert.assertEquals(Arrays.asList("2"), lookup(index, "name", "x"));
+    Assert.assertTrue(lookup(index, "type", "a").isEmpty());
+  }
+
+  @Test
+  public void testSetIndexedKeysTouchesOnlyChangedKeys() {
+    CapabilityIndex<String> index = new CapabilityIndex<String>();
+    index.setIndexedKeys(Collections.singleton("type"));
+    CountingAttributes attributes = createAttributes("a", "x");
+    index.add("1", null, attributes);
+
+    index.setIndexedKeys(new HashSet<String>(Arrays.asList("type", "name")));
+    index.setIndexedKeys(Collections.singleton("name"));
+
+    Assert.assertEquals(1, attributes.getReads("type"));
+    Assert.assertEquals(1, attributes.getReads("name"));
+    Assert.assertEquals(Arrays.asList("1"), lookup(index, "name", "x"));
+    Assert.assertTrue(lookup(index, "name", "y").isEmpty());
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Tests of {@link FilterPool}.
+ */
+public class FilterPoolTest {
+
+  /**
+   * Attributes that count how many times each attribute is read.
+   */
+  private static final class CountingAttributes extends HashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<Object, Integer> reads = new HashMap<Object, Integer>();
+
+    @Override
+    public Object get(final Object key) {
+      Integer count = reads.get(key);
+      reads.put(key, (count == null) ? 1 : count + 1);
+      return super.get(key);
+    }
+
+    int getReads(final String key) {
+      Integer count = reads.get(key);
+      return (count == null) ? 0 : count;
+    }
+  }
+
+  private static FilterPool createFilterPool(final String... filters)
+      throws InvalidSyntaxException {
+    RequirementDefinition<?>[] requirements = new RequirementDefinition<?>[filters.length];
+    for (int i = 0; i < filters.length; i++) {
+      requirements[i] = new RequirementDefinition<Object>(String.valueOf(i),
+          FrameworkUtil.createFilter(filters[i]), Collections.<String, Object> emptyMap());
+    }
+    return new FilterPool(requirements);
+  }
+
+  @Test
+  public void testEvaluationIsForgottenForNextCapability() throws InvalidSyntaxException {
+    FilterPool filterPool = createFilterPool("(&(key=1)(type=a))", "(&(key=1)(type=b))");
+
+    CountingAttributes first = new CountingAttributes();
+    first.put("key", "1");
+    first.put("type", "a");
+    filterPool.startEvaluation();
+    Assert.assertTrue(filterPool.matches(0, first));
+    Assert.assertFalse(filterPool.matches(1, first));
+
+    CountingAttributes second = new CountingAttributes();
+    second.put("key", "2");
+    second.put("type", "b");
+    filterPool.startEvaluation();
+    Assert.assertFalse(filterPool.matches(0, second));
+    Assert.assertFalse(filterPool.matches(1, second));
+    Assert.assertEquals(1, second.getReads("key"));
+  }
+
+  @Test
+  public void testSharedSubexpressions() throws InvalidSyntaxException {
+    FilterPool filterPool = createFilterPool("(&(key=1)(type=a))", "(&(type=b)(key=1))",
+        "(|(key=1)(key=2))", "(&(key=1)(type=a))");
+
+    // Equal filters and subexpressions are interned: key=1, type=a, type=b, key=2, the two
+    // conjunctions and the disjunction
+    Assert.assertEquals(7, filterPool.getNodeCount());
+
+    CountingAttributes attributes = new CountingAttributes();
+    attributes.put("key", "1");
+    attributes.put("type", "a");
+    filterPool.startEvaluation();
+    Assert.assertTrue(filterPool.matches(0, attributes));
+    Assert.assertFalse(filterPool.matches(1, attributes));
+    Assert.assertTrue(filterPool.matches(2, attributes));
+    Assert.assertTrue(filterPool.matches(3, attributes));
+
+    // Each distinct comparison read its attribute once, key=2 was not needed by the disjunction
+    Assert.assertEquals(1, attributes.getReads("key"));
+    Assert.assertEquals(2, attributes.getReads("type"));
+  }
+}
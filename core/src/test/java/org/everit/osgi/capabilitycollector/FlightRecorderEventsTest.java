@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+
+/**
+ * Tests of {@link FlightRecorderEvents} on a runtime without the Flight Recorder API. The unit
+ * tests run on the classes directory that is not a multi-release jar, so the implementation that
+ * does nothing is loaded even if the tests run on Java 11 or later.
+ */
+public class FlightRecorderEventsTest {
+
+  /**
+   * A collector of string capabilities that are passed by the test.
+   */
+  private static final class StringCollector extends AbstractCapabilityCollector<String> {
+
+    StringCollector(final RequirementDefinition<String>[] requirements,
+        final CapabilityConsumer<String> capabilityConsumer) {
+      super(requirements, capabilityConsumer);
+    }
+
+    @Override
+    protected void closeTracker() {
+      // Capabilities are passed by the test
+    }
+
+    @Override
+    protected Map<String, ?> getAttributes(final String capability) {
+      return Collections.singletonMap("name", capability);
+    }
+
+    @Override
+    protected boolean matches(final String capability, final Filter filter) {
+      return true;
+    }
+
+    @Override
+    protected void openTracker() {
+      // Capabilities are passed by the test
+    }
+  }
+
+  @Test
+  public void testCollectorWithoutFlightRecorder() {
+    final List<Boolean> notifications = new ArrayList<Boolean>();
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<String>[] requirements = new RequirementDefinition[] {
+        new RequirementDefinition<String>("1", null, Collections.<String, Object> emptyMap()) };
+    StringCollector collector = new StringCollector(requirements, new CapabilityConsumer<String>() {
+
+      @Override
+      public void accept(final Suiting<String>[] suitings, final boolean satisfied) {
+        notifications.add(satisfied);
+        if (satisfied) {
+          // The consumer callback is ended with the exception
+          throw new IllegalStateException("Test exception");
+        }
+      }
+    });
+
+    // Every kind of event is emitted: lock holds, consumer callbacks, wirings and satisfaction
+    // changes
+    collector.open();
+    collector.addingCapablility("a");
+    Assert.assertTrue(collector.isSatisfied());
+    collector.removedCapability("a");
+    Assert.assertFalse(collector.isSatisfied());
+    collector.close();
+
+    Assert.assertEquals(3, notifications.size());
+    Assert.assertEquals(Boolean.TRUE, notifications.get(1));
+  }
+
+  @Test
+  public void testEventsAreNotRecorded() {
+    Assert.assertNull(FlightRecorderEvents.beginConsumerCallback());
+    Assert.assertNull(FlightRecorderEvents.beginLockHold());
+
+    RequirementDefinition<String> requirement =
+        new RequirementDefinition<String>("1", null, Collections.<String, Object> emptyMap());
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<String>[] requirements = new RequirementDefinition[] { requirement };
+    StringCollector collector = new StringCollector(requirements,
+        new CapabilityConsumer<String>() {
+
+          @Override
+          public void accept(final Suiting<String>[] suitings, final boolean satisfied) {
+            Assert.fail("The consumer should not be called");
+          }
+        });
+    FlightRecorderEvents.endConsumerCallback(null, collector, new IllegalStateException());
+    FlightRecorderEvents.endLockHold(null, collector);
+    FlightRecorderEvents.requirementWired(collector, new Suiting<String>(requirement, "a"));
+    FlightRecorderEvents.satisfactionChanged(collector, true);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Tests of {@link TrackedBundleCapabilities}.
+ */
+public class TrackedBundleCapabilitiesTest {
+
+  /**
+   * Answers the {@link Object} functions of a proxy by identity and returns <code>null</code> for
+   * every other function that is not handled by the subclass.
+   */
+  private static class ProxyHandler implements InvocationHandler {
+
+    private final String name;
+
+    ProxyHandler(final String name) {
+      this.name = name;
+    }
+
+    protected Object handle(final Method method, final Object[] args) {
+      return null;
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+      String methodName = method.getName();
+      if ("equals".equals(methodName)) {
+        return proxy == args[0];
+      } else if ("hashCode".equals(methodName)) {
+        return System.identityHashCode(proxy);
+      } else if ("toString".equals(methodName)) {
+        return name;
+      }
+      return handle(method, args);
+    }
+  }
+
+  private static final String NAMESPACE = "testNamespace";
+
+  private static <T> T createProxy(final Class<T> type, final ProxyHandler handler) {
+    return type.cast(Proxy.newProxyInstance(TrackedBundleCapabilitiesTest.class.getClassLoader(),
+        new Class<?>[] { type }, handler));
+  }
+
+  /**
+   * Creates a bundle that returns the last element of the list when it is adapted to
+   * {@link BundleWiring}.
+   */
+  private Bundle createBundle(final List<BundleWiring> wirings) {
+    return createProxy(Bundle.class, new ProxyHandler("bundle") {
+      @Override
+      protected Object handle(final Method method, final Object[] args) {
+        if ("adapt".equals(method.getName()) && BundleWiring.class.equals(args[0])) {
+          return wirings.isEmpty() ? null : wirings.get(wirings.size() - 1);
+        }
+        return null;
+      }
+    });
+  }
+
+  private BundleCapability createCapability(final String name) {
+    return createProxy(BundleCapability.class, new ProxyHandler(name));
+  }
+
+  /**
+   * Creates a wiring that returns the capabilities for the test namespace. A wiring that is not
+   * current anymore can be simulated by passing <code>null</code>.
+   */
+  private BundleWiring createWiring(final List<BundleCapability> capabilities) {
+    return createProxy(BundleWiring.class, new ProxyHandler("wiring") {
+      @Override
+      protected Object handle(final Method method, final Object[] args) {
+        if ("getCapabilities".equals(method.getName()) && NAMESPACE.equals(args[0])) {
+          return capabilities;
+        }
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void testNotCurrentWiring() {
+    List<BundleWiring> wirings = new ArrayList<BundleWiring>();
+    wirings.add(createWiring(null));
+
+    TrackedBundleCapabilities trackedCapabilities =
+        new TrackedBundleCapabilities(createBundle(wirings), NAMESPACE);
+    Assert.assertEquals(Collections.emptyList(), trackedCapabilities.getCapabilities());
+  }
+
+  @Test
+  public void testRefreshReportsOnlyChangedCapabilities() {
+    BundleCapability kept = createCapability("kept");
+    BundleCapability removed = createCapability("removed");
+    BundleCapability added = createCapability("added");
+
+    List<BundleWiring> wirings = new ArrayList<BundleWiring>();
+    wirings.add(createWiring(Arrays.asList(removed, kept)));
+    Bundle bundle = createBundle(wirings);
+    TrackedBundleCapabilities trackedCapabilities =
+        new TrackedBundleCapabilities(bundle, NAMESPACE);
+
+    List<BundleCapability> removedCapabilities = new ArrayList<BundleCapability>();
+    List<BundleCapability> addedCapabilities = new ArrayList<BundleCapability>();
+    Assert.assertFalse(
+        trackedCapabilities.refresh(bundle, removedCapabilities, addedCapabilities));
+
+    wirings.add(createWiring(Arrays.asList(kept, added)));
+    Assert.assertTrue(
+        trackedCapabilities.refresh(bundle, removedCapabilities, addedCapabilities));
+    Assert.assertEquals(Arrays.asList(removed), removedCapabilities);
+    Assert.assertEquals(Arrays.asList(added), addedCapabilities);
+    Assert.assertEquals(Arrays.asList(kept, added), trackedCapabilities.getCapabilities());
+
+    // A new wiring with the same capabilities
+    removedCapabilities.clear();
+    addedCapabilities.clear();
+    wirings.add(createWiring(Arrays.asList(added, kept)));
+    Assert.assertFalse(
+        trackedCapabilities.refresh(bundle, removedCapabilities, addedCapabilities));
+    Assert.assertTrue(removedCapabilities.isEmpty());
+    Assert.assertTrue(addedCapabilities.isEmpty());
+  }
+
+  @Test
+  public void testRefreshToNotCurrentWiring() {
+    BundleCapability capability = createCapability("capability");
+
+    List<BundleWiring> wirings = new ArrayList<BundleWiring>();
+    wirings.add(createWiring(Arrays.asList(capability)));
+    Bundle bundle = createBundle(wirings);
+    TrackedBundleCapabilities trackedCapabilities =
+        new TrackedBundleCapabilities(bundle, NAMESPACE);
+
+    wirings.add(createWiring(null));
+    List<BundleCapability> removedCapabilities = new ArrayList<BundleCapability>();
+    List<BundleCapability> addedCapabilities = new ArrayList<BundleCapability>();
+    Assert.assertTrue(
+        trackedCapabilities.refresh(bundle, removedCapabilities, addedCapabilities));
+    Assert.assertEquals(Arrays.asList(capability), removedCapabilities);
+    Assert.assertTrue(addedCapabilities.isEmpty());
+    Assert.assertTrue(trackedCapabilities.getCapabilities().isEmpty());
+  }
+
+  @Test
+  public void testUnresolvedBundle() {
+    TrackedBundleCapabilities trackedCapabilities = new TrackedBundleCapabilities(
+        createBundle(new ArrayList<BundleWiring>()), NAMESPACE);
+    Assert.assertTrue(trackedCapabilities.getCapabilities().isEmpty());
+
+    List<BundleCapability> removedCapabilities = new ArrayList<BundleCapability>();
+    List<BundleCapability> addedCapabilities = new ArrayList<BundleCapability>();
+    Assert.assertFalse(trackedCapabilities.refresh(
+        createBundle(new ArrayList<BundleWiring>()), removedCapabilities, addedCapabilities));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests of the Java Flight Recorder events. The test runs on the packaged multi-release jar, so
+ * the implementation under <code>META-INF/versions/11</code> emits the events.
+ */
+public class FlightRecorderEventsRecordingTest {
+
+  /**
+   * A collector of string capabilities that are passed by the test.
+   */
+  private static final class StringCollector extends AbstractCapabilityCollector<String> {
+
+    StringCollector(final RequirementDefinition<String>[] requirements,
+        final CapabilityConsumer<String> capabilityConsumer) {
+      super(requirements, capabilityConsumer);
+    }
+
+    @Override
+    protected void closeTracker() {
+      // Capabilities are passed by the test
+    }
+
+    @Override
+    protected Map<String, ?> getAttributes(final String capability) {
+      return Collections.singletonMap("name", capability);
+    }
+
+    @Override
+    protected boolean matches(final String capability, final Filter filter) {
+      return true;
+    }
+
+    @Override
+    protected void openTracker() {
+      // Capabilities are passed by the test
+    }
+  }
+
+  private static final String CONSUMER_CALLBACK =
+      "org.everit.osgi.capabilitycollector.ConsumerCallback";
+
+  private static final String LOCK_HOLD = "org.everit.osgi.capabilitycollector.LockHold";
+
+  private static final String REQUIREMENT_WIRED =
+      "org.everit.osgi.capabilitycollector.RequirementWired";
+
+  private static final String SATISFACTION_CHANGED =
+      "org.everit.osgi.capabilitycollector.SatisfactionChanged";
+
+  private static void assertCollector(final RecordedEvent event,
+      final AbstractCapabilityCollector<?> collector) {
+    RecordedClass collectorClass = event.getClass("collectorClass");
+    Assert.assertEquals(collector.getClass().getName(), collectorClass.getName());
+    Assert.assertEquals(System.identityHashCode(collector), event.getInt("collectorId"));
+  }
+
+  private static List<RecordedEvent> eventsOf(final List<RecordedEvent> events,
+      final String name) {
+    List<RecordedEvent> result = new ArrayList<>();
+    for (RecordedEvent event : events) {
+      if (name.equals(event.getEventType().getName())) {
+        result.add(event);
+      }
+    }
+    return result;
+  }
+
+  private static List<RecordedEvent> record(final Runnable action) throws IOException {
+    Path file = Files.createTempFile("capabilitycollector", ".jfr");
+    try {
+      try (Recording recording = new Recording()) {
+        recording.enable(CONSUMER_CALLBACK);
+        recording.enable(LOCK_HOLD).withoutThreshold();
+        recording.enable(REQUIREMENT_WIRED);
+        recording.enable(SATISFACTION_CHANGED);
+        recording.start();
+        action.run();
+        recording.stop();
+        recording.dump(file);
+      }
+      return RecordingFile.readAllEvents(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testCollectorEventsAreRecorded() throws IOException {
+    final List<Boolean> notifications = new ArrayList<>();
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    RequirementDefinition<String>[] requirements = new RequirementDefinition[] {
+        new RequirementDefinition<String>("1", null, Collections.<String, Object> emptyMap()) };
+    final StringCollector collector = new StringCollector(requirements,
+        new CapabilityConsumer<String>() {
+
+          @Override
+          public void accept(final Suiting<String>[] suitings, final boolean satisfied) {
+            notifications.add(satisfied);
+            if (satisfied) {
+              throw new IllegalStateException("Test exception");
+            }
+          }
+        });
+
+    List<RecordedEvent> events = record(new Runnable() {
+
+      @Override
+      public void run() {
+        collector.open();
+        collector.addingCapablility("a");
+        collector.removedCapability("a");
+        collector.close();
+      }
+    });
+    Assert.assertEquals(3, notifications.size());
+
+    List<RecordedEvent> consumerCallbacks = eventsOf(events, CONSUMER_CALLBACK);
+    Assert.assertEquals(3, consumerCallbacks.size());
+    for (int i = 0; i < consumerCallbacks.size(); i++) {
+      RecordedEvent event = consumerCallbacks.get(i);
+      assertCollector(event, collector);
+      if (i == 1) {
+        Assert.assertEquals(IllegalStateException.class.getName(),
+            event.getClass("exceptionClass").getName());
+        Assert.assertEquals("Test exception", event.getString("exceptionMessage"));
+      } else {
+        Assert.assertNull(event.getClass("exceptionClass"));
+        Assert.assertNull(event.getString("exceptionMessage"));
+      }
+    }
+
+    List<RecordedEvent> lockHolds = eventsOf(events, LOCK_HOLD);
+    Assert.assertFalse(lockHolds.isEmpty());
+    for (RecordedEvent event : lockHolds) {
+      assertCollector(event, collector);
+    }
+
+    boolean wiredToCapability = false;
+    for (RecordedEvent event : eventsOf(events, REQUIREMENT_WIRED)) {
+      assertCollector(event, collector);
+      Assert.assertEquals("1", event.getString("requirementId"));
+      if (event.getInt("capabilityCount") == 1) {
+        Assert.assertEquals("[a]", event.getString("capabilities"));
+        wiredToCapability = true;
+      }
+    }
+    Assert.assertTrue(wiredToCapability);
+
+    List<RecordedEvent> satisfactionChanges = eventsOf(events, SATISFACTION_CHANGED);
+    Assert.assertEquals(2, satisfactionChanges.size());
+    assertCollector(satisfactionChanges.get(0), collector);
+    Assert.assertTrue(satisfactionChanges.get(0).getBoolean("satisfied"));
+    assertCollector(satisfactionChanges.get(1), collector);
+    Assert.assertFalse(satisfactionChanges.get(1).getBoolean("satisfied"));
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * The headers of a bundle archive that an {@link InMemoryFramework} understands: the symbolic
+ * name, the version and the capabilities of the <code>Provide-Capability</code> header. The
+ * attributes of the capabilities can have the <code>String</code>, <code>Long</code>,
+ * <code>Double</code> and <code>Version</code> types. Directives are ignored.
+ */
+final class BundleManifest {
+
+  /**
+   * Reads the manifest of a bundle archive and closes the stream.
+   *
+   * @param input
+   *          The stream of the bundle archive.
+   * @return The headers of the manifest.
+   * @throws BundleException
+   *           if the archive cannot be read or the manifest is not valid.
+   */
+  static BundleManifest read(final InputStream input) throws BundleException {
+    Manifest manifest;
+    try {
+      try {
+        manifest = new JarInputStream(input).getManifest();
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      throw new BundleException("Cannot read the bundle archive", BundleException.READ_ERROR, e);
+    }
+    if (manifest == null) {
+      throw new BundleException("The bundle archive has no manifest",
+          BundleException.MANIFEST_ERROR);
+    }
+
+    Attributes headers = manifest.getMainAttributes();
+    String symbolicName = headers.getValue(Constants.BUNDLE_SYMBOLICNAME);
+    if (symbolicName != null) {
+      // Directives like singleton are not part of the name
+      symbolicName = split(symbolicName, ';').get(0);
+    }
+    String version = headers.getValue(Constants.BUNDLE_VERSION);
+    return new BundleManifest(symbolicName,
+        (version != null) ? Version.parseVersion(version.trim()) : Version.emptyVersion,
+        parseCapabilities(headers.getValue(Constants.PROVIDE_CAPABILITY)));
+  }
+
+  private static Object parseAttributeValue(final String type, final String value)
+      throws BundleException {
+    try {
+      if (type == null || "String".equals(type)) {
+        return value;
+      } else if ("Long".equals(type)) {
+        return Long.valueOf(value);
+      } else if ("Double".equals(type)) {
+        return Double.valueOf(value);
+      } else if ("Version".equals(type)) {
+        return Version.parseVersion(value);
+      }
+    } catch (IllegalArgumentException e) {
+      throw new BundleException("Invalid " + type + " attribute value: " + value,
+          BundleException.MANIFEST_ERROR, e);
+    }
+    throw new BundleException("Unsupported attribute type: " + type,
+        BundleException.MANIFEST_ERROR);
+  }
+
+  private static List<InMemoryBundleCapability.Definition> parseCapabilities(final String header)
+      throws BundleException {
+    if (header == null) {
+      return Collections.emptyList();
+    }
+    List<InMemoryBundleCapability.Definition> result =
+        new ArrayList<InMemoryBundleCapability.Definition>();
+    for (String clause : split(header, ',')) {
+      List<String> parts = split(clause, ';');
+      Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+      for (String parameter : parts.subList(1, parts.size())) {
+        int equalsIndex = parameter.indexOf('=');
+        if (equalsIndex < 0) {
+          throw new BundleException("Invalid capability parameter: " + parameter,
+              BundleException.MANIFEST_ERROR);
+        }
+        String name = parameter.substring(0, equalsIndex).trim();
+        if (name.endsWith(":")) {
+          // Directive
+          continue;
+        }
+        String type = null;
+        int colonIndex = name.indexOf(':');
+        if (colonIndex >= 0) {
+          type = name.substring(colonIndex + 1).trim();
+          name = name.substring(0, colonIndex).trim();
+        }
+        attributes.put(name,
+            parseAttributeValue(type, unquote(parameter.substring(equalsIndex + 1).trim())));
+      }
+      result.add(new InMemoryBundleCapability.Definition(parts.get(0), attributes));
+    }
+    return result;
+  }
+
+  /**
+   * Splits a header value at the separators that are not between quotes.
+   */
+  private static List<String> split(final String value, final char separator) {
+    List<String> result = new ArrayList<String>();
+    StringBuilder sb = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      }
+      if (c == separator && !quoted) {
+        result.add(sb.toString().trim());
+        sb.setLength(0);
+      } else {
+        sb.append(c);
+      }
+    }
+    result.add(sb.toString().trim());
+    return result;
+  }
+
+  private static String unquote(final String value) {
+    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
+  final List<InMemoryBundleCapability.Definition> capabilities;
+
+  final String symbolicName;
+
+  final Version version;
+
+  private BundleManifest(final String symbolicName, final Version version,
+      final List<InMemoryBundleCapability.Definition> capabilities) {
+    this.symbolicName = symbolicName;
+    this.version = version;
+    this.capabilities = capabilities;
+  }
+}
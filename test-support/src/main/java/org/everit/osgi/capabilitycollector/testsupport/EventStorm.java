@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a {@link StormScript} on several threads at the same time. The threads wait for each other
+ * before they start, so the events of the script are issued concurrently.
+ */
+public class EventStorm {
+
+  private final InMemoryFramework framework;
+
+  private final long seed;
+
+  private final int threadCount;
+
+  /**
+   * Constructor.
+   *
+   * @param framework
+   *          The framework whose listener failures are checked after the storm.
+   * @param threadCount
+   *          The number of threads that run the script.
+   * @param seed
+   *          The seed of the random generators of the threads.
+   */
+  public EventStorm(final InMemoryFramework framework, final int threadCount, final long seed) {
+    this.framework = Objects.requireNonNull(framework, "Framework must not be null");
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("At least one thread must be used: " + threadCount);
+    }
+    this.threadCount = threadCount;
+    this.seed = seed;
+  }
+
+  /**
+   * Runs the script on all threads and waits until every thread finishes.
+   *
+   * @param script
+   *          The script that is run by every thread.
+   * @throws InterruptedException
+   *           if the current thread is interrupted while it waits for the storm.
+   * @throws IllegalStateException
+   *           if the script failed on any thread or a listener of the framework threw an
+   *           exception. The first failure is the cause, the others are suppressed.
+   */
+  public void run(final StormScript script) throws InterruptedException {
+    Objects.requireNonNull(script, "Script must not be null");
+    final CountDownLatch startLatch = new CountDownLatch(threadCount);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      final int threadIndex = i;
+      final Random random = new Random(seed + i);
+      Thread thread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          startLatch.countDown();
+          try {
+            startLatch.await();
+            script.run(threadIndex, random);
+          } catch (Exception | Error e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      }, "event-storm-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    failures.addAll(framework.getListenerFailures());
+    if (!failures.isEmpty()) {
+      IllegalStateException exception = new IllegalStateException(
+          failures.size() + " failure(s) during the event storm", failures.get(0));
+      for (int i = 1; i < failures.size(); i++) {
+        exception.addSuppressed(failures.get(i));
+      }
+      throw exception;
+    }
+  }
+}
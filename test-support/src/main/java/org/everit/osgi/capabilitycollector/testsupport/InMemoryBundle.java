@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * A bundle of an {@link InMemoryFramework}. The bundle has no content, it only has a lifecycle and
+ * the capabilities that are declared by {@link #provideCapability(String, Map)} or by the
+ * <code>Provide-Capability</code> header of the archive it was installed or updated from.
+ *
+ * <p>
+ * The state changes fire the same bundle events as a real framework. {@link #update()} passes the
+ * bundle through the {@link Bundle#INSTALLED} state like a framework does, so trackers remove the
+ * bundle and add it again. {@link #refresh()} gives the bundle a new wiring while it keeps its
+ * state, so trackers see a modification of the bundle with a new wiring, the way a tracker that
+ * handles the events late sees an update.
+ */
+public class InMemoryBundle implements Bundle {
+
+  private final long bundleId;
+
+  private InMemoryBundleContext context;
+
+  private final List<InMemoryBundleCapability.Definition> declaredCapabilities =
+      new ArrayList<InMemoryBundleCapability.Definition>();
+
+  private final InMemoryFramework framework;
+
+  private volatile InMemoryBundleRevision revision;
+
+  private volatile int state = Bundle.INSTALLED;
+
+  private final String symbolicName;
+
+  private volatile Version version;
+
+  InMemoryBundle(final InMemoryFramework framework, final long bundleId,
+      final String symbolicName, final Version version) {
+    this.framework = framework;
+    this.bundleId = bundleId;
+    this.symbolicName = symbolicName;
+    this.version = version;
+    revision = new InMemoryBundleRevision(this, declaredCapabilities);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <A> A adapt(final Class<A> type) {
+    if (BundleRevision.class.equals(type)) {
+      return (A) revision;
+    } else if (BundleWiring.class.equals(type)) {
+      return (A) revision.getWiring();
+    } else if (BundleContext.class.equals(type)) {
+      return (A) context;
+    }
+    return null;
+  }
+
+  private void checkNotUninstalled() {
+    if (state == Bundle.UNINSTALLED) {
+      throw new IllegalStateException("Bundle is uninstalled: " + this);
+    }
+  }
+
+  @Override
+  public int compareTo(final Bundle o) {
+    long otherBundleId = o.getBundleId();
+    if (bundleId == otherBundleId) {
+      return 0;
+    }
+    return (bundleId < otherBundleId) ? -1 : 1;
+  }
+
+  @Override
+  public Enumeration<URL> findEntries(final String path, final String filePattern,
+      final boolean recurse) {
+    return null;
+  }
+
+  @Override
+  public long getBundleId() {
+    return bundleId;
+  }
+
+  @Override
+  public synchronized BundleContext getBundleContext() {
+    return context;
+  }
+
+  @Override
+  public File getDataFile(final String filename) {
+    return null;
+  }
+
+  @Override
+  public URL getEntry(final String path) {
+    return null;
+  }
+
+  @Override
+  public Enumeration<String> getEntryPaths(final String path) {
+    return null;
+  }
+
+  @Override
+  public Dictionary<String, String> getHeaders() {
+    Hashtable<String, String> headers = new Hashtable<String, String>();
+    headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+    headers.put(Constants.BUNDLE_VERSION, version.toString());
+    return headers;
+  }
+
+  @Override
+  public Dictionary<String, String> getHeaders(final String locale) {
+    return getHeaders();
+  }
+
+  @Override
+  public long getLastModified() {
+    return 0;
+  }
+
+  @Override
+  public String getLocation() {
+    return symbolicName;
+  }
+
+  @Override
+  public ServiceReference<?>[] getRegisteredServices() {
+    return null;
+  }
+
+  @Override
+  public URL getResource(final String name) {
+    return null;
+  }
+
+  @Override
+  public Enumeration<URL> getResources(final String name) {
+    return null;
+  }
+
+  @Override
+  public ServiceReference<?>[] getServicesInUse() {
+    return null;
+  }
+
+  @Override
+  public Map<X509Certificate, List<X509Certificate>> getSignerCertificates(
+      final int signersType) {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public int getState() {
+    return state;
+  }
+
+  @Override
+  public String getSymbolicName() {
+    return symbolicName;
+  }
+
+  @Override
+  public Version getVersion() {
+    return version;
+  }
+
+  @Override
+  public boolean hasPermission(final Object permission) {
+    return true;
+  }
+
+  @Override
+  public Class<?> loadClass(final String name) throws ClassNotFoundException {
+    throw new ClassNotFoundException(name);
+  }
+
+  /**
+   * Declares a capability of the bundle. The capability becomes available when the bundle is
+   * resolved next time, refreshed or updated.
+   *
+   * @param namespace
+   *          The namespace of the capability.
+   * @param attributes
+   *          The attributes of the capability.
+   */
+  public synchronized void provideCapability(final String namespace,
+      final Map<String, Object> attributes) {
+    Objects.requireNonNull(namespace, "Namespace must not be null");
+    checkNotUninstalled();
+    declaredCapabilities.add(new InMemoryBundleCapability.Definition(namespace,
+        new LinkedHashMap<String, Object>(attributes)));
+  }
+
+  /**
+   * Gives the current revision of a resolved bundle a new wiring with the currently declared
+   * capabilities while the bundle keeps its state. A framework passes a refreshed bundle through
+   * the {@link Bundle#INSTALLED} state, but a tracker that handles the events late sees a tracked
+   * bundle with a new wiring, like when fragments are attached or detached. The capabilities that
+   * were declared before keep their instances, so the two wirings differ only in the changed
+   * capabilities. Nothing happens if the bundle is not resolved.
+   */
+  public synchronized void refresh() {
+    checkNotUninstalled();
+    if (state == Bundle.INSTALLED) {
+      return;
+    }
+    revision.rewire(declaredCapabilities);
+    framework.fireBundleEvent(BundleEvent.UPDATED, this);
+  }
+
+  /**
+   * Removes all declared capabilities of the bundle. The change becomes visible when the bundle is
+   * resolved next time, refreshed or updated.
+   */
+  public synchronized void removeCapabilities() {
+    declaredCapabilities.clear();
+  }
+
+  /**
+   * Removes a declared capability of the bundle. The change becomes visible when the bundle is
+   * resolved next time, refreshed or updated.
+   *
+   * @param namespace
+   *          The namespace of the capability.
+   * @param attributes
+   *          The attributes of the capability.
+   * @return <code>true</code> if the bundle declared such a capability.
+   */
+  public synchronized boolean removeCapability(final String namespace,
+      final Map<String, Object> attributes) {
+    Iterator<InMemoryBundleCapability.Definition> iterator = declaredCapabilities.iterator();
+    while (iterator.hasNext()) {
+      InMemoryBundleCapability.Definition definition = iterator.next();
+      if (definition.namespace.equals(namespace) && definition.attributes.equals(attributes)) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  synchronized void replaceCapabilities(
+      final List<InMemoryBundleCapability.Definition> definitions) {
+    declaredCapabilities.clear();
+    declaredCapabilities.addAll(definitions);
+  }
+
+  private void resolve() {
+    // The revision of an installed bundle has the capabilities that are declared at resolution
+    revision = new InMemoryBundleRevision(this, declaredCapabilities);
+    revision.wire();
+    setState(Bundle.RESOLVED, BundleEvent.RESOLVED);
+  }
+
+  private void setState(final int newState, final int eventType) {
+    state = newState;
+    framework.fireBundleEvent(eventType, this);
+  }
+
+  @Override
+  public void start() {
+    start(0);
+  }
+
+  @Override
+  public synchronized void start(final int options) {
+    checkNotUninstalled();
+    if (state == Bundle.ACTIVE) {
+      return;
+    }
+    if (state == Bundle.INSTALLED) {
+      resolve();
+    }
+    context = new InMemoryBundleContext(framework, this);
+    setState(Bundle.STARTING, BundleEvent.STARTING);
+    setState(Bundle.ACTIVE, BundleEvent.STARTED);
+  }
+
+  @Override
+  public void stop() {
+    stop(0);
+  }
+
+  @Override
+  public synchronized void stop(final int options) {
+    checkNotUninstalled();
+    if (state != Bundle.ACTIVE) {
+      return;
+    }
+    setState(Bundle.STOPPING, BundleEvent.STOPPING);
+    framework.releaseContext(context);
+    context = null;
+    setState(Bundle.RESOLVED, BundleEvent.STOPPED);
+  }
+
+  @Override
+  public String toString() {
+    return symbolicName + "_" + version + " [" + bundleId + "]";
+  }
+
+  @Override
+  public synchronized void uninstall() {
+    checkNotUninstalled();
+    stop();
+    if (state == Bundle.RESOLVED) {
+      revision.unwire();
+      setState(Bundle.INSTALLED, BundleEvent.UNRESOLVED);
+    }
+    framework.uninstalled(this);
+    setState(Bundle.UNINSTALLED, BundleEvent.UNINSTALLED);
+  }
+
+  /**
+   * Gives the bundle a new revision with the currently declared capabilities. Like in a framework,
+   * an active bundle is stopped and the bundle is unresolved before the update. The bundle is then
+   * resolved and started again as if the framework had been refreshed, so it gets back its
+   * previous state.
+   */
+  @Override
+  public synchronized void update() {
+    checkNotUninstalled();
+    int previousState = state;
+    stop();
+    if (state == Bundle.RESOLVED) {
+      revision.unwire();
+      setState(Bundle.INSTALLED, BundleEvent.UNRESOLVED);
+    }
+    revision = new InMemoryBundleRevision(this, declaredCapabilities);
+    framework.fireBundleEvent(BundleEvent.UPDATED, this);
+    if (previousState == Bundle.ACTIVE) {
+      start();
+    } else if (previousState == Bundle.RESOLVED) {
+      resolve();
+    }
+  }
+
+  /**
+   * Updates the bundle from a bundle archive. The version and the declared capabilities are taken
+   * from the manifest of the archive. See {@link #update()}.
+   */
+  @Override
+  public void update(final InputStream input) throws BundleException {
+    if (input != null) {
+      BundleManifest manifest = BundleManifest.read(input);
+      synchronized (this) {
+        version = manifest.version;
+        replaceCapabilities(manifest.capabilities);
+      }
+    }
+    update();
+  }
+}
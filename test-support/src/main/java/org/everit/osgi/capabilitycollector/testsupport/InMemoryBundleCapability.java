@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * A capability of an {@link InMemoryBundleRevision}. Capabilities have no directives.
+ */
+class InMemoryBundleCapability implements BundleCapability {
+
+  /**
+   * A capability declared by a bundle. Every revision of the bundle creates its own capability
+   * instances from the definitions.
+   */
+  static final class Definition {
+
+    final Map<String, Object> attributes;
+
+    final String namespace;
+
+    Definition(final String namespace, final Map<String, Object> attributes) {
+      this.namespace = namespace;
+      this.attributes = Collections.unmodifiableMap(attributes);
+    }
+  }
+
+  private final Definition definition;
+
+  private final InMemoryBundleRevision revision;
+
+  InMemoryBundleCapability(final InMemoryBundleRevision revision, final Definition definition) {
+    this.revision = revision;
+    this.definition = definition;
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return definition.attributes;
+  }
+
+  Definition getDefinition() {
+    return definition;
+  }
+
+  @Override
+  public Map<String, String> getDirectives() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public String getNamespace() {
+    return definition.namespace;
+  }
+
+  @Override
+  public BundleRevision getRevision() {
+    return revision;
+  }
+
+  @Override
+  public String toString() {
+    return definition.namespace + definition.attributes + " of " + revision.getBundle();
+  }
+}
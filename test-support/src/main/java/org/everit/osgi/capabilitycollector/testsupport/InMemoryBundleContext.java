@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+
+/**
+ * The context of an {@link InMemoryBundle}. Framework listeners are not supported as there are no
+ * framework events.
+ */
+class InMemoryBundleContext implements BundleContext {
+
+  private final InMemoryBundle bundle;
+
+  private final InMemoryFramework framework;
+
+  InMemoryBundleContext(final InMemoryFramework framework, final InMemoryBundle bundle) {
+    this.framework = framework;
+    this.bundle = bundle;
+  }
+
+  @Override
+  public void addBundleListener(final BundleListener listener) {
+    framework.addBundleListener(this, listener);
+  }
+
+  @Override
+  public void addFrameworkListener(final FrameworkListener listener) {
+    // There are no framework events
+  }
+
+  @Override
+  public void addServiceListener(final ServiceListener listener) {
+    try {
+      framework.addServiceListener(this, listener, null);
+    } catch (InvalidSyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void addServiceListener(final ServiceListener listener, final String filter)
+      throws InvalidSyntaxException {
+    framework.addServiceListener(this, listener, filter);
+  }
+
+  @Override
+  public Filter createFilter(final String filter) throws InvalidSyntaxException {
+    return FrameworkUtil.createFilter(filter);
+  }
+
+  @Override
+  public ServiceReference<?>[] getAllServiceReferences(final String clazz, final String filter)
+      throws InvalidSyntaxException {
+    return framework.getServiceReferences(clazz, filter);
+  }
+
+  @Override
+  public Bundle getBundle() {
+    return bundle;
+  }
+
+  @Override
+  public Bundle getBundle(final long id) {
+    return framework.getBundle(id);
+  }
+
+  @Override
+  public Bundle getBundle(final String location) {
+    for (Bundle installedBundle : framework.getBundles()) {
+      if (installedBundle.getLocation().equals(location)) {
+        return installedBundle;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Bundle[] getBundles() {
+    return framework.getBundles();
+  }
+
+  @Override
+  public File getDataFile(final String filename) {
+    return null;
+  }
+
+  @Override
+  public String getProperty(final String key) {
+    return System.getProperty(key);
+  }
+
+  @Override
+  public <S> S getService(final ServiceReference<S> reference) {
+    return ((InMemoryServiceReference<S>) reference).getRegistration().getService();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <S> ServiceReference<S> getServiceReference(final Class<S> clazz) {
+    return (ServiceReference<S>) getServiceReference(clazz.getName());
+  }
+
+  @Override
+  public ServiceReference<?> getServiceReference(final String clazz) {
+    ServiceReference<?>[] references;
+    try {
+      references = framework.getServiceReferences(clazz, null);
+    } catch (InvalidSyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+    if (references == null) {
+      return null;
+    }
+    return Collections.max(Arrays.asList(references));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <S> Collection<ServiceReference<S>> getServiceReferences(final Class<S> clazz,
+      final String filter) throws InvalidSyntaxException {
+    ServiceReference<?>[] references = framework.getServiceReferences(clazz.getName(), filter);
+    if (references == null) {
+      return Collections.emptyList();
+    }
+    List<ServiceReference<S>> result = new ArrayList<ServiceReference<S>>(references.length);
+    for (ServiceReference<?> reference : references) {
+      result.add((ServiceReference<S>) reference);
+    }
+    return result;
+  }
+
+  @Override
+  public ServiceReference<?>[] getServiceReferences(final String clazz, final String filter)
+      throws InvalidSyntaxException {
+    return framework.getServiceReferences(clazz, filter);
+  }
+
+  /**
+   * Installs a bundle with the location as symbolic name and an empty version. The content of the
+   * bundle is ignored.
+   */
+  @Override
+  public Bundle installBundle(final String location) {
+    return framework.installBundle(location, Version.emptyVersion);
+  }
+
+  /**
+   * Installs a bundle from a bundle archive. The symbolic name, the version and the declared
+   * capabilities are taken from the manifest of the archive. The location is used as symbolic name
+   * if the manifest does not have one. If the stream is <code>null</code>, the bundle is installed
+   * like by {@link #installBundle(String)}.
+   */
+  @Override
+  public Bundle installBundle(final String location, final InputStream input)
+      throws BundleException {
+    if (input == null) {
+      return installBundle(location);
+    }
+    BundleManifest manifest = BundleManifest.read(input);
+    InMemoryBundle installedBundle = framework.installBundle(
+        (manifest.symbolicName != null) ? manifest.symbolicName : location, manifest.version);
+    installedBundle.replaceCapabilities(manifest.capabilities);
+    return installedBundle;
+  }
+
+  @Override
+  public <S> ServiceRegistration<S> registerService(final Class<S> clazz, final S service,
+      final Dictionary<String, ?> properties) {
+    return framework.registerService(bundle, new String[] { clazz.getName() }, service,
+        properties);
+  }
+
+  @Override
+  public ServiceRegistration<?> registerService(final String clazz, final Object service,
+      final Dictionary<String, ?> properties) {
+    return registerService(new String[] { clazz }, service, properties);
+  }
+
+  @Override
+  public ServiceRegistration<?> registerService(final String[] clazzes, final Object service,
+      final Dictionary<String, ?> properties) {
+    return framework.registerService(bundle, clazzes, service, properties);
+  }
+
+  @Override
+  public void removeBundleListener(final BundleListener listener) {
+    framework.removeBundleListener(this, listener);
+  }
+
+  @Override
+  public void removeFrameworkListener(final FrameworkListener listener) {
+    // There are no framework events
+  }
+
+  @Override
+  public void removeServiceListener(final ServiceListener listener) {
+    framework.removeServiceListener(this, listener);
+  }
+
+  @Override
+  public boolean ungetService(final ServiceReference<?> reference) {
+    return !((InMemoryServiceReference<?>) reference).getRegistration().isUnregistered();
+  }
+}
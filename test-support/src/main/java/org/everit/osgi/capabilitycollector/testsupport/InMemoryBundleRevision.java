@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * A revision of an {@link InMemoryBundle}. The revision has the capabilities that were declared
+ * when it was created and no requirements.
+ */
+class InMemoryBundleRevision implements BundleRevision {
+
+  static List<BundleCapability> filterByNamespace(final List<BundleCapability> capabilities,
+      final String namespace) {
+    if (namespace == null) {
+      return capabilities;
+    }
+    List<BundleCapability> result = new ArrayList<BundleCapability>();
+    for (BundleCapability capability : capabilities) {
+      if (namespace.equals(capability.getNamespace())) {
+        result.add(capability);
+      }
+    }
+    return result;
+  }
+
+  private final InMemoryBundle bundle;
+
+  private final List<BundleCapability> capabilities;
+
+  private volatile InMemoryBundleWiring wiring;
+
+  InMemoryBundleRevision(final InMemoryBundle bundle,
+      final List<InMemoryBundleCapability.Definition> definitions) {
+    this.bundle = bundle;
+    List<BundleCapability> lCapabilities = new ArrayList<BundleCapability>(definitions.size());
+    for (InMemoryBundleCapability.Definition definition : definitions) {
+      lCapabilities.add(new InMemoryBundleCapability(this, definition));
+    }
+    capabilities = Collections.unmodifiableList(lCapabilities);
+  }
+
+  @Override
+  public Bundle getBundle() {
+    return bundle;
+  }
+
+  @Override
+  public List<BundleCapability> getDeclaredCapabilities(final String namespace) {
+    return filterByNamespace(capabilities, namespace);
+  }
+
+  @Override
+  public List<BundleRequirement> getDeclaredRequirements(final String namespace) {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public String getSymbolicName() {
+    return bundle.getSymbolicName();
+  }
+
+  @Override
+  public int getTypes() {
+    return 0;
+  }
+
+  @Override
+  public Version getVersion() {
+    return bundle.getVersion();
+  }
+
+  @Override
+  public BundleWiring getWiring() {
+    return wiring;
+  }
+
+  @Override
+  public String toString() {
+    return "Revision of " + bundle;
+  }
+
+  /**
+   * Gives the revision a new wiring with the capabilities of the definitions. The capabilities of
+   * the definitions that the current wiring has as well keep their instances.
+   */
+  void rewire(final List<InMemoryBundleCapability.Definition> definitions) {
+    Map<InMemoryBundleCapability.Definition, BundleCapability> previousCapabilities =
+        new IdentityHashMap<InMemoryBundleCapability.Definition, BundleCapability>();
+    InMemoryBundleWiring previousWiring = wiring;
+    if (previousWiring != null) {
+      for (BundleCapability capability : previousWiring.getCapabilities()) {
+        previousCapabilities.put(((InMemoryBundleCapability) capability).getDefinition(),
+            capability);
+      }
+    }
+    List<BundleCapability> lCapabilities = new ArrayList<BundleCapability>(definitions.size());
+    for (InMemoryBundleCapability.Definition definition : definitions) {
+      BundleCapability capability = previousCapabilities.get(definition);
+      lCapabilities.add(
+          (capability != null) ? capability : new InMemoryBundleCapability(this, definition));
+    }
+    unwire();
+    wiring = new InMemoryBundleWiring(this, Collections.unmodifiableList(lCapabilities));
+  }
+
+  void unwire() {
+    InMemoryBundleWiring lWiring = wiring;
+    if (lWiring != null) {
+      lWiring.setCurrent(false);
+    }
+    wiring = null;
+  }
+
+  void wire() {
+    wiring = new InMemoryBundleWiring(this, capabilities);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * The wiring of an {@link InMemoryBundleRevision}. The wiring provides the capabilities of the
+ * revision and the capabilities that were declared when the revision was rewired. There are no
+ * wires.
+ */
+class InMemoryBundleWiring implements BundleWiring {
+
+  private final List<BundleCapability> capabilities;
+
+  private volatile boolean current = true;
+
+  private final InMemoryBundleRevision revision;
+
+  InMemoryBundleWiring(final InMemoryBundleRevision revision,
+      final List<BundleCapability> capabilities) {
+    this.revision = revision;
+    this.capabilities = capabilities;
+  }
+
+  @Override
+  public List<URL> findEntries(final String path, final String filePattern, final int options) {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public Bundle getBundle() {
+    return revision.getBundle();
+  }
+
+  @Override
+  public List<BundleCapability> getCapabilities(final String namespace) {
+    if (!current) {
+      return null;
+    }
+    return InMemoryBundleRevision.filterByNamespace(capabilities, namespace);
+  }
+
+  List<BundleCapability> getCapabilities() {
+    return capabilities;
+  }
+
+  @Override
+  public ClassLoader getClassLoader() {
+    return null;
+  }
+
+  @Override
+  public List<BundleWire> getProvidedWires(final String namespace) {
+    return current ? Collections.<BundleWire> emptyList() : null;
+  }
+
+  @Override
+  public List<BundleWire> getRequiredWires(final String namespace) {
+    return current ? Collections.<BundleWire> emptyList() : null;
+  }
+
+  @Override
+  public List<BundleRequirement> getRequirements(final String namespace) {
+    return current ? Collections.<BundleRequirement> emptyList() : null;
+  }
+
+  @Override
+  public BundleRevision getRevision() {
+    return revision;
+  }
+
+  @Override
+  public boolean isCurrent() {
+    return current;
+  }
+
+  @Override
+  public boolean isInUse() {
+    return current;
+  }
+
+  @Override
+  public Collection<String> listResources(final String path, final String filePattern,
+      final int options) {
+    return Collections.emptyList();
+  }
+
+  void setCurrent(final boolean current) {
+    this.current = current;
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * An in-memory stand-in of an OSGi framework that supports the service registry, the bundle
+ * lifecycle and the wiring of bundle capabilities. It makes it possible to test
+ * {@link org.osgi.framework.BundleContext} based components without starting an OSGi container.
+ *
+ * <p>
+ * All methods are thread-safe. Events are delivered synchronously by the thread that caused them.
+ * The events of the same service or bundle are delivered in the order of the changes, while the
+ * events of different services and bundles can be delivered concurrently. Exceptions thrown by the
+ * listeners are collected and can be queried by {@link #getListenerFailures()}.
+ */
+public class InMemoryFramework {
+
+  /**
+   * A bundle listener with the context it was registered with.
+   */
+  private static final class BundleListenerEntry {
+
+    final InMemoryBundleContext context;
+
+    final BundleListener listener;
+
+    BundleListenerEntry(final InMemoryBundleContext context, final BundleListener listener) {
+      this.context = context;
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * A service listener with the filter it was registered with.
+   */
+  private static final class ServiceListenerEntry {
+
+    final InMemoryBundleContext context;
+
+    final Filter filter;
+
+    final ServiceListener listener;
+
+    ServiceListenerEntry(final InMemoryBundleContext context, final ServiceListener listener,
+        final Filter filter) {
+      this.context = context;
+      this.listener = listener;
+      this.filter = filter;
+    }
+
+    boolean matches(final Dictionary<String, ?> properties) {
+      return filter == null || filter.match(properties);
+    }
+  }
+
+  private final List<BundleListenerEntry> bundleListeners =
+      new CopyOnWriteArrayList<BundleListenerEntry>();
+
+  private final Map<Long, InMemoryBundle> bundles = new ConcurrentSkipListMap<Long, InMemoryBundle>();
+
+  private final Queue<Throwable> listenerFailures = new ConcurrentLinkedQueue<Throwable>();
+
+  private final AtomicLong nextBundleId = new AtomicLong(1);
+
+  private final AtomicLong nextServiceId = new AtomicLong(1);
+
+  private final Map<Long, InMemoryServiceRegistration<?>> registrations =
+      new ConcurrentSkipListMap<Long, InMemoryServiceRegistration<?>>();
+
+  private final List<ServiceListenerEntry> serviceListeners =
+      new CopyOnWriteArrayList<ServiceListenerEntry>();
+
+  private final InMemoryBundle systemBundle;
+
+  /**
+   * Constructor. The system bundle is started immediately, so its context can be used to register
+   * services and listeners.
+   */
+  public InMemoryFramework() {
+    systemBundle = new InMemoryBundle(this, 0, Constants.SYSTEM_BUNDLE_SYMBOLICNAME,
+        Version.emptyVersion);
+    bundles.put(0L, systemBundle);
+    systemBundle.start();
+  }
+
+  void addBundleListener(final InMemoryBundleContext context, final BundleListener listener) {
+    removeBundleListener(context, listener);
+    bundleListeners.add(new BundleListenerEntry(context, listener));
+  }
+
+  void addServiceListener(final InMemoryBundleContext context, final ServiceListener listener,
+      final String filter) throws InvalidSyntaxException {
+    Filter listenerFilter = (filter != null) ? FrameworkUtil.createFilter(filter) : null;
+    removeServiceListener(context, listener);
+    serviceListeners.add(new ServiceListenerEntry(context, listener, listenerFilter));
+  }
+
+  void fireBundleEvent(final int type, final InMemoryBundle bundle) {
+    BundleEvent event = new BundleEvent(type, bundle);
+    for (BundleListenerEntry entry : bundleListeners) {
+      try {
+        entry.listener.bundleChanged(event);
+      } catch (RuntimeException | Error e) {
+        listenerFailures.add(e);
+      }
+    }
+  }
+
+  /**
+   * Delivers a service event to the listeners whose filter matches the properties of the service.
+   * In case of a modification, the listeners that matched only the previous properties get a
+   * {@link ServiceEvent#MODIFIED_ENDMATCH} event.
+   */
+  void fireServiceEvent(final int type, final ServiceReference<?> reference,
+      final Dictionary<String, ?> previousProperties, final Dictionary<String, ?> properties) {
+    ServiceEvent event = new ServiceEvent(type, reference);
+    ServiceEvent endMatchEvent = null;
+    for (ServiceListenerEntry entry : serviceListeners) {
+      ServiceEvent deliveredEvent = null;
+      if (entry.matches(properties)) {
+        deliveredEvent = event;
+      } else if (type == ServiceEvent.MODIFIED && entry.matches(previousProperties)) {
+        if (endMatchEvent == null) {
+          endMatchEvent = new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, reference);
+        }
+        deliveredEvent = endMatchEvent;
+      }
+
+      if (deliveredEvent != null) {
+        try {
+          entry.listener.serviceChanged(deliveredEvent);
+        } catch (RuntimeException | Error e) {
+          listenerFailures.add(e);
+        }
+      }
+    }
+  }
+
+  InMemoryBundle getBundle(final long bundleId) {
+    return bundles.get(bundleId);
+  }
+
+  Bundle[] getBundles() {
+    Collection<InMemoryBundle> values = bundles.values();
+    return values.toArray(new Bundle[values.size()]);
+  }
+
+  /**
+   * The exceptions that were thrown by service and bundle listeners.
+   */
+  public Collection<Throwable> getListenerFailures() {
+    return Collections.unmodifiableCollection(listenerFailures);
+  }
+
+  ServiceReference<?>[] getServiceReferences(final String clazz, final String filter)
+      throws InvalidSyntaxException {
+    Filter referenceFilter = (filter != null) ? FrameworkUtil.createFilter(filter) : null;
+    List<ServiceReference<?>> result = new ArrayList<ServiceReference<?>>();
+    for (InMemoryServiceRegistration<?> registration : registrations.values()) {
+      if (!registration.isUnregistered() && registration.isProvidedAs(clazz)
+          && (referenceFilter == null
+              || referenceFilter.match(registration.getPropertyDictionary()))) {
+        result.add(registration.getServiceReference());
+      }
+    }
+    if (result.isEmpty()) {
+      return null;
+    }
+    return result.toArray(new ServiceReference<?>[result.size()]);
+  }
+
+  /**
+   * The system bundle that is always active. Its context can be passed to the tested components.
+   */
+  public InMemoryBundle getSystemBundle() {
+    return systemBundle;
+  }
+
+  /**
+   * The context of the system bundle.
+   */
+  public BundleContext getSystemBundleContext() {
+    return systemBundle.getBundleContext();
+  }
+
+  /**
+   * Installs a bundle. The bundle can provide capabilities via
+   * {@link InMemoryBundle#provideCapability(String, Map)} that are available after it is resolved.
+   *
+   * @param symbolicName
+   *          The symbolic name of the bundle.
+   * @param version
+   *          The version of the bundle.
+   * @return The installed bundle.
+   */
+  public InMemoryBundle installBundle(final String symbolicName, final Version version) {
+    Objects.requireNonNull(symbolicName, "Symbolic name must not be null");
+    Objects.requireNonNull(version, "Version must not be null");
+    long bundleId = nextBundleId.getAndIncrement();
+    InMemoryBundle bundle = new InMemoryBundle(this, bundleId, symbolicName, version);
+    bundles.put(bundleId, bundle);
+    fireBundleEvent(BundleEvent.INSTALLED, bundle);
+    return bundle;
+  }
+
+  <S> InMemoryServiceRegistration<S> registerService(final InMemoryBundle bundle,
+      final String[] classes, final S service, final Dictionary<String, ?> properties) {
+    InMemoryServiceRegistration<S> registration = new InMemoryServiceRegistration<S>(this, bundle,
+        nextServiceId.getAndIncrement(), classes, service, properties);
+    registration.register();
+    return registration;
+  }
+
+  void removeBundleListener(final InMemoryBundleContext context, final BundleListener listener) {
+    for (BundleListenerEntry entry : bundleListeners) {
+      if (entry.context == context && entry.listener == listener) {
+        bundleListeners.remove(entry);
+      }
+    }
+  }
+
+  /**
+   * Removes the listeners that were registered with the context and unregisters the services of the
+   * bundle of the context. Called when the bundle stops.
+   */
+  void releaseContext(final InMemoryBundleContext context) {
+    for (InMemoryServiceRegistration<?> registration : registrations.values()) {
+      if (registration.getBundle() == context.getBundle()) {
+        registration.unregisterQuietly();
+      }
+    }
+    for (ServiceListenerEntry entry : serviceListeners) {
+      if (entry.context == context) {
+        serviceListeners.remove(entry);
+      }
+    }
+    for (BundleListenerEntry entry : bundleListeners) {
+      if (entry.context == context) {
+        bundleListeners.remove(entry);
+      }
+    }
+  }
+
+  void removeServiceListener(final InMemoryBundleContext context,
+      final ServiceListener listener) {
+    for (ServiceListenerEntry entry : serviceListeners) {
+      if (entry.context == context && entry.listener == listener) {
+        serviceListeners.remove(entry);
+      }
+    }
+  }
+
+  void serviceRegistered(final InMemoryServiceRegistration<?> registration) {
+    registrations.put(registration.getServiceId(), registration);
+  }
+
+  void serviceUnregistered(final InMemoryServiceRegistration<?> registration) {
+    registrations.remove(registration.getServiceId());
+  }
+
+  void uninstalled(final InMemoryBundle bundle) {
+    bundles.remove(bundle.getBundleId());
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The reference of a service that is registered in an {@link InMemoryFramework}.
+ *
+ * @param <S>
+ *          The type of the service.
+ */
+class InMemoryServiceReference<S> implements ServiceReference<S> {
+
+  private static int getRanking(final ServiceReference<?> reference) {
+    Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+    return (ranking instanceof Integer) ? (Integer) ranking : 0;
+  }
+
+  private final InMemoryServiceRegistration<S> registration;
+
+  InMemoryServiceReference(final InMemoryServiceRegistration<S> registration) {
+    this.registration = registration;
+  }
+
+  /**
+   * Compares the references by ranking and service id in the same way as OSGi frameworks do: a
+   * reference is greater if it has a higher ranking or the same ranking and a lower service id.
+   */
+  @Override
+  public int compareTo(final Object reference) {
+    ServiceReference<?> other = (ServiceReference<?>) reference;
+    int ranking = getRanking(this);
+    int otherRanking = getRanking(other);
+    if (ranking != otherRanking) {
+      return (ranking < otherRanking) ? -1 : 1;
+    }
+    long serviceId = registration.getServiceId();
+    long otherServiceId = (Long) other.getProperty(Constants.SERVICE_ID);
+    if (serviceId == otherServiceId) {
+      return 0;
+    }
+    return (serviceId < otherServiceId) ? 1 : -1;
+  }
+
+  @Override
+  public Bundle getBundle() {
+    return registration.isUnregistered() ? null : registration.getBundle();
+  }
+
+  @Override
+  public Object getProperty(final String key) {
+    return registration.getProperties().lookup.get(key);
+  }
+
+  @Override
+  public String[] getPropertyKeys() {
+    Set<String> keys = registration.getProperties().lookup.keySet();
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  InMemoryServiceRegistration<S> getRegistration() {
+    return registration;
+  }
+
+  @Override
+  public Bundle[] getUsingBundles() {
+    return null;
+  }
+
+  @Override
+  public boolean isAssignableTo(final Bundle bundle, final String className) {
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryServiceReference " + registration.getProperties().lookup;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * The registration of a service in an {@link InMemoryFramework}. The properties are replaced as a
+ * whole by {@link #setProperties(Dictionary)}, so a reference always sees a consistent snapshot.
+ *
+ * @param <S>
+ *          The type of the service.
+ */
+class InMemoryServiceRegistration<S> implements ServiceRegistration<S> {
+
+  /**
+   * An immutable snapshot of the properties of the service.
+   */
+  static final class Properties {
+
+    final Dictionary<String, Object> dictionary;
+
+    final Map<String, Object> lookup;
+
+    Properties(final Dictionary<String, ?> properties, final String[] classes,
+        final long serviceId) {
+      TreeMap<String, Object> map = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+      if (properties != null) {
+        Enumeration<String> keys = properties.keys();
+        while (keys.hasMoreElements()) {
+          String key = keys.nextElement();
+          if (map.containsKey(key)) {
+            throw new IllegalArgumentException("Property keys differ only in case: " + key);
+          }
+          map.put(key, properties.get(key));
+        }
+      }
+      map.remove(Constants.OBJECTCLASS);
+      map.put(Constants.OBJECTCLASS, classes.clone());
+      map.remove(Constants.SERVICE_ID);
+      map.put(Constants.SERVICE_ID, serviceId);
+
+      lookup = Collections.unmodifiableMap(map);
+      dictionary = new Hashtable<String, Object>(map);
+    }
+  }
+
+  private final InMemoryBundle bundle;
+
+  private final String[] classes;
+
+  private final InMemoryFramework framework;
+
+  private volatile Properties properties;
+
+  private final InMemoryServiceReference<S> reference;
+
+  private final S service;
+
+  private final long serviceId;
+
+  private volatile boolean unregistered = false;
+
+  InMemoryServiceRegistration(final InMemoryFramework framework, final InMemoryBundle bundle,
+      final long serviceId, final String[] classes, final S service,
+      final Dictionary<String, ?> properties) {
+    if (classes.length == 0) {
+      throw new IllegalArgumentException("At least one class name must be provided");
+    }
+    this.framework = framework;
+    this.bundle = bundle;
+    this.serviceId = serviceId;
+    this.classes = classes.clone();
+    this.service = service;
+    this.properties = new Properties(properties, classes, serviceId);
+    reference = new InMemoryServiceReference<S>(this);
+  }
+
+  Bundle getBundle() {
+    return bundle;
+  }
+
+  Properties getProperties() {
+    return properties;
+  }
+
+  Dictionary<String, Object> getPropertyDictionary() {
+    return properties.dictionary;
+  }
+
+  @Override
+  public ServiceReference<S> getReference() {
+    if (unregistered) {
+      throw new IllegalStateException("Service is already unregistered");
+    }
+    return reference;
+  }
+
+  InMemoryServiceReference<S> getServiceReference() {
+    return reference;
+  }
+
+  S getService() {
+    return unregistered ? null : service;
+  }
+
+  long getServiceId() {
+    return serviceId;
+  }
+
+  boolean isProvidedAs(final String clazz) {
+    if (clazz == null) {
+      return true;
+    }
+    for (String providedClass : classes) {
+      if (providedClass.equals(clazz)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean isUnregistered() {
+    return unregistered;
+  }
+
+  synchronized void register() {
+    framework.serviceRegistered(this);
+    framework.fireServiceEvent(ServiceEvent.REGISTERED, reference, null, properties.dictionary);
+  }
+
+  @Override
+  public synchronized void setProperties(final Dictionary<String, ?> newProperties) {
+    if (unregistered) {
+      throw new IllegalStateException("Service is already unregistered");
+    }
+    Properties previousProperties = properties;
+    properties = new Properties(newProperties, classes, serviceId);
+    framework.fireServiceEvent(ServiceEvent.MODIFIED, reference, previousProperties.dictionary,
+        properties.dictionary);
+  }
+
+  @Override
+  public synchronized void unregister() {
+    if (unregistered) {
+      throw new IllegalStateException("Service is already unregistered");
+    }
+    unregistered = true;
+    framework.fireServiceEvent(ServiceEvent.UNREGISTERING, reference, null, properties.dictionary);
+    framework.serviceUnregistered(this);
+  }
+
+  synchronized void unregisterQuietly() {
+    if (!unregistered) {
+      unregister();
+    }
+  }
+}
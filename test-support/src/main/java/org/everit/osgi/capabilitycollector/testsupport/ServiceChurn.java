@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * A {@link StormScript} that registers, modifies and unregisters services. Every thread keeps a
+ * window of live registrations: after each registration the properties of random live services
+ * are modified and a random live service is unregistered if the window is full. The services that
+ * are in the window at the end of the script remain registered.
+ */
+public class ServiceChurn implements StormScript {
+
+  /**
+   * Generates the properties of the services.
+   */
+  public interface PropertyGenerator {
+
+    /**
+     * Generates the properties of a registration or a modification.
+     *
+     * @param random
+     *          The random generator of the thread.
+     * @return The service properties.
+     */
+    Dictionary<String, ?> generate(Random random);
+  }
+
+  private final BundleContext context;
+
+  private final int liveRegistrationsPerThread;
+
+  private final int modificationsPerRegistration;
+
+  private final String objectClass;
+
+  private final PropertyGenerator propertyGenerator;
+
+  private final int registrationsPerThread;
+
+  /**
+   * Constructor.
+   *
+   * @param context
+   *          The context that registers the services.
+   * @param objectClass
+   *          The class name that the services are registered with.
+   * @param propertyGenerator
+   *          Generates the properties of the services.
+   * @param registrationsPerThread
+   *          The number of services that each thread registers.
+   * @param modificationsPerRegistration
+   *          The number of modifications each thread does after registering a service.
+   * @param liveRegistrationsPerThread
+   *          The maximum number of services that a thread keeps registered at the same time.
+   */
+  public ServiceChurn(final BundleContext context, final String objectClass,
+      final PropertyGenerator propertyGenerator, final int registrationsPerThread,
+      final int modificationsPerRegistration, final int liveRegistrationsPerThread) {
+    this.context = Objects.requireNonNull(context, "Context must not be null");
+    this.objectClass = Objects.requireNonNull(objectClass, "Object class must not be null");
+    this.propertyGenerator =
+        Objects.requireNonNull(propertyGenerator, "Property generator must not be null");
+    this.registrationsPerThread = registrationsPerThread;
+    this.modificationsPerRegistration = modificationsPerRegistration;
+    this.liveRegistrationsPerThread = liveRegistrationsPerThread;
+  }
+
+  @Override
+  public void run(final int threadIndex, final Random random) {
+    List<ServiceRegistration<?>> liveRegistrations = new ArrayList<ServiceRegistration<?>>();
+    for (int i = 0; i < registrationsPerThread; i++) {
+      liveRegistrations.add(context.registerService(objectClass, new Object(),
+          propertyGenerator.generate(random)));
+
+      for (int j = 0; j < modificationsPerRegistration; j++) {
+        ServiceRegistration<?> registration =
+            liveRegistrations.get(random.nextInt(liveRegistrations.size()));
+        registration.setProperties(propertyGenerator.generate(random));
+      }
+
+      if (liveRegistrations.size() > liveRegistrationsPerThread) {
+        liveRegistrations.remove(random.nextInt(liveRegistrations.size())).unregister();
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.Random;
+
+/**
+ * The actions that one thread of an {@link EventStorm} performs.
+ */
+public interface StormScript {
+
+  /**
+   * Performs the actions of a thread.
+   *
+   * @param threadIndex
+   *          The index of the thread between zero and the number of threads of the storm.
+   * @param random
+   *          A random generator of the thread that is seeded from the seed of the storm, so a storm
+   *          can be repeated with the same random decisions.
+   * @throws Exception
+   *           if the script fails. The storm rethrows the failures after all threads finished.
+   */
+  void run(int threadIndex, Random random) throws Exception;
+}
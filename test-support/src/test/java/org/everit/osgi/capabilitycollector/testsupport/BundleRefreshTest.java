@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.everit.osgi.capabilitycollector.BundleCapabilityCollector;
+import org.everit.osgi.capabilitycollector.BundleRequirementDefinition;
+import org.everit.osgi.capabilitycollector.CapabilityConsumer;
+import org.everit.osgi.capabilitycollector.CollectorStatistics;
+import org.everit.osgi.capabilitycollector.RequirementDefinition;
+import org.everit.osgi.capabilitycollector.Suiting;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * Checks how the bundle collectors follow the new wirings of the bundles.
+ */
+public class BundleRefreshTest {
+
+  /**
+   * Counts the notifications of a collector.
+   */
+  private static class CountingConsumer<C> implements CapabilityConsumer<C> {
+
+    private int notifications;
+
+    @Override
+    public void accept(final Suiting<C>[] suitings, final boolean satisfied) {
+      notifications++;
+    }
+  }
+
+  private static final String NAMESPACE = "refresh";
+
+  private static final String PROPERTY = "refreshValue";
+
+  private static Map<String, Object> attributes(final int value) {
+    return Collections.<String, Object> singletonMap(PROPERTY, value);
+  }
+
+  private BundleCapabilityCollector collector;
+
+  private CountingConsumer<BundleCapability> consumer;
+
+  private BundleCapability getWiredCapability(final int requirementIndex) {
+    return collector.getState().getSuitings()[requirementIndex].getCapability();
+  }
+
+  private InMemoryBundle openCollector() throws InvalidSyntaxException {
+    InMemoryFramework framework = new InMemoryFramework();
+    BundleContext context = framework.getSystemBundleContext();
+
+    InMemoryBundle bundle = framework.installBundle("refresh", Version.emptyVersion);
+    bundle.provideCapability(NAMESPACE, attributes(1));
+    bundle.provideCapability(NAMESPACE, attributes(2));
+    bundle.start();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements = new RequirementDefinition[3];
+    for (int i = 0; i < requirements.length; i++) {
+      requirements[i] = new BundleRequirementDefinition("req" + (i + 1), NAMESPACE,
+          context.createFilter("(" + PROPERTY + "=" + (i + 1) + ")"),
+          new HashMap<String, Object>());
+    }
+    consumer = new CountingConsumer<BundleCapability>();
+    collector = new BundleCapabilityCollector(context, requirements, consumer, Bundle.ACTIVE);
+    collector.setStatisticsEnabled(true);
+    collector.open();
+    return bundle;
+  }
+
+  @Test
+  public void testRefreshPassesOnlyChangedCapabilities() throws InvalidSyntaxException {
+    InMemoryBundle bundle = openCollector();
+    BundleCapability firstCapability = getWiredCapability(0);
+    Assert.assertNotNull(firstCapability);
+    Assert.assertNotNull(getWiredCapability(1));
+    Assert.assertNull(getWiredCapability(2));
+    CollectorStatistics openedStatistics = collector.getStatistics();
+    int openedNotifications = consumer.notifications;
+
+    bundle.removeCapability(NAMESPACE, attributes(2));
+    bundle.provideCapability(NAMESPACE, attributes(3));
+    bundle.refresh();
+
+    CollectorStatistics statistics = collector.getStatistics();
+    Assert.assertEquals(1,
+        statistics.getRemovedCapabilities() - openedStatistics.getRemovedCapabilities());
+    Assert.assertEquals(1,
+        statistics.getAddedCapabilities() - openedStatistics.getAddedCapabilities());
+    Assert.assertSame(firstCapability, getWiredCapability(0));
+    Assert.assertNull(getWiredCapability(1));
+    Assert.assertNotNull(getWiredCapability(2));
+    // The removal and the addition are passed to the collector together
+    Assert.assertEquals(openedNotifications + 1, consumer.notifications);
+
+    // A refresh without changes passes nothing
+    bundle.refresh();
+    Assert.assertEquals(statistics.getAddedCapabilities(),
+        collector.getStatistics().getAddedCapabilities());
+    Assert.assertEquals(statistics.getRemovedCapabilities(),
+        collector.getStatistics().getRemovedCapabilities());
+    Assert.assertEquals(openedNotifications + 1, consumer.notifications);
+
+    collector.close();
+  }
+
+  @Test
+  public void testUpdateReplacesAllCapabilities() throws InvalidSyntaxException {
+    InMemoryBundle bundle = openCollector();
+    BundleCapability firstCapability = getWiredCapability(0);
+    CollectorStatistics openedStatistics = collector.getStatistics();
+
+    bundle.provideCapability(NAMESPACE, attributes(3));
+    bundle.update();
+
+    // The bundle is untracked while it is unresolved, so every capability is passed again
+    CollectorStatistics statistics = collector.getStatistics();
+    Assert.assertEquals(2,
+        statistics.getRemovedCapabilities() - openedStatistics.getRemovedCapabilities());
+    Assert.assertEquals(3,
+        statistics.getAddedCapabilities() - openedStatistics.getAddedCapabilities());
+    Assert.assertNotSame(firstCapability, getWiredCapability(0));
+    Assert.assertTrue(collector.isSatisfied());
+
+    collector.close();
+  }
+}
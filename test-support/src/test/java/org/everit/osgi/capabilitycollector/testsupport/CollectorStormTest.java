@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.capabilitycollector.testsupport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+
+import org.everit.osgi.capabilitycollector.BundleCapabilityCollector;
+import org.everit.osgi.capabilitycollector.BundleRequirementDefinition;
+import org.everit.osgi.capabilitycollector.CapabilityConsumer;
+import org.everit.osgi.capabilitycollector.RequirementDefinition;
+import org.everit.osgi.capabilitycollector.ServiceReferenceCollector;
+import org.everit.osgi.capabilitycollector.Suiting;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Checks that the collectors follow the state of the framework after concurrent event storms.
+ */
+public class CollectorStormTest {
+
+  /**
+   * Remembers the last notification of a collector.
+   */
+  private static class RecordingConsumer<C> implements CapabilityConsumer<C> {
+
+    private volatile boolean satisfied;
+
+    @Override
+    public void accept(final Suiting<C>[] suitings, final boolean pSatisfied) {
+      satisfied = pSatisfied;
+    }
+  }
+
+  private static final String NAMESPACE = "storm";
+
+  private static final String PROPERTY = "stormValue";
+
+  private static final int REQUIREMENT_COUNT = 4;
+
+  private static final int THREAD_COUNT = 8;
+
+  private static final int VALUE_COUNT = 6;
+
+  private static boolean isWired(final BundleCapability capability) {
+    BundleWiring wiring = capability.getRevision().getWiring();
+    return (wiring != null) && wiring.isCurrent()
+        && (capability.getRevision().getBundle().getState() == Bundle.ACTIVE);
+  }
+
+  private Filter createFilter(final BundleContext context, final String filter) {
+    try {
+      return context.createFilter(filter);
+    } catch (InvalidSyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void replaceCapabilities(final InMemoryBundle bundle, final Random random) {
+    bundle.removeCapabilities();
+    int value = random.nextInt(VALUE_COUNT);
+    bundle.provideCapability(NAMESPACE, Collections.<String, Object> singletonMap(PROPERTY, value));
+    // Same attributes in another namespace that must not be collected
+    bundle.provideCapability("other",
+        Collections.<String, Object> singletonMap(PROPERTY, (value + 1) % VALUE_COUNT));
+  }
+
+  @Test(timeout = 60000)
+  public void testBundleChurn() throws InterruptedException {
+    final InMemoryFramework framework = new InMemoryFramework();
+    BundleContext context = framework.getSystemBundleContext();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements =
+        new RequirementDefinition[REQUIREMENT_COUNT];
+    for (int i = 0; i < REQUIREMENT_COUNT; i++) {
+      requirements[i] = new BundleRequirementDefinition("req" + i, NAMESPACE,
+          createFilter(context, "(" + PROPERTY + "=" + i + ")"), new HashMap<String, Object>());
+    }
+
+    RecordingConsumer<BundleCapability> consumer = new RecordingConsumer<BundleCapability>();
+    BundleCapabilityCollector collector =
+        new BundleCapabilityCollector(context, requirements, consumer, Bundle.ACTIVE);
+    collector.open();
+
+    new EventStorm(framework, THREAD_COUNT, 1).run(new StormScript() {
+
+      @Override
+      public void run(final int threadIndex, final Random random) {
+        List<InMemoryBundle> liveBundles = new ArrayList<InMemoryBundle>();
+        for (int i = 0; i < 200; i++) {
+          InMemoryBundle bundle =
+              framework.installBundle("storm." + threadIndex + "." + i, Version.emptyVersion);
+          replaceCapabilities(bundle, random);
+          bundle.start();
+          liveBundles.add(bundle);
+
+          InMemoryBundle updatedBundle = liveBundles.get(random.nextInt(liveBundles.size()));
+          replaceCapabilities(updatedBundle, random);
+          if (random.nextBoolean()) {
+            updatedBundle.update();
+          } else {
+            // The tracker sees a new wiring of a tracked bundle
+            updatedBundle.refresh();
+          }
+
+          if (liveBundles.size() > 3) {
+            InMemoryBundle removedBundle = liveBundles.remove(random.nextInt(liveBundles.size()));
+            if (random.nextBoolean()) {
+              removedBundle.stop();
+            } else {
+              removedBundle.uninstall();
+            }
+          }
+        }
+      }
+    });
+
+    boolean satisfied = true;
+    for (Suiting<BundleCapability> suiting : collector.getState().getSuitings()) {
+      Filter filter = suiting.getRequirement().getFilter();
+      boolean available = false;
+      for (Bundle bundle : context.getBundles()) {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (bundle.getState() == Bundle.ACTIVE && wiring != null) {
+          for (BundleCapability capability : wiring.getCapabilities(NAMESPACE)) {
+            available |= filter.matches(capability.getAttributes());
+          }
+        }
+      }
+
+      BundleCapability capability = suiting.getCapability();
+      if (capability == null) {
+        Assert.assertFalse(suiting.toString(), available);
+        satisfied = false;
+      } else {
+        Assert.assertEquals(NAMESPACE, capability.getNamespace());
+        Assert.assertTrue(capability.toString(), isWired(capability));
+        Assert.assertTrue(filter.matches(capability.getAttributes()));
+      }
+    }
+    Assert.assertEquals(satisfied, collector.isSatisfied());
+    Assert.assertEquals(satisfied, consumer.satisfied);
+    collector.close();
+  }
+
+  @Test(timeout = 60000)
+  public void testServiceChurn() throws InterruptedException, InvalidSyntaxException {
+    InMemoryFramework framework = new InMemoryFramework();
+    BundleContext context = framework.getSystemBundleContext();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] requirements =
+        new RequirementDefinition[REQUIREMENT_COUNT];
+    for (int i = 0; i < REQUIREMENT_COUNT; i++) {
+      requirements[i] = new RequirementDefinition<ServiceReference<Object>>("req" + i,
+          createFilter(context, "(" + PROPERTY + "=" + i + ")"), new HashMap<String, Object>());
+    }
+
+    RecordingConsumer<ServiceReference<Object>> consumer =
+        new RecordingConsumer<ServiceReference<Object>>();
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, requirements, consumer, false);
+    collector.open();
+
+    new EventStorm(framework, THREAD_COUNT, 1).run(new ServiceChurn(context,
+        Object.class.getName(), new ServiceChurn.PropertyGenerator() {
+
+          @Override
+          public Dictionary<String, ?> generate(final Random random) {
+            Hashtable<String, Object> properties = new Hashtable<String, Object>();
+            properties.put(PROPERTY, random.nextInt(VALUE_COUNT));
+            properties.put(Constants.SERVICE_RANKING, random.nextInt(3));
+            return properties;
+          }
+        }, 500, 2, 3));
+
+    boolean satisfied = true;
+    for (Suiting<ServiceReference<Object>> suiting : collector.getState().getSuitings()) {
+      Filter filter = suiting.getRequirement().getFilter();
+      ServiceReference<?>[] available =
+          context.getServiceReferences(Object.class.getName(), filter.toString());
+
+      ServiceReference<Object> reference = suiting.getCapability();
+      if (reference == null) {
+        Assert.assertNull(suiting.toString(), available);
+        satisfied = false;
+      } else {
+        Assert.assertNotNull(reference.getBundle());
+        Assert.assertTrue(filter.match(reference));
+      }
+    }
+    Assert.assertEquals(satisfied, collector.isSatisfied());
+    Assert.assertEquals(satisfied, consumer.satisfied);
+
+    collector.close();
+  }
+}
@@ -15,8 +15,15 @@
  */
 package org.everit.osgi.capabilitycollector.tests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -24,11 +31,16 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.everit.osgi.capabilitycollector.BundleCapabilityCollector;
+import org.everit.osgi.capabilitycollector.BundleCapabilityDispatcher;
+import org.everit.osgi.capabilitycollector.BundleRequirementDefinition;
 import org.everit.osgi.capabilitycollector.RequirementDefinition;
+import org.everit.osgi.capabilitycollector.Suiting;
 import org.junit.Assert;
 import org.junit.Test;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.wiring.BundleCapability;
@@ -47,6 +59,8 @@ public class BundleCapabilityCollectorTest {
   private static final RequirementDefinition<BundleCapability>[] EMPTY_REQUIREMENTS =
       new RequirementDefinition[0];
 
+  private static final String OTHER_NAMESPACE = "otherNamespace";
+
   private static final String TEST_NAMESPACE = "testNamespace";
 
   private BundleContext context;
@@ -57,6 +71,26 @@ public class BundleCapabilityCollectorTest {
 
   }
 
+  /**
+   * Creates a bundle archive that has no content, only a manifest with the specified capabilities.
+   */
+  private InputStream createBundleArchive(final String symbolicName,
+      final String provideCapability) {
+    Manifest manifest = new Manifest();
+    Attributes headers = manifest.getMainAttributes();
+    headers.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    headers.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+    headers.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+    headers.putValue(Constants.PROVIDE_CAPABILITY, provideCapability);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try {
+      new JarOutputStream(bout, manifest).close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return new ByteArrayInputStream(bout.toByteArray());
+  }
+
   private Filter createFilter(final String filterString) {
     try {
       return context.createFilter(filterString);
@@ -65,6 +99,53 @@ public class BundleCapabilityCollectorTest {
     }
   }
 
+  private Bundle installBundle(final String symbolicName, final String provideCapability)
+      throws BundleException {
+    return context.installBundle(symbolicName,
+        createBundleArchive(symbolicName, provideCapability));
+  }
+
+  @Test
+  public void testBatchAddAndRemove() throws BundleException {
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements = new RequirementDefinition[] {
+        new RequirementDefinition<BundleCapability>("batch1", createFilter("(batch=1)"),
+            new HashMap<String, Object>()),
+        new RequirementDefinition<BundleCapability>("batch2", createFilter("(batch=2)"),
+            new HashMap<String, Object>()) };
+
+    TestCapabilityConsumer<BundleCapability> capabilityConsumer =
+        new TestCapabilityConsumer<BundleCapability>();
+    BundleCapabilityCollector collector = new BundleCapabilityCollector(context, TEST_NAMESPACE,
+        requirements, capabilityConsumer, Bundle.ACTIVE);
+    collector.open();
+    capabilityConsumer.clearHistory();
+
+    Bundle bundle = installBundle("test.batch",
+        TEST_NAMESPACE + ";batch=1," + TEST_NAMESPACE + ";batch=2," + TEST_NAMESPACE + ";batch=3");
+    bundle.start();
+
+    // All capabilities of the bundle are passed in one batch with one notification
+    CallParameters<BundleCapability> callParameters = capabilityConsumer.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals("1", callParameters.suitings[0].getCapability().getAttributes()
+        .get("batch"));
+    Assert.assertEquals("2", callParameters.suitings[1].getCapability().getAttributes()
+        .get("batch"));
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    bundle.stop();
+
+    callParameters = capabilityConsumer.pollCallParameters();
+    Assert.assertFalse(callParameters.satisfied);
+    Assert.assertNull(callParameters.suitings[0].getCapability());
+    Assert.assertNull(callParameters.suitings[1].getCapability());
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    bundle.uninstall();
+    collector.close();
+  }
+
   @Test
   public void testBundleCollectorLogic() {
     Map<String, Object> zeroAttributes = new HashMap<String, Object>();
@@ -146,6 +227,156 @@ public class BundleCapabilityCollectorTest {
     collector.close();
   }
 
+  @Test
+  public void testDispatcherRoutesByNamespace() throws BundleException {
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements = new RequirementDefinition[] {
+        new BundleRequirementDefinition("other", OTHER_NAMESPACE, null,
+            new HashMap<String, Object>()) };
+
+    BundleCapabilityDispatcher dispatcher = new BundleCapabilityDispatcher(context,
+        Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING);
+    BundleCapabilityCollector collector = new BundleCapabilityCollector(dispatcher, requirements,
+        new TestCapabilityConsumer<BundleCapability>());
+    collector.setStatisticsEnabled(true);
+    dispatcher.open();
+    collector.open();
+
+    // The capabilities of the other namespaces are not passed to the collector at all
+    Assert.assertEquals(0, collector.getStatistics().getAddedCapabilities());
+
+    Bundle testBundle = installBundle("test.namespace", TEST_NAMESPACE + ";shared=1");
+    testBundle.start();
+    Assert.assertEquals(0, collector.getStatistics().getAddedCapabilities());
+
+    Bundle otherBundle = installBundle("test.other", OTHER_NAMESPACE + ";shared=1");
+    otherBundle.start();
+    Assert.assertEquals(1, collector.getStatistics().getAddedCapabilities());
+    Assert.assertTrue(collector.isSatisfied());
+
+    otherBundle.uninstall();
+    testBundle.uninstall();
+    collector.close();
+    dispatcher.close();
+  }
+
+  @Test
+  public void testOtherNamespaceNotWired() throws BundleException {
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements = new RequirementDefinition[] {
+        new BundleRequirementDefinition("test", TEST_NAMESPACE, createFilter("(shared=1)"),
+            new HashMap<String, Object>()),
+        new BundleRequirementDefinition("other", OTHER_NAMESPACE, null,
+            new HashMap<String, Object>()) };
+
+    BundleCapabilityCollector collector = new BundleCapabilityCollector(context, requirements,
+        new TestCapabilityConsumer<BundleCapability>(),
+        Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING);
+    collector.open();
+
+    // The attributes match the filter of the other requirement, but the namespace does not
+    Bundle otherBundle = installBundle("test.other", OTHER_NAMESPACE + ";shared=1");
+    otherBundle.start();
+    Suiting<BundleCapability>[] suitings = collector.getState().getSuitings();
+    Assert.assertNull(suitings[0].getCapability());
+    Assert.assertEquals(OTHER_NAMESPACE, suitings[1].getCapability().getNamespace());
+    Assert.assertFalse(collector.isSatisfied());
+
+    // A requirement without a filter is not wired to the capabilities of other namespaces either
+    otherBundle.uninstall();
+    Bundle testBundle = installBundle("test.namespace", TEST_NAMESPACE + ";shared=1");
+    testBundle.start();
+    suitings = collector.getState().getSuitings();
+    Assert.assertEquals(TEST_NAMESPACE, suitings[0].getCapability().getNamespace());
+    Assert.assertNull(suitings[1].getCapability());
+    Assert.assertFalse(collector.isSatisfied());
+
+    testBundle.uninstall();
+    collector.close();
+  }
+
+  @Test
+  public void testRecordedAttributesOnRequirementUpdate() throws BundleException {
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements = new RequirementDefinition[] {
+        new RequirementDefinition<BundleCapability>("recorded", createFilter("(recorded=2)"),
+            new HashMap<String, Object>()) };
+
+    TestCapabilityConsumer<BundleCapability> capabilityConsumer =
+        new TestCapabilityConsumer<BundleCapability>();
+    BundleCapabilityCollector collector = new BundleCapabilityCollector(context, TEST_NAMESPACE,
+        requirements, capabilityConsumer,
+        Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING);
+    collector.open();
+
+    Bundle bundle = installBundle("test.recorded",
+        TEST_NAMESPACE + ";recorded=1;version:Version=\"1.2\"");
+    bundle.start();
+    Assert.assertFalse(collector.isSatisfied());
+
+    // The requirements are searched on the attributes that were recorded when the bundle was
+    // tracked, the typed attributes keep their type
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] newRequirements = new RequirementDefinition[] {
+        new RequirementDefinition<BundleCapability>("recorded",
+            createFilter("(&(recorded=1)(version>=1.1))"), new HashMap<String, Object>()) };
+    collector.updateRequirements(newRequirements);
+    Assert.assertTrue(collector.isSatisfied());
+
+    // The attributes are recorded again when the bundle gets a new wiring
+    bundle.update(createBundleArchive("test.recorded",
+        TEST_NAMESPACE + ";recorded=2;version:Version=\"1.0\""));
+    Assert.assertFalse(collector.isSatisfied());
+
+    collector.updateRequirements(requirements);
+    Assert.assertTrue(collector.isSatisfied());
+    Assert.assertEquals("2",
+        collector.getState().getSuitings()[0].getCapability().getAttributes().get("recorded"));
+
+    bundle.uninstall();
+    Assert.assertFalse(collector.isSatisfied());
+
+    collector.close();
+  }
+
+  @Test
+  public void testRemovalOfUntrackedBundleCapabilities() throws BundleException {
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<BundleCapability>[] requirements = new RequirementDefinition[] {
+        new RequirementDefinition<BundleCapability>("untracked", createFilter("(untracked=1)"),
+            new HashMap<String, Object>()) };
+
+    TestCapabilityConsumer<BundleCapability> capabilityConsumer =
+        new TestCapabilityConsumer<BundleCapability>();
+    BundleCapabilityCollector collector = new BundleCapabilityCollector(context, TEST_NAMESPACE,
+        requirements, capabilityConsumer,
+        Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING);
+    collector.open();
+
+    // The wiring of an updated bundle is not current anymore when the bundle is untracked, so
+    // the collector must remove the capabilities it added instead of asking the wiring again
+    Bundle bundle = installBundle("test.untracked", TEST_NAMESPACE + ";untracked=1");
+    bundle.start();
+    Assert.assertTrue(collector.isSatisfied());
+    BundleCapability previousCapability = collector.getState().getSuitings()[0].getCapability();
+
+    bundle.update(createBundleArchive("test.untracked", TEST_NAMESPACE + ";untracked=2"));
+    Assert.assertEquals(Bundle.ACTIVE, bundle.getState());
+    Assert.assertFalse(collector.isSatisfied());
+    Assert.assertNull(collector.getState().getSuitings()[0].getCapability());
+
+    bundle.update(createBundleArchive("test.untracked", TEST_NAMESPACE + ";untracked=1"));
+    Assert.assertTrue(collector.isSatisfied());
+    Assert.assertNotSame(previousCapability,
+        collector.getState().getSuitings()[0].getCapability());
+
+    bundle.uninstall();
+    Assert.assertFalse(collector.isSatisfied());
+    Assert.assertNull(collector.getState().getSuitings()[0].getCapability());
+
+    collector.close();
+  }
+
   @Test
   public void testStateMaskCheck() {
     new BundleCapabilityCollector(context, TEST_NAMESPACE, EMPTY_REQUIREMENTS,
@@ -15,25 +15,44 @@
  */
 package org.everit.osgi.capabilitycollector.tests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.capabilitycollector.CapabilityConsumer;
+import org.everit.osgi.capabilitycollector.CapabilityDelta;
+import org.everit.osgi.capabilitycollector.CapabilityDeltaConsumer;
+import org.everit.osgi.capabilitycollector.CapabilityPredicate;
+import org.everit.osgi.capabilitycollector.Cardinality;
+import org.everit.osgi.capabilitycollector.CollectorInfo;
+import org.everit.osgi.capabilitycollector.CollectorRegistry;
+import org.everit.osgi.capabilitycollector.CollectorState;
+import org.everit.osgi.capabilitycollector.CollectorStatistics;
 import org.everit.osgi.capabilitycollector.DuplicateRequirementIdException;
 import org.everit.osgi.capabilitycollector.RequirementDefinition;
+import org.everit.osgi.capabilitycollector.SelectionPolicy;
+import org.everit.osgi.capabilitycollector.SequencedCapabilityConsumer;
 import org.everit.osgi.capabilitycollector.ServiceReferenceCollector;
+import org.everit.osgi.capabilitycollector.ServiceReferenceDispatcher;
 import org.everit.osgi.capabilitycollector.Suiting;
 import org.everit.osgi.dev.testrunner.TestDuringDevelopment;
 import org.junit.Assert;
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
@@ -49,6 +68,31 @@ import org.osgi.framework.ServiceRegistration;
 @Service(value = ServiceReferenceCollectorTestComponent.class)
 public class ServiceReferenceCollectorTestComponent {
 
+  /**
+   * Executor that queues the tasks until the test runs them. It rejects the tasks while it is
+   * rejecting.
+   */
+  private static class QueueingExecutor implements Executor {
+
+    private boolean rejecting = false;
+
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+    @Override
+    public void execute(final Runnable task) {
+      if (rejecting) {
+        throw new RejectedExecutionException();
+      }
+      tasks.add(task);
+    }
+
+    public void runTasks() {
+      while (!tasks.isEmpty()) {
+        tasks.removeFirst().run();
+      }
+    }
+  }
+
   private static final Map<String, Object> EMPTY_ATTRIBUTE_MAP = Collections.emptyMap();
 
   @SuppressWarnings("unchecked")
@@ -81,6 +125,298 @@ public class ServiceReferenceCollectorTestComponent {
     return result;
   }
 
+  @Test
+  public void testCandidacyAfterRemoval() {
+    TestCapabilityConsumer<ServiceReference<Object>> capabilityConsumer =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("key", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("group", createFilter("(group=a)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceRegistration<Object> groupSR = context.registerService(Object.class, new Object(),
+        createServiceProps("group", "a"));
+    ServiceRegistration<Object> keyAndGroupSR = context.registerService(Object.class,
+        new Object(), createServiceProps("key", "1", "group", "a"));
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, capabilityConsumer, false);
+    collector.open();
+    Suiting<ServiceReference<Object>>[] suitings = collector.getState().getSuitings();
+    Assert.assertEquals(keyAndGroupSR.getReference(), suitings[0].getCapability());
+    Assert.assertEquals(groupSR.getReference(), suitings[1].getCapability());
+
+    // The removed service is a candidate of both requirements but wired only to the first one
+    keyAndGroupSR.unregister();
+    Assert.assertFalse(collector.isSatisfied());
+
+    // The removed service must not be found as the candidate of the second requirement
+    groupSR.setProperties(createServiceProps("group", "b"));
+    suitings = collector.getState().getSuitings();
+    Assert.assertNull(suitings[0].getCapability());
+    Assert.assertNull(suitings[1].getCapability());
+
+    groupSR.setProperties(createServiceProps("key", "1", "group", "a"));
+    Assert.assertTrue(collector.isSatisfied());
+    suitings = collector.getState().getSuitings();
+    Assert.assertEquals(groupSR.getReference(), suitings[0].getCapability());
+    Assert.assertEquals(groupSR.getReference(), suitings[1].getCapability());
+
+    groupSR.unregister();
+    Assert.assertFalse(collector.isSatisfied());
+    collector.close();
+  }
+
+  @Test
+  public void testCollectorRegistry() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    CollectorRegistry registry = new CollectorRegistry(true);
+    registry.publish(context);
+    ServiceReference<CollectorRegistry> registryReference =
+        context.getServiceReference(CollectorRegistry.class);
+    Assert.assertNotNull(registryReference);
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+    collector.setCollectorRegistry(registry);
+    Assert.assertEquals(0, registry.getCollectorCount());
+
+    collector.open();
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    List<CollectorInfo> collectors = registry.getCollectors();
+    Assert.assertEquals(1, collectors.size());
+    CollectorInfo info = collectors.get(0);
+    Assert.assertEquals(ServiceReferenceCollector.class.getName(), info.getType());
+    Assert.assertArrayEquals(new String[] { "1" }, info.getRequirementIds());
+    Assert.assertTrue(info.isSatisfied());
+    Assert.assertTrue(info.isStatisticsEnabled());
+    Assert.assertTrue(info.getWirings()[0].startsWith("1 -> "));
+
+    try {
+      collector.setCollectorRegistry(null);
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      // Right behavior
+    }
+
+    testSR1.unregister();
+    collector.close();
+    Assert.assertEquals(0, registry.getCollectorCount());
+
+    registry.unpublish();
+    Assert.assertNull(context.getServiceReference(CollectorRegistry.class));
+  }
+
+  @Test
+  public void testDeltaConsumer() {
+    final LinkedList<CapabilityDelta<ServiceReference<Object>>> deltas =
+        new LinkedList<CapabilityDelta<ServiceReference<Object>>>();
+    CapabilityDeltaConsumer<ServiceReference<Object>> deltaConsumer =
+        new CapabilityDeltaConsumer<ServiceReference<Object>>() {
+          @Override
+          public void acceptDelta(final CapabilityDelta<ServiceReference<Object>> delta) {
+            deltas.add(delta);
+          }
+        };
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, deltaConsumer, false);
+    collector.open();
+
+    CapabilityDelta<ServiceReference<Object>> delta = deltas.removeFirst();
+    Assert.assertFalse(delta.isSatisfied());
+    Assert.assertTrue(delta.getGained().isEmpty());
+    long previousSequence = delta.getSequence();
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    delta = deltas.removeFirst();
+    Assert.assertEquals(1, delta.getGained().size());
+    Assert.assertEquals(testSR1.getReference(), delta.getGained().get(0).getCapability());
+    Assert.assertTrue(delta.getLost().isEmpty());
+    Assert.assertTrue(delta.getChanged().isEmpty());
+    Assert.assertFalse(delta.isSatisfactionChanged());
+    Assert.assertTrue(delta.getSequence() > previousSequence);
+    previousSequence = delta.getSequence();
+
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "2"));
+    delta = deltas.removeFirst();
+    Assert.assertEquals("2", delta.getGained().get(0).getRequirement().getRequirementId());
+    Assert.assertTrue(delta.isSatisfied());
+    Assert.assertTrue(delta.isSatisfactionChanged());
+    Assert.assertTrue(delta.getSequence() > previousSequence);
+    previousSequence = delta.getSequence();
+
+    // A hot-standby candidate does not change anything
+    ServiceRegistration<Object> testSR3 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Assert.assertTrue(deltas.isEmpty());
+
+    testSR1.unregister();
+    delta = deltas.removeFirst();
+    Assert.assertTrue(delta.getGained().isEmpty());
+    Assert.assertTrue(delta.getLost().isEmpty());
+    Assert.assertEquals(testSR3.getReference(), delta.getChanged().get(0).getCapability());
+    Assert.assertTrue(delta.getSequence() > previousSequence);
+    previousSequence = delta.getSequence();
+
+    ServiceReference<Object> reference2 = testSR2.getReference();
+    testSR2.unregister();
+    delta = deltas.removeFirst();
+    Assert.assertEquals(reference2, delta.getLost().get(0).getCapability());
+    Assert.assertFalse(delta.isSatisfied());
+    Assert.assertTrue(delta.isPreviouslySatisfied());
+    Assert.assertTrue(delta.getSequence() > previousSequence);
+    Assert.assertEquals(collector.getState().getGeneration(), delta.getSequence());
+    Assert.assertTrue(deltas.isEmpty());
+
+    testSR3.unregister();
+    collector.close();
+  }
+
+  @Test
+  public void testDispatcher() {
+    ServiceReferenceDispatcher<Object> dispatcher = new ServiceReferenceDispatcher<Object>(
+        context, Object.class, false);
+
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler1 =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler2 =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items1 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items2 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector1 = new ServiceReferenceCollector<Object>(
+        dispatcher, items1, actionHandler1);
+    ServiceReferenceCollector<Object> collector2 = new ServiceReferenceCollector<Object>(
+        dispatcher, items2, actionHandler2);
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    collector1.open();
+    dispatcher.open();
+    collector2.open();
+
+    Assert.assertTrue(collector1.isSatisfied());
+    Assert.assertFalse(collector2.isSatisfied());
+
+    actionHandler1.clearHistory();
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "2"));
+
+    Assert.assertTrue(collector2.isSatisfied());
+    Assert.assertNull(actionHandler1.pollCallParameters());
+
+    testSR1.setProperties(createServiceProps("key", "2"));
+    Assert.assertFalse(collector1.isSatisfied());
+
+    collector2.close();
+    testSR2.unregister();
+    testSR1.unregister();
+
+    dispatcher.close();
+    collector1.close();
+  }
+
+  @Test
+  public void testDispatcherConsumerClosesSiblingCollector() {
+    ServiceReferenceDispatcher<Object> dispatcher = new ServiceReferenceDispatcher<Object>(
+        context, Object.class, false);
+    dispatcher.open();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    // The first consumer closes the sibling collector when the first collector becomes satisfied
+    final List<ServiceReferenceCollector<Object>> siblings =
+        new ArrayList<ServiceReferenceCollector<Object>>();
+    TestCapabilityConsumer<ServiceReference<Object>> closingConsumer =
+        new TestCapabilityConsumer<ServiceReference<Object>>() {
+          @Override
+          public void accept(final Suiting<ServiceReference<Object>>[] suitings,
+              final boolean pSatisfied) {
+            super.accept(suitings, pSatisfied);
+            for (ServiceReferenceCollector<Object> sibling : siblings) {
+              if (sibling.isOpened()) {
+                sibling.close();
+              }
+            }
+          }
+        };
+    TestCapabilityConsumer<ServiceReference<Object>> siblingConsumer =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(
+        dispatcher, items, closingConsumer);
+    ServiceReferenceCollector<Object> sibling = new ServiceReferenceCollector<Object>(
+        dispatcher, items, siblingConsumer);
+    collector.open();
+    sibling.open();
+    siblings.add(sibling);
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    Assert.assertTrue(collector.isSatisfied());
+    Assert.assertFalse(sibling.isOpened());
+    Assert.assertFalse(sibling.isSatisfied());
+
+    // The sibling is closed while the removal of its capability is dispatched
+    siblings.clear();
+    sibling = new ServiceReferenceCollector<Object>(dispatcher, items, siblingConsumer);
+    sibling.open();
+    Assert.assertTrue(sibling.isSatisfied());
+    siblings.add(sibling);
+
+    testSR1.unregister();
+
+    Assert.assertFalse(collector.isSatisfied());
+    Assert.assertFalse(sibling.isOpened());
+    Assert.assertFalse(sibling.isSatisfied());
+
+    // The dispatcher does not route to the closed sibling anymore
+    siblingConsumer.clearHistory();
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Assert.assertTrue(collector.isSatisfied());
+    Assert.assertNull(siblingConsumer.pollCallParameters());
+
+    testSR2.unregister();
+    collector.close();
+    dispatcher.close();
+  }
+
   @Test(expected = DuplicateRequirementIdException.class)
   public void testDuplicateReferenceItemId() {
     @SuppressWarnings("unchecked")
@@ -94,6 +430,173 @@ public class ServiceReferenceCollectorTestComponent {
         new TestCapabilityConsumer<ServiceReference<Object>>(), false);
   }
 
+  @Test
+  public void testHighestRankingSelection() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+    collector.setSelectionPolicy(SelectionPolicy.<Object> highestRanking());
+
+    collector.open();
+    Assert.assertFalse(actionHandler.pollCallParameters().satisfied);
+
+    ServiceRegistration<Object> lowSR = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Assert.assertEquals(lowSR.getReference(),
+        actionHandler.pollCallParameters().suitings[0].getCapability());
+
+    Dictionary<String, Object> highProps = createServiceProps("key", "1");
+    highProps.put(Constants.SERVICE_RANKING, 1);
+    ServiceRegistration<Object> highSR = context.registerService(Object.class, new Object(),
+        highProps);
+    Assert.assertEquals(highSR.getReference(),
+        actionHandler.pollCallParameters().suitings[0].getCapability());
+
+    highSR.unregister();
+    Assert.assertEquals(lowSR.getReference(),
+        actionHandler.pollCallParameters().suitings[0].getCapability());
+
+    lowSR.unregister();
+    Assert.assertFalse(actionHandler.pollCallParameters().satisfied);
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    collector.close();
+  }
+
+  @Test
+  public void testHighestRankingUnrelatedPropertyChange() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP, Cardinality.MULTIPLE) };
+
+    ServiceRegistration<Object> lowSR = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Dictionary<String, Object> highProps = createServiceProps("key", "1");
+    highProps.put(Constants.SERVICE_RANKING, 1);
+    ServiceRegistration<Object> highSR = context.registerService(Object.class, new Object(),
+        highProps);
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+    collector.setSelectionPolicy(SelectionPolicy.<Object> highestRanking());
+
+    collector.open();
+    Assert.assertEquals(Arrays.asList(highSR.getReference(), lowSR.getReference()),
+        actionHandler.pollCallParameters().suitings[0].getCapabilities());
+
+    // The selection key of the service does not change, so the consumer is not notified
+    highProps.put("other", "value");
+    highSR.setProperties(highProps);
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    Dictionary<String, Object> lowProps = createServiceProps("key", "1");
+    lowProps.put(Constants.SERVICE_RANKING, 2);
+    lowSR.setProperties(lowProps);
+    Assert.assertEquals(Arrays.asList(lowSR.getReference(), highSR.getReference()),
+        actionHandler.pollCallParameters().suitings[0].getCapabilities());
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    collector.close();
+    lowSR.unregister();
+    highSR.unregister();
+  }
+
+  @Test
+  public void testHotStandbyFailover() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR3 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+    collector.setStatisticsEnabled(true);
+    collector.open();
+
+    Assert.assertEquals(testSR1.getReference(),
+        actionHandler.pollCallParameters().suitings[0].getCapability());
+    long rescans = collector.getStatistics().getRescans();
+
+    // The requirement fails over to the next candidate without searching the capabilities again
+    testSR1.unregister();
+    Assert.assertEquals(testSR2.getReference(),
+        actionHandler.pollCallParameters().suitings[0].getCapability());
+
+    testSR2.unregister();
+    Assert.assertEquals(testSR3.getReference(),
+        actionHandler.pollCallParameters().suitings[0].getCapability());
+    Assert.assertEquals(rescans, collector.getStatistics().getRescans());
+
+    testSR3.unregister();
+    Assert.assertFalse(actionHandler.pollCallParameters().satisfied);
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    collector.close();
+  }
+
+  @Test
+  public void testMultipleCardinality() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP, Cardinality.AT_LEAST_ONE) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+
+    collector.open();
+    Assert.assertFalse(actionHandler.pollCallParameters().satisfied);
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    actionHandler.pollCallParameters();
+    CallParameters<ServiceReference<Object>> callParameters = actionHandler.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(Arrays.asList(testSR1.getReference(), testSR2.getReference()),
+        callParameters.suitings[0].getCapabilities());
+
+    testSR1.unregister();
+    callParameters = actionHandler.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(Collections.singletonList(testSR2.getReference()),
+        callParameters.suitings[0].getCapabilities());
+
+    testSR2.unregister();
+    callParameters = actionHandler.pollCallParameters();
+    Assert.assertFalse(callParameters.satisfied);
+    Assert.assertTrue(callParameters.suitings[0].getCapabilities().isEmpty());
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    collector.close();
+  }
+
   @Test
   public void testNormalBehavior() {
     @SuppressWarnings("unchecked")
@@ -187,6 +690,106 @@ public class ServiceReferenceCollectorTestComponent {
 
   }
 
+  @Test
+  public void testNotificationExecutorCoalescing() {
+    QueueingExecutor executor = new QueueingExecutor();
+    TestCapabilityConsumer<ServiceReference<Object>> capabilityConsumer =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, capabilityConsumer, false);
+    collector.setNotificationExecutor(executor);
+    collector.open();
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    // Nothing is delivered on the thread of the changes and one delivery is scheduled
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+    Assert.assertEquals(1, executor.tasks.size());
+
+    executor.runTasks();
+    CallParameters<ServiceReference<Object>> callParameters =
+        capabilityConsumer.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    // The failover to the second service and the removal of it are coalesced into the latest state
+    testSR1.unregister();
+    testSR2.unregister();
+    Assert.assertEquals(1, executor.tasks.size());
+    executor.runTasks();
+    callParameters = capabilityConsumer.pollCallParameters();
+    Assert.assertFalse(callParameters.satisfied);
+    Assert.assertNull(callParameters.suitings[0].getCapability());
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    // The notifications that are delivered one by one arrive in the order of the changes
+    ServiceRegistration<Object> testSR3 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    executor.runTasks();
+    testSR3.unregister();
+    executor.runTasks();
+    Assert.assertTrue(capabilityConsumer.pollCallParameters().satisfied);
+    Assert.assertFalse(capabilityConsumer.pollCallParameters().satisfied);
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    collector.close();
+    executor.runTasks();
+  }
+
+  @Test
+  public void testNotificationExecutorRejection() {
+    QueueingExecutor executor = new QueueingExecutor();
+    executor.rejecting = true;
+    TestCapabilityConsumer<ServiceReference<Object>> capabilityConsumer =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, capabilityConsumer, false);
+    collector.setNotificationExecutor(executor);
+    collector.open();
+
+    // The rejected notifications are delivered synchronously
+    Assert.assertFalse(capabilityConsumer.pollCallParameters().satisfied);
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Assert.assertTrue(capabilityConsumer.pollCallParameters().satisfied);
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    // A notification that is already scheduled is kept when the executor starts rejecting
+    executor.rejecting = false;
+    testSR1.unregister();
+    executor.rejecting = true;
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+    executor.runTasks();
+    CallParameters<ServiceReference<Object>> callParameters =
+        capabilityConsumer.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    testSR2.unregister();
+    Assert.assertFalse(capabilityConsumer.pollCallParameters().satisfied);
+
+    collector.close();
+  }
+
   @Test(expected = NullPointerException.class)
   public void testNullAttributes() {
     new RequirementDefinition<Object>(REFERENCE_ID_TEST, createFilter("(1=1)"), null);
@@ -194,7 +797,9 @@ public class ServiceReferenceCollectorTestComponent {
 
   @Test(expected = NullPointerException.class)
   public void testNullCapabilityConsumer() {
-    new ServiceReferenceCollector<Object>(context, Object.class, EMPTY_ITEMS, null, false);
+    CapabilityConsumer<ServiceReference<Object>> capabilityConsumer = null;
+    new ServiceReferenceCollector<Object>(context, Object.class, EMPTY_ITEMS, capabilityConsumer,
+        false);
   }
 
   @Test(expected = NullPointerException.class)
@@ -283,6 +888,198 @@ public class ServiceReferenceCollectorTestComponent {
     Assert.assertFalse(actionHandler.isSatisfied());
   }
 
+  @Test
+  public void testOpenWithAvailableCapabilities() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "2"));
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+
+    collector.open();
+
+    CallParameters<ServiceReference<Object>> callParameters = actionHandler.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[1].getCapability());
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    CollectorState<ServiceReference<Object>> state = collector.getState();
+    Assert.assertTrue(state.isSatisfied());
+    Assert.assertEquals(testSR1.getReference(), state.getSuitings()[0].getCapability());
+
+    testSR1.unregister();
+
+    CollectorState<ServiceReference<Object>> newState = collector.getState();
+    Assert.assertFalse(newState.isSatisfied());
+    Assert.assertTrue(newState.getGeneration() > state.getGeneration());
+
+    testSR2.unregister();
+
+    collector.close();
+  }
+
+  @Test
+  public void testPredicate() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    CapabilityPredicate<ServiceReference<Object>> predicate =
+        new CapabilityPredicate<ServiceReference<Object>>() {
+
+          @Override
+          public boolean test(final ServiceReference<Object> capability) {
+            return "b".equals(capability.getProperty("name"));
+          }
+        };
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            predicate, EMPTY_ATTRIBUTE_MAP, Cardinality.MANDATORY) };
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1", "name", "a"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1", "name", "b"));
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+
+    collector.open();
+
+    CallParameters<ServiceReference<Object>> callParameters = actionHandler.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[0].getCapability());
+
+    testSR2.unregister();
+    Assert.assertFalse(actionHandler.pollCallParameters().satisfied);
+
+    testSR1.unregister();
+    collector.close();
+  }
+
+  @Test
+  public void testPropertySnapshotOnRequirementUpdate() {
+    ServiceReferenceDispatcher<Object> dispatcher = new ServiceReferenceDispatcher<Object>(
+        context, Object.class, false);
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items1 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(KEY=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items1, new TestCapabilityConsumer<ServiceReference<Object>>(), false);
+    ServiceReferenceCollector<Object> dispatchedCollector =
+        new ServiceReferenceCollector<Object>(dispatcher, items1,
+            new TestCapabilityConsumer<ServiceReference<Object>>());
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    collector.open();
+    dispatcher.open();
+    dispatchedCollector.open();
+    Assert.assertTrue(collector.isSatisfied());
+    Assert.assertTrue(dispatchedCollector.isSatisfied());
+
+    Dictionary<String, Object> props = createServiceProps("key", "2");
+    props.put("size", 5L);
+    testSR1.setProperties(props);
+    Assert.assertFalse(collector.isSatisfied());
+    Assert.assertFalse(dispatchedCollector.isSatisfied());
+
+    // The candidates of the new requirements are searched on the snapshot that was taken when the
+    // service was modified
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items2 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1",
+            createFilter("(&(Key=2)(size>=4))"), EMPTY_ATTRIBUTE_MAP) };
+
+    collector.updateRequirements(items2);
+    dispatchedCollector.updateRequirements(items2);
+    Assert.assertEquals(testSR1.getReference(),
+        collector.getState().getSuitings()[0].getCapability());
+    Assert.assertEquals(testSR1.getReference(),
+        dispatchedCollector.getState().getSuitings()[0].getCapability());
+
+    collector.updateRequirements(items1);
+    dispatchedCollector.updateRequirements(items1);
+    Assert.assertFalse(collector.isSatisfied());
+    Assert.assertFalse(dispatchedCollector.isSatisfied());
+
+    dispatchedCollector.close();
+    dispatcher.close();
+    collector.close();
+    testSR1.unregister();
+  }
+
+  @Test
+  public void testSequencedConsumer() {
+    final LinkedList<Long> sequences = new LinkedList<Long>();
+    SequencedCapabilityConsumer<ServiceReference<Object>> sequencedConsumer =
+        new SequencedCapabilityConsumer<ServiceReference<Object>>() {
+          @Override
+          public void accept(final Suiting<ServiceReference<Object>>[] suitings,
+              final boolean satisfied, final long sequence) {
+            sequences.add(sequence);
+          }
+        };
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    // Each synchronous notification has the next sequence number
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, sequencedConsumer, false);
+    collector.open();
+    long sequence = sequences.removeFirst();
+    Assert.assertEquals(collector.getState().getGeneration(), sequence);
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    Assert.assertEquals(sequence + 1, sequences.removeFirst().longValue());
+    testSR1.unregister();
+    Assert.assertEquals(sequence + 2, sequences.removeFirst().longValue());
+    collector.close();
+    sequences.clear();
+
+    // The coalesced notifications leave a gap in the sequence numbers
+    QueueingExecutor executor = new QueueingExecutor();
+    collector = new ServiceReferenceCollector<Object>(context, Object.class, items,
+        sequencedConsumer, false);
+    collector.setNotificationExecutor(executor);
+    collector.open();
+    executor.runTasks();
+    sequence = sequences.removeFirst();
+
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    testSR2.unregister();
+    executor.runTasks();
+    Assert.assertEquals(sequence + 2, sequences.removeFirst().longValue());
+    Assert.assertEquals(collector.getState().getGeneration(), sequence + 2);
+    Assert.assertTrue(sequences.isEmpty());
+
+    collector.close();
+    executor.runTasks();
+  }
+
   @Test
   @TestDuringDevelopment
   public void testServicePropertyChangeAndOtherPreviouslyNonSatisfiedSatisfies() {
@@ -336,6 +1133,62 @@ public class ServiceReferenceCollectorTestComponent {
 
   }
 
+  @Test
+  public void testSharedFilterSubexpressions() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1",
+            createFilter("(&(key=1)(type=a))"), EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("2",
+            createFilter("(&(type=b)(key=1))"), EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("3",
+            createFilter("(|(key=1)(key=2))"), EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+    collector.open();
+    Assert.assertFalse(actionHandler.pollCallParameters().satisfied);
+
+    Dictionary<String, Object> props1 = createServiceProps("key", "1");
+    props1.put("type", "a");
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        props1);
+    CallParameters<ServiceReference<Object>> callParameters = actionHandler.pollCallParameters();
+    Assert.assertFalse(callParameters.satisfied);
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertNull(callParameters.suitings[1].getCapability());
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[2].getCapability());
+
+    // The results of key=1 and of type=b must not be reused from the evaluation of testSR1
+    Dictionary<String, Object> props2 = createServiceProps("key", "2");
+    props2.put("type", "b");
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        props2);
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    props2.put("key", "1");
+    testSR2.setProperties(props2);
+    callParameters = actionHandler.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[1].getCapability());
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[2].getCapability());
+
+    testSR1.unregister();
+    callParameters = actionHandler.pollCallParameters();
+    Assert.assertFalse(callParameters.satisfied);
+    Assert.assertNull(callParameters.suitings[0].getCapability());
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[1].getCapability());
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[2].getCapability());
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    collector.close();
+    testSR2.unregister();
+  }
+
   @Test
   public void testUpdateItemsEmptyItemsChange() {
     TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
@@ -423,6 +1276,44 @@ public class ServiceReferenceCollectorTestComponent {
     collector.close();
   }
 
+  @Test
+  public void testStatistics() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, actionHandler, false);
+    Assert.assertNull(collector.getStatistics());
+
+    collector.setStatisticsEnabled(true);
+    collector.open();
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    testSR1.setProperties(createServiceProps("key", "1", "value", "1"));
+    testSR1.unregister();
+
+    CollectorStatistics statistics = collector.getStatistics();
+    Assert.assertEquals(1, statistics.getAddedCapabilities());
+    Assert.assertEquals(1, statistics.getModifiedCapabilities());
+    Assert.assertEquals(1, statistics.getRemovedCapabilities());
+    Assert.assertEquals(2, statistics.getFilterEvaluations());
+    Assert.assertEquals(1, statistics.getRescans());
+    Assert.assertEquals(3, statistics.getNotifications());
+    Assert.assertTrue(statistics.getLockAcquisitions() >= 4);
+    Assert.assertTrue(statistics.getUnsatisfiedNanos() > 0);
+    Assert.assertTrue(statistics.getUnsatisfiedNanos() <= statistics.getElapsedNanos());
+
+    collector.setStatisticsEnabled(false);
+    Assert.assertNull(collector.getStatistics());
+    collector.close();
+  }
+
   @Test
   public void testUpdateItemsUnopenedTracker() {
     TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
@@ -450,6 +1341,234 @@ public class ServiceReferenceCollectorTestComponent {
     Assert.assertNull(actionHandler.pollCallParameters());
   }
 
+  @Test
+  public void testUpdateRequirementsKeepsUnchangedWirings() {
+    TestCapabilityConsumer<ServiceReference<Object>> capabilityConsumer =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    RequirementDefinition<ServiceReference<Object>> requirement1 =
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP);
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items =
+        new RequirementDefinition[] { requirement1 };
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "1"));
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items, capabilityConsumer, false);
+    collector.open();
+    Assert.assertEquals(testSR1.getReference(),
+        collector.getState().getSuitings()[0].getCapability());
+
+    // The requirement fails over to the second service and stays there when the first one comes
+    // back, so a wiring from scratch would differ from the current one
+    testSR1.setProperties(createServiceProps("key", "2"));
+    testSR1.setProperties(createServiceProps("key", "1"));
+    Assert.assertEquals(testSR2.getReference(),
+        collector.getState().getSuitings()[0].getCapability());
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] newItems = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+    capabilityConsumer.clearHistory();
+    collector.updateRequirements(newItems);
+
+    CallParameters<ServiceReference<Object>> callParameters =
+        capabilityConsumer.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertNotNull(callParameters.suitings[1].getCapability());
+    Assert.assertNull(capabilityConsumer.pollCallParameters());
+
+    testSR1.unregister();
+    testSR2.unregister();
+    collector.close();
+  }
+
+  @Test
+  public void testUpdateRequirementsNarrowedTrackerFilter() throws InterruptedException {
+    final ServiceRegistration<Object> testSR1 = context.registerService(Object.class,
+        new Object(), createServiceProps("key", "2"));
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items1 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    @SuppressWarnings("unchecked")
+    final RequirementDefinition<ServiceReference<Object>>[] items2 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    final List<ServiceReferenceCollector<Object>> collectors =
+        new ArrayList<ServiceReferenceCollector<Object>>();
+    final List<Thread> modifierThreads = new ArrayList<Thread>();
+    CapabilityConsumer<ServiceReference<Object>> consumer =
+        new CapabilityConsumer<ServiceReference<Object>>() {
+
+          @Override
+          public void accept(final Suiting<ServiceReference<Object>>[] suitings,
+              final boolean satisfied) {
+            if (!modifierThreads.isEmpty()) {
+              return;
+            }
+            Thread modifierThread = new Thread(new Runnable() {
+
+              @Override
+              public void run() {
+                testSR1.setProperties(createServiceProps("key", "2"));
+              }
+            });
+            modifierThreads.add(modifierThread);
+            modifierThread.start();
+
+            // The old tracker reports the modification while the consumer holds the lock of the
+            // collector, so the event is processed only after the tracker is replaced
+            Thread.State state = modifierThread.getState();
+            while (state != Thread.State.WAITING && state != Thread.State.TERMINATED) {
+              Thread.yield();
+              state = modifierThread.getState();
+            }
+            collectors.get(0).updateRequirements(items2);
+          }
+        };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items1, consumer, false);
+    collectors.add(collector);
+    collector.open();
+    modifierThreads.get(0).join();
+
+    // The service must not be left in the collector by the late modification event
+    testSR1.unregister();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items3 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+    collector.updateRequirements(items3);
+    Assert.assertNull(collector.getState().getSuitings()[0].getCapability());
+    Assert.assertFalse(collector.isSatisfied());
+
+    collector.close();
+  }
+
+  @Test
+  public void testUpdateRequirementsNonStringAttribute() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items1 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    Dictionary<String, Object> longProps = new Hashtable<String, Object>();
+    longProps.put("key", Long.valueOf(0));
+    ServiceRegistration<Object> longSR = context.registerService(Object.class, new Object(),
+        longProps);
+
+    ServiceRegistration<Object> stringSR = context.registerService(Object.class, new Object(),
+        createServiceProps("key", "0"));
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        Object.class, items1, actionHandler, false);
+
+    collector.open();
+
+    Assert.assertFalse(collector.isSatisfied());
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items2 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1",
+            createFilter("(&(objectClass=java.lang.Object)(key=0))"), EMPTY_ATTRIBUTE_MAP) };
+
+    collector.updateRequirements(items2);
+
+    Assert.assertTrue(collector.isSatisfied());
+
+    // The services are tracked in the order of their ids, so the service with the Long attribute
+    // is wired first
+    Assert.assertEquals(longSR.getReference(),
+        collector.getState().getSuitings()[0].getCapability());
+
+    actionHandler.clearHistory();
+    longSR.unregister();
+    Assert.assertTrue(actionHandler.isSatisfied());
+
+    CallParameters<ServiceReference<Object>> callParameters = actionHandler.pollCallParameters();
+    Assert.assertEquals(stringSR.getReference(), callParameters.suitings[0].getCapability());
+
+    stringSR.unregister();
+    Assert.assertFalse(collector.isSatisfied());
+
+    collector.close();
+  }
+
+  @Test
+  public void testUpdateRequirementsTrackerFilterChange() {
+    TestCapabilityConsumer<ServiceReference<Object>> actionHandler =
+        new TestCapabilityConsumer<ServiceReference<Object>>();
+
+    ServiceRegistration<Object> testSR1 = context.registerService(Object.class,
+        new Object(), createServiceProps("key", "1"));
+    ServiceRegistration<Object> testSR2 = context.registerService(Object.class,
+        new Object(), createServiceProps("key", "2"));
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items1 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    ServiceReferenceCollector<Object> collector = new ServiceReferenceCollector<Object>(context,
+        null, items1, actionHandler, false);
+
+    collector.open();
+    Assert.assertTrue(collector.isSatisfied());
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items2 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("1", createFilter("(key=1)"),
+            EMPTY_ATTRIBUTE_MAP),
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    actionHandler.clearHistory();
+    collector.updateRequirements(items2);
+
+    CallParameters<ServiceReference<Object>> callParameters = actionHandler.pollCallParameters();
+    Assert.assertTrue(callParameters.satisfied);
+    Assert.assertEquals(testSR1.getReference(), callParameters.suitings[0].getCapability());
+    Assert.assertEquals(testSR2.getReference(), callParameters.suitings[1].getCapability());
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    @SuppressWarnings("unchecked")
+    RequirementDefinition<ServiceReference<Object>>[] items3 = new RequirementDefinition[] {
+        new RequirementDefinition<ServiceReference<Object>>("2", createFilter("(key=2)"),
+            EMPTY_ATTRIBUTE_MAP) };
+
+    collector.updateRequirements(items3);
+    Assert.assertTrue(collector.isSatisfied());
+
+    actionHandler.clearHistory();
+    testSR1.unregister();
+    Assert.assertNull(actionHandler.pollCallParameters());
+
+    testSR2.unregister();
+    Assert.assertFalse(collector.isSatisfied());
+
+    collector.close();
+  }
+
   /**
    * In case of zero items in the description, the "satisfied" action should be called as soon as
    * the tracker is opened and the "unsatisfied" action should be called as soon as the tracker is